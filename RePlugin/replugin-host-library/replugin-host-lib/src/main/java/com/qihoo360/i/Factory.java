@@ -379,6 +379,16 @@ public final class Factory {
         return uri;
     }
 
+    /**
+     * 警告：低层接口
+     * 将插件移出当前进程的内存，下次使用时再重新加载
+     * @param name 插件名
+     * @return 估算回收的内存（字节）；若插件仍有存活的组件而不允许移出，则返回-1
+     */
+    public static final long unloadPlugin(String name) {
+        return sPluginManager.unloadPlugin(name);
+    }
+
     /**
      * 通过ClassLoader来获取插件名
      *
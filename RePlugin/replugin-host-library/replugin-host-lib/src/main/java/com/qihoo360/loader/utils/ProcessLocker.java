@@ -23,11 +23,22 @@ import com.qihoo360.replugin.helper.LogRelease;
 
 import com.qihoo360.replugin.utils.FileUtils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.qihoo360.replugin.helper.LogDebug.MAIN_TAG;
 import static com.qihoo360.replugin.helper.LogRelease.LOGR;
@@ -41,6 +52,31 @@ public final class ProcessLocker {
 
     private static final String TAG = LogDebug.PLUGIN_TAG;
 
+    /**
+     * 等待超过此时长（毫秒）时，输出一条日志
+     */
+    private static final long SLOW_WAIT_MS = 100;
+
+    private static final byte[] LOCKER = new byte[0];
+
+    /**
+     * 锁文件路径 -> 进程内的排队信息
+     */
+    private static final HashMap<String, Slot> SLOTS = new HashMap<>();
+
+    /**
+     * 用来阻塞等待文件锁的线程池。只有“真正发生竞争”时才会用到
+     */
+    private static ThreadPoolExecutor sWaiters;
+
+    private static final AtomicLong sWaitCount = new AtomicLong();
+
+    private static final AtomicLong sWaitTotalMs = new AtomicLong();
+
+    private static final AtomicLong sWaitMaxMs = new AtomicLong();
+
+    private static final AtomicLong sTimeoutCount = new AtomicLong();
+
     private final Context mContext;
 
     private FileOutputStream mFileOutputStream;
@@ -51,6 +87,56 @@ public final class ProcessLocker {
 
     private File mFile;
 
+    /**
+     * 使用lockTimeWait时，该锁文件在本进程内的排队信息
+     */
+    private Slot mSlot;
+
+    /**
+     * 是否持有mSlot中的进程内锁
+     */
+    private boolean mSlotHeld;
+
+    /**
+     * 是否已计入mSlot的使用者数（mUsers），unlock时减去
+     */
+    private boolean mSlotAcquired;
+
+    /**
+     * 本线程已在外层持有同一把锁（重入），此时不再重复获取文件锁
+     */
+    private boolean mReentered;
+
+    /**
+     * 本次加锁是否发生过等待
+     */
+    private boolean mWaited;
+
+    /**
+     * 同一锁文件在本进程内的排队信息 <p>
+     * 同一进程内的多个线程先在公平锁上排队（先到先得），只有队首的线程才去竞争文件锁 <p>
+     * 注意：按POSIX语义，关闭同一文件的“任意”fd都会释放本进程在该文件上的所有fcntl锁，
+     * 故没拿到锁的一方不能随意关闭自己的Channel，而要交给持有者在释放文件锁后再关闭
+     */
+    private static final class Slot {
+
+        final String mPath;
+
+        final ReentrantLock mLock = new ReentrantLock(true);
+
+        final ArrayList<Closeable> mPendingClose = new ArrayList<>();
+
+        /**
+         * 正在使用（排队、持有或尚未unlock）的ProcessLocker个数，由LOCKER保护。为0时从SLOTS中移除 <p>
+         * 注意：不能只看mLock是否有人持有，否则正在排队的线程会和新来的线程分别用上两个Slot，在同一进程内同时“拿到”文件锁
+         */
+        int mUsers;
+
+        Slot(String path) {
+            mPath = path;
+        }
+    }
+
     /**
      * @param context
      * @param filename
@@ -144,6 +230,7 @@ public final class ProcessLocker {
      * @param ms       毫秒
      * @param interval 间隔
      * @return
+     * @see #lockTimeWait(long)
      */
     public final synchronized boolean tryLockTimeWait(int ms, int interval) {
         if (mFileChannel == null) {
@@ -183,6 +270,112 @@ public final class ProcessLocker {
         return false;
     }
 
+    /**
+     * 加锁，最多等待timeoutMs毫秒 <p>
+     * 和tryLockTimeWait不同，这里不会“轮询 + sleep”：<p>
+     * 1、同进程的线程在公平锁上排队，按到达顺序依次获得 <p>
+     * 2、跨进程则阻塞在文件锁上，由系统在锁释放时唤醒，无需反复尝试 <p>
+     * 注意：用此方法加锁后，unlock时不会删除锁文件，否则正在等待旧文件的进程会和新建文件的进程同时“拿到锁”
+     *
+     * @param timeoutMs 最长等待时间（毫秒）
+     * @return 是否加锁成功
+     */
+    public final synchronized boolean lockTimeWait(long timeoutMs) {
+        if (mFileChannel == null || mFile == null) {
+            return false;
+        }
+        if (timeoutMs <= 0) {
+            timeoutMs = 1;
+        }
+        long begin = System.currentTimeMillis();
+        mWaited = false;
+
+        // 1. 同进程内排队
+        if (!mSlotAcquired) {
+            mSlot = acquireSlot(mFile.getAbsolutePath());
+            mSlotAcquired = true;
+        }
+        ReentrantLock inProcess = mSlot.mLock;
+        try {
+            if (!inProcess.tryLock()) {
+                mWaited = true;
+                if (!inProcess.tryLock(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    onWaitFinished(begin, false);
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onWaitFinished(begin, false);
+            return false;
+        }
+        mSlotHeld = true;
+        if (inProcess.getHoldCount() > 1) {
+            // 外层已持有文件锁（如插件加载过程中又触发了自身的加载），直接放行
+            mReentered = true;
+            return true;
+        }
+
+        // 2. 跨进程：先尝试一次，失败则阻塞等待
+        try {
+            mFileLock = mFileChannel.tryLock();
+        } catch (IOException e) {
+            // java.io.IOException: fcntl failed: EAGAIN (Try again)
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(MAIN_TAG, e.getMessage(), e);
+            }
+        }
+        if (mFileLock == null) {
+            mWaited = true;
+            long remain = timeoutMs - (System.currentTimeMillis() - begin);
+            mFileLock = waitFileLock(mFileChannel, remain);
+        }
+        if (mFileLock == null) {
+            onWaitFinished(begin, false);
+            return false;
+        }
+        if (mWaited) {
+            onWaitFinished(begin, true);
+        }
+        return true;
+    }
+
+    /**
+     * @return 最近一次lockTimeWait是否发生过等待（即有其他线程或进程持有过该锁）
+     */
+    public final synchronized boolean hasWaited() {
+        return mWaited;
+    }
+
+    /**
+     * @return 发生等待的加锁次数
+     */
+    public static long getWaitCount() {
+        return sWaitCount.get();
+    }
+
+    /**
+     * @return 所有等待的总耗时（毫秒）
+     */
+    public static long getWaitTotalMs() {
+        return sWaitTotalMs.get();
+    }
+
+    /**
+     * @return 单次等待的最长耗时（毫秒）
+     */
+    public static long getWaitMaxMs() {
+        return sWaitMaxMs.get();
+    }
+
+    /**
+     * @return 等待超时的次数
+     */
+    public static long getTimeoutCount() {
+        return sTimeoutCount.get();
+    }
+
     /**
      * 加锁
      *
@@ -209,6 +402,12 @@ public final class ProcessLocker {
      * 释放并且删除该锁文件
      */
     public final synchronized void unlock() {
+        if (mSlot != null && mFileLock == null) {
+            // 通过lockTimeWait加锁，但没拿到文件锁（重入或超时）
+            unlockSlotWithoutFileLock();
+            releaseSlot();
+            return;
+        }
         if (mFileLock != null) {
             try {
                 mFileLock.release();
@@ -237,9 +436,212 @@ public final class ProcessLocker {
             }
         }
 
+        if (mSlot != null) {
+            // 文件锁已释放，此时可安全关闭其他线程留下的Channel，然后才让本进程的下一个线程进入
+            // 注意：不删除锁文件，否则正在等待旧文件的进程会和新建文件的进程同时“拿到锁”
+            closePending(mSlot);
+            if (mSlotHeld) {
+                mSlotHeld = false;
+                mSlot.mLock.unlock();
+            }
+            releaseSlot();
+            return;
+        }
+
         // 删除锁文件
         if (mFile != null && mFile.exists()) {
             mFile.delete();
         }
     }
+
+    private void unlockSlotWithoutFileLock() {
+        Slot slot = mSlot;
+        if (mReentered) {
+            // 重入：文件锁由外层持有，Channel交给外层在释放后关闭
+            mReentered = false;
+            mSlotHeld = false;
+            deferClose(slot);
+            slot.mLock.unlock();
+        } else if (mSlotHeld) {
+            // 等待文件锁超时：本进程内无人持有文件锁，可直接关闭
+            mSlotHeld = false;
+            try {
+                closeQuietly(mFileChannel);
+                closeQuietly(mFileOutputStream);
+            } finally {
+                slot.mLock.unlock();
+            }
+        } else if (slot.mLock.tryLock()) {
+            // 本进程内无人持有，可直接关闭
+            try {
+                closeQuietly(mFileChannel);
+                closeQuietly(mFileOutputStream);
+            } finally {
+                slot.mLock.unlock();
+            }
+        } else {
+            deferClose(slot);
+        }
+    }
+
+    private void deferClose(Slot slot) {
+        synchronized (slot.mPendingClose) {
+            if (mFileChannel != null) {
+                slot.mPendingClose.add(mFileChannel);
+            }
+            if (mFileOutputStream != null) {
+                slot.mPendingClose.add(mFileOutputStream);
+            }
+        }
+    }
+
+    private static void closePending(Slot slot) {
+        ArrayList<Closeable> pending;
+        synchronized (slot.mPendingClose) {
+            if (slot.mPendingClose.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(slot.mPendingClose);
+            slot.mPendingClose.clear();
+        }
+        for (Closeable c : pending) {
+            closeQuietly(c);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) {
+            return;
+        }
+        try {
+            c.close();
+        } catch (Throwable e) {
+            // ignore
+        }
+    }
+
+    private static Slot acquireSlot(String path) {
+        synchronized (LOCKER) {
+            Slot slot = SLOTS.get(path);
+            if (slot == null) {
+                slot = new Slot(path);
+                SLOTS.put(path, slot);
+            }
+            slot.mUsers++;
+            return slot;
+        }
+    }
+
+    /**
+     * 不再使用mSlot。若已无人使用，则从SLOTS中移除，以免锁文件很多（如每个插件一个）时只增不减
+     */
+    private void releaseSlot() {
+        if (!mSlotAcquired) {
+            return;
+        }
+        mSlotAcquired = false;
+        synchronized (LOCKER) {
+            if (--mSlot.mUsers == 0 && SLOTS.get(mSlot.mPath) == mSlot) {
+                SLOTS.remove(mSlot.mPath);
+            }
+        }
+    }
+
+    /**
+     * 在工作线程中阻塞获取文件锁，调用线程最多等待timeoutMs毫秒 <p>
+     * 之所以不直接在调用线程上阻塞，是因为FileChannel.lock本身没有超时机制 <p>
+     * 若超时后工作线程才拿到锁，则由其立即释放，不会“泄漏”
+     */
+    private static FileLock waitFileLock(final FileChannel channel, long timeoutMs) {
+        if (timeoutMs <= 0) {
+            return null;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        final FileLock[] result = new FileLock[1];
+        final boolean[] abandoned = new boolean[1];
+        try {
+            getWaiters().execute(new Runnable() {
+                @Override
+                public void run() {
+                    FileLock fl = null;
+                    try {
+                        fl = channel.lock();
+                    } catch (Throwable e) {
+                        // 通常是调用方超时后关闭了Channel，忽略即可
+                    }
+                    synchronized (result) {
+                        if (!abandoned[0]) {
+                            result[0] = fl;
+                            fl = null;
+                        }
+                    }
+                    if (fl != null) {
+                        try {
+                            fl.release();
+                        } catch (Throwable e) {
+                            // ignore
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(MAIN_TAG, "pl.wfl: " + e.getMessage(), e);
+            }
+            return null;
+        }
+
+        boolean interrupted = false;
+        try {
+            latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        synchronized (result) {
+            abandoned[0] = true;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return result[0];
+        }
+    }
+
+    private static ThreadPoolExecutor getWaiters() {
+        synchronized (LOCKER) {
+            if (sWaiters == null) {
+                sWaiters = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mIndex = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "replugin-process-lock-" + mIndex.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return sWaiters;
+        }
+    }
+
+    private void onWaitFinished(long begin, boolean success) {
+        long cost = System.currentTimeMillis() - begin;
+        sWaitCount.incrementAndGet();
+        sWaitTotalMs.addAndGet(cost);
+        long max;
+        while (cost > (max = sWaitMaxMs.get())) {
+            if (sWaitMaxMs.compareAndSet(max, cost)) {
+                break;
+            }
+        }
+        if (!success) {
+            sTimeoutCount.incrementAndGet();
+        }
+        if (LOGR && (!success || cost >= SLOW_WAIT_MS)) {
+            LogRelease.i(TAG, "wait process lock: f=" + mFile.getName() + "; cost=" + cost + "; rc=" + success
+                    + "; total=" + sWaitTotalMs.get() + "/" + sWaitCount.get() + "; timeout=" + sTimeoutCount.get());
+        }
+    }
 }
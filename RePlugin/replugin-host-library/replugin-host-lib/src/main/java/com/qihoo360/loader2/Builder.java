@@ -137,6 +137,20 @@ public class Builder {
             return null;
         }
 
+        /**
+         * @return 内置插件
+         */
+        final ArrayList<PluginInfo> getBuiltins() {
+            return builtins;
+        }
+
+        /**
+         * @return V5单文件插件
+         */
+        final ArrayList<PluginInfo> getV5s() {
+            return v5;
+        }
+
         /**
          * @return
          */
@@ -197,6 +211,17 @@ public class Builder {
         // 搜索所有本地插件和V5插件
         Finder.search(context, all);
 
+        cleanup(context, all, Long.MAX_VALUE);
+
+        // 构建数据
+    }
+
+    /**
+     * 删除不适配的插件，以及和插件表不一致的Dex、SO文件
+     *
+     * @param modifiedBefore 只删除修改时间早于此值的Dex和SO，以免误删“正在释放”的插件。传Long.MAX_VALUE表示不限
+     */
+    static final void cleanup(Context context, PxAll all, long modifiedBefore) {
         // 删除不适配的PLUGINs
         for (PluginInfo p : all.getOthers()) {
             // TODO 如果已存在built-in和V5则不删除
@@ -212,13 +237,11 @@ public class Builder {
         }
 
         // 删除所有和PLUGINs不一致的DEX文件
-        deleteUnknownDexs(context, all);
+        deleteUnknownDexs(context, all, modifiedBefore);
 
         // 删除所有和PLUGINs不一致的SO库目录
         // Added by Jiongxuan Zhang
-        deleteUnknownLibs(context, all);
-
-        // 构建数据
+        deleteUnknownLibs(context, all, modifiedBefore);
     }
 
     private static File getDexDir(Context context) {
@@ -229,7 +252,7 @@ public class Builder {
         }
     }
 
-    private static void deleteUnknownDexs(Context context, PxAll all) {
+    private static void deleteUnknownDexs(Context context, PxAll all, long modifiedBefore) {
         HashSet<String> names = new HashSet<>();
         for (PluginInfo p : all.getPlugins()) {
             names.add(p.getDexFile().getName());
@@ -259,7 +282,7 @@ public class Builder {
         File files[] = dexDir.listFiles();
         if (files != null) {
             for (File f : files) {
-                if (names.contains(f.getName())) {
+                if (names.contains(f.getName()) || f.lastModified() >= modifiedBefore) {
                     if (LOG) {
                         LogDebug.d(PLUGIN_TAG, "no need delete " + f.getAbsolutePath());
                     }
@@ -283,7 +306,7 @@ public class Builder {
         }
     }
 
-    private static void deleteUnknownLibs(Context context, PxAll all) {
+    private static void deleteUnknownLibs(Context context, PxAll all, long modifiedBefore) {
         HashSet<String> names = new HashSet<>();
         for (PluginInfo p : all.getPlugins()) {
             names.add(p.getNativeLibsDir().getName());
@@ -293,7 +316,7 @@ public class Builder {
         File files[] = dir.listFiles();
         if (files != null) {
             for (File f : files) {
-                if (names.contains(f.getName())) {
+                if (names.contains(f.getName()) || f.lastModified() >= modifiedBefore) {
                     continue;
                 }
                 if (LOG) {
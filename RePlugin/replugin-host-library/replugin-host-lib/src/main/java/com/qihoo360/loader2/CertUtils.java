@@ -57,18 +57,8 @@ public class CertUtils {
         }
 
         for (Signature signature : info.signatures) {
-            boolean match = false;
-            String md5 = StringUtils.toHexString(md5NonE(signature.toByteArray()));
-            for (String element : SIGNATURES) {
-                if (TextUtils.equals(md5, element)) {
-                    match = true;
-                    if (LOG) {
-                        LogDebug.i(PLUGIN_TAG, "isPluginSignatures: match. " + md5 + " package=" + info.packageName);
-                    }
-                    break;
-                }
-            }
-            if (!match) {
+            String md5 = getSignatureMd5(signature);
+            if (!isAllowedSignature(md5)) {
                 if (LOG) {
                     LogDebug.e(PLUGIN_TAG, "isPluginSignatures: unknown signature: " + md5 + " package=" + info.packageName);
                 }
@@ -77,11 +67,33 @@ public class CertUtils {
                 }
                 return false;
             }
+            if (LOG) {
+                LogDebug.i(PLUGIN_TAG, "isPluginSignatures: match. " + md5 + " package=" + info.packageName);
+            }
         }
 
         return true;
     }
 
+    /**
+     * @return 签名指纹（MD5），和addCertSignature时传入的格式相同
+     */
+    public static final String getSignatureMd5(Signature signature) {
+        return StringUtils.toHexString(md5NonE(signature.toByteArray()));
+    }
+
+    /**
+     * @return 此签名指纹是否在允许的列表中
+     */
+    public static final boolean isAllowedSignature(String md5) {
+        for (String element : SIGNATURES) {
+            if (TextUtils.equals(md5, element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static final byte[] md5(byte buffer[]) throws NoSuchAlgorithmException {
         MessageDigest digest = MessageDigest.getInstance("MD5");
         digest.update(buffer, 0, buffer.length);
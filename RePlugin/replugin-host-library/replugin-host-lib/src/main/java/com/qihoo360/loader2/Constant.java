@@ -77,6 +77,11 @@ public class Constant {
      */
     public static final String LOCAL_PLUGIN_APK_COVER_DIR = "p_c";
 
+    /**
+     * 插件文件（APK、SO）按内容去重后的存放目录，见PluginBlobStore
+     */
+    public static final String LOCAL_PLUGIN_BLOB_SUB_DIR = "p_blob";
+
     /**
      * 插件extra dex（优化前）释放的以插件名独立隔离的子目录
      * 适用于 android 5.0 以下，5.0以上不会用到该目录
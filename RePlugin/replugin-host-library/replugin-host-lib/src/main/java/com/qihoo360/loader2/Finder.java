@@ -19,10 +19,13 @@ package com.qihoo360.loader2;
 import android.content.Context;
 
 import com.qihoo360.loader2.Builder.PxAll;
+import com.qihoo360.replugin.component.PackageSnapshot;
 import com.qihoo360.replugin.helper.LogDebug;
 import com.qihoo360.replugin.model.PluginInfo;
+import com.qihoo360.replugin.packages.PluginClassIndex;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
 
 import static com.qihoo360.replugin.helper.LogDebug.LOG;
@@ -50,11 +53,28 @@ public class Finder {
             if (LOG) {
                 LogDebug.d(PLUGIN_TAG, "search plugins: dir=" + pluginDir.getAbsolutePath());
             }
-            searchLocalPlugins(pluginDir, all, deleted);
+            ArrayList<PluginInfo> locals = new ArrayList<PluginInfo>();
+            searchLocalPlugins(pluginDir, locals, deleted);
+            for (PluginInfo info : locals) {
+                all.addNormal(info);
+            }
         }
 
         // 删除非插件文件和坏的文件
+        deleteInvalidFiles(deleted, Long.MAX_VALUE);
+    }
+
+    /**
+     * 删除插件目录中的非插件文件和坏的文件
+     *
+     * @param deleted        要删除的文件
+     * @param modifiedBefore 只删除修改时间早于此值的文件，以免误删“正在释放”的插件
+     */
+    static final void deleteInvalidFiles(HashSet<File> deleted, long modifiedBefore) {
         for (File f : deleted) {
+            if (f.lastModified() >= modifiedBefore) {
+                continue;
+            }
             if (LOG) {
                 LogDebug.d(PLUGIN_TAG, "search: delete plugin dir invalid file=" + f.getAbsolutePath());
             }
@@ -68,7 +88,14 @@ public class Finder {
         deleted.clear();
     }
 
-    private static final void searchLocalPlugins(File dir, PxAll all, HashSet<File> others) {
+    /**
+     * 扫描插件目录中已释放的插件。只读取，不修改任何文件
+     *
+     * @param dir     插件目录
+     * @param plugins 扫描到的插件
+     * @param others  非插件文件和坏的文件，可为null
+     */
+    static final void searchLocalPlugins(File dir, ArrayList<PluginInfo> plugins, HashSet<File> others) {
         File files[] = dir.listFiles();
         if (files == null) {
             if (LOG) {
@@ -80,6 +107,13 @@ public class Finder {
             if (f.isDirectory()) {
                 continue;
             }
+            if (isAuxiliaryFile(f)) {
+                // 插件的附属文件（PackageInfo快照、类名索引）由其各自管理，只在对应的插件已不存在时删除
+                if (!getAuxiliaryOwner(f).exists() && others != null) {
+                    others.add(f);
+                }
+                continue;
+            }
             if (f.length() <= 0) {
                 if (LOG) {
                     LogDebug.d(PLUGIN_TAG, "search local plugin: zero length, file=" + f.getAbsolutePath());
@@ -105,8 +139,18 @@ public class Finder {
                 }
                 continue;
             }
-            all.addNormal(info);
+            plugins.add(info);
         }
     }
 
+    private static boolean isAuxiliaryFile(File f) {
+        String name = f.getName();
+        return name.endsWith(PackageSnapshot.SUFFIX) || name.endsWith(PluginClassIndex.SUFFIX);
+    }
+
+    private static File getAuxiliaryOwner(File f) {
+        String path = f.getAbsolutePath();
+        return new File(path.substring(0, path.lastIndexOf('.')));
+    }
+
 }
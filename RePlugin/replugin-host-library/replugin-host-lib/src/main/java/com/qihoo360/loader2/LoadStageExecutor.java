@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import com.qihoo360.replugin.RePlugin;
+import com.qihoo360.replugin.base.IPC;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOADER_TAG;
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件加载（Loader.loadDex）的分阶段执行器 <p>
+ * 一旦PackageInfo确定，“创建Resources”和“创建ClassLoader（释放odex）”这两个阶段互不依赖，
+ * 可交由工作线程并行执行，并在创建PluginContext之前汇合 <p>
+ * 每个阶段都会记录自身的耗时，便于定位首次加载的瓶颈
+ *
+ * @author RePlugin Team
+ */
+final class LoadStageExecutor {
+
+    /**
+     * 工作线程数。同时加载的阶段通常只有一个需要“移出”调用线程，故无需太多
+     */
+    private static final int MAX_WORKERS = 2;
+
+    /**
+     * 工作线程空闲多久后退出（毫秒）
+     */
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    private static final byte[] LOCKER = new byte[0];
+
+    private static ThreadPoolExecutor sExecutor;
+
+    /**
+     * 加载过程中的一个“阶段”。会记录其在哪个线程上执行，以及耗时
+     *
+     * @param <T> 阶段的产物，如Resources、ClassLoader等
+     */
+    abstract static class Stage<T> implements Callable<T> {
+
+        final String mName;
+
+        volatile long mCost = -1;
+
+        volatile String mThread;
+
+        Stage(String name) {
+            mName = name;
+        }
+
+        @Override
+        public final T call() throws Exception {
+            long begin = System.currentTimeMillis();
+            mThread = Thread.currentThread().getName();
+            try {
+                return run();
+            } finally {
+                mCost = System.currentTimeMillis() - begin;
+            }
+        }
+
+        /**
+         * 执行阶段的具体工作
+         *
+         * @return 阶段产物，为null表示失败
+         */
+        abstract T run() throws Exception;
+
+        @Override
+        public String toString() {
+            return mName + "=" + mCost + "ms(" + mThread + ")";
+        }
+    }
+
+    private LoadStageExecutor() {
+        // no instance
+    }
+
+    /**
+     * 将某个阶段放到工作线程中执行。若线程池无法接收，则直接在当前线程执行
+     *
+     * @param stage 要执行的阶段
+     * @return 可用来等待结果的Future对象
+     */
+    static <T> Future<T> submit(Stage<T> stage) {
+        FutureTask<T> task = new FutureTask<>(stage);
+        try {
+            getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            if (LOGR) {
+                LogRelease.w(PLUGIN_TAG, "lse.s: rejected, run inline. st=" + stage.mName);
+            }
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * 等待某个阶段执行完毕（汇合点）
+     *
+     * @param future submit返回的Future对象
+     * @return 阶段产物。若阶段抛出异常或被中断，则返回null
+     */
+    static <T> T join(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // 必须等到阶段结束，否则其产物可能在Loader返回之后才被写入
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "lse.j: " + e.getCause(), e.getCause());
+            }
+            return null;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 输出各个阶段的耗时
+     *
+     * @param plugin 插件名
+     * @param stages 本次执行过的阶段（允许为null，表示命中了缓存而跳过）
+     */
+    static void report(String plugin, Stage<?>... stages) {
+        if (!LOG && !RePlugin.getConfig().isPrintDetailLog()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("load stages: plugin=").append(plugin);
+        for (Stage<?> s : stages) {
+            if (s != null) {
+                sb.append(", ").append(s);
+            }
+        }
+        sb.append(", process=").append(IPC.getCurrentProcessName());
+        if (LOG) {
+            LogDebug.d(LOADER_TAG, sb.toString());
+        } else if (LOGR) {
+            LogRelease.i(LOADER_TAG, sb.toString());
+        }
+    }
+
+    private static ThreadPoolExecutor getExecutor() {
+        synchronized (LOCKER) {
+            if (sExecutor == null) {
+                sExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mIndex = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "replugin-load-stage-" + mIndex.incrementAndGet());
+                    }
+                });
+                sExecutor.allowCoreThreadTimeOut(true);
+            }
+            return sExecutor;
+        }
+    }
+}
@@ -34,10 +34,12 @@ import com.qihoo360.i.Factory;
 import com.qihoo360.i.IModule;
 import com.qihoo360.i.IPlugin;
 import com.qihoo360.mobilesafe.core.BuildConfig;
+import com.qihoo360.mobilesafe.parser.manifest.ManifestComponents;
 import com.qihoo360.mobilesafe.parser.manifest.ManifestParser;
 import com.qihoo360.replugin.RePlugin;
 import com.qihoo360.replugin.base.IPC;
 import com.qihoo360.replugin.component.ComponentList;
+import com.qihoo360.replugin.component.PackageSnapshot;
 import com.qihoo360.replugin.component.process.PluginProcessHost;
 import com.qihoo360.replugin.component.receiver.PluginReceiverProxy;
 import com.qihoo360.replugin.helper.LogDebug;
@@ -49,7 +51,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -59,6 +60,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import static com.qihoo360.replugin.helper.LogDebug.LOADER_TAG;
 import static com.qihoo360.replugin.helper.LogDebug.LOG;
@@ -171,189 +173,92 @@ class Loader {
 
     final boolean loadDex(ClassLoader parent, int load) {
         try {
-            PackageManager pm = mContext.getPackageManager();
+            final PackageManager pm = mContext.getPackageManager();
 
+            // 阶段一：PackageInfo和ComponentList。后续阶段都依赖它，故必须先在当前线程完成
             mPackageInfo = Plugin.queryCachedPackageInfo(mPath);
-            if (mPackageInfo == null) {
-                // PackageInfo
-                mPackageInfo = pm.getPackageArchiveInfo(mPath,
-                        PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES | PackageManager.GET_PROVIDERS | PackageManager.GET_RECEIVERS | PackageManager.GET_META_DATA);
-                if (mPackageInfo == null || mPackageInfo.applicationInfo == null) {
-                    if (LOG) {
-                        LogDebug.d(PLUGIN_TAG, "get package archive info null");
-                    }
-                    mPackageInfo = null;
-                    return false;
-                }
-                if (LOG) {
-                    LogDebug.d(PLUGIN_TAG, "get package archive info, pi=" + mPackageInfo);
-                }
-                mPackageInfo.applicationInfo.sourceDir = mPath;
-                mPackageInfo.applicationInfo.publicSourceDir = mPath;
-
-                if (TextUtils.isEmpty(mPackageInfo.applicationInfo.processName)) {
-                    mPackageInfo.applicationInfo.processName = mPackageInfo.applicationInfo.packageName;
-                }
-
-                // 添加针对SO库的加载
-                // 此属性最终用于ApplicationLoaders.getClassLoader，在创建PathClassLoader时成为其参数
-                // 这样findLibrary可不用覆写，即可直接实现SO的加载
-                // Added by Jiongxuan Zhang
-                PluginInfo pi = mPluginObj.mInfo;
-                File ld = pi.getNativeLibsDir();
-                mPackageInfo.applicationInfo.nativeLibraryDir = ld.getAbsolutePath();
-
-//                // 若PluginInfo.getFrameworkVersion为FRAMEWORK_VERSION_UNKNOWN（p-n才会有），则这里需要读取并修改
-//                if (pi.getFrameworkVersion() == PluginInfo.FRAMEWORK_VERSION_UNKNOWN) {
-//                    pi.setFrameworkVersionByMeta(mPackageInfo.applicationInfo.metaData);
-//                }
-
-                // 缓存表: pkgName -> pluginName
-                synchronized (Plugin.PKG_NAME_2_PLUGIN_NAME) {
-                    Plugin.PKG_NAME_2_PLUGIN_NAME.put(mPackageInfo.packageName, mPluginName);
-                }
-
-                // 缓存表: pluginName -> fileName
-                synchronized (Plugin.PLUGIN_NAME_2_FILENAME) {
-                    Plugin.PLUGIN_NAME_2_FILENAME.put(mPluginName, mPath);
-                }
-
-                // 缓存表: fileName -> PackageInfo
-                synchronized (Plugin.FILENAME_2_PACKAGE_INFO) {
-                    Plugin.FILENAME_2_PACKAGE_INFO.put(mPath, new WeakReference<PackageInfo>(mPackageInfo));
-                }
-            }
-
-            // TODO preload预加载虽然通知到常驻了(但pluginInfo是通过MP.getPlugin(name, true)完全clone出来的)，本进程的PluginInfo并没有得到更新
-            // TODO 因此preload会造成某些插件真正生效时由于cache，造成插件版本号2.0或者以上无法生效。
-            // TODO 这里是临时做法，避免发版前出现重大问题，后面可以修过修改preload的流程来优化
-            // 若PluginInfo.getFrameworkVersion为FRAMEWORK_VERSION_UNKNOWN（p-n才会有），则这里需要读取并修改
-            if (mPluginObj.mInfo.getFrameworkVersion() == PluginInfo.FRAMEWORK_VERSION_UNKNOWN) {
-                mPluginObj.mInfo.setFrameworkVersionByMeta(mPackageInfo.applicationInfo.metaData);
-                // 只有“P-n”插件才会到这里，故无需调用“纯APK”的保存功能
-                // PluginInfoList.save();
-            }
-
-            // 创建或获取ComponentList表
-            // Added by Jiongxuan Zhang
-            mComponents = Plugin.queryCachedComponentList(mPath);
-            if (mComponents == null) {
-                // ComponentList
-                mComponents = new ComponentList(mPackageInfo, mPath, mPluginObj.mInfo);
-
-                // 动态注册插件中声明的 receiver
-                regReceivers();
-
-                // 缓存表：ComponentList
-                synchronized (Plugin.FILENAME_2_COMPONENT_LIST) {
-                    Plugin.FILENAME_2_COMPONENT_LIST.put(mPath, new WeakReference<>(mComponents));
+            LoadStageExecutor.Stage<PackageInfo> infoStage = new LoadStageExecutor.Stage<PackageInfo>("info") {
+                @Override
+                PackageInfo run() throws Exception {
+                    return loadPackageInfoStage(pm) ? mPackageInfo : null;
                 }
-
-                /* 只调整一次 */
-                // 调整插件中组件的进程名称
-                adjustPluginProcess(mPackageInfo.applicationInfo);
-
-                // 调整插件中 Activity 的 TaskAffinity
-                adjustPluginTaskAffinity(mPluginName, mPackageInfo.applicationInfo);
+            };
+            if (infoStage.call() == null) {
+                return false;
             }
 
             if (load == Plugin.LOAD_INFO) {
+                LoadStageExecutor.report(mPluginName, infoStage);
                 return isPackageInfoLoaded();
             }
 
-            mPkgResources = Plugin.queryCachedResources(mPath);
+            // 阶段二：Resources和ClassLoader。两者只依赖PackageInfo，互不依赖
             // LOAD_RESOURCES和LOAD_ALL都会获取资源，但LOAD_INFO不可以（只允许获取PackageInfo）
+            mPkgResources = Plugin.queryCachedResources(mPath);
+            if (load != Plugin.LOAD_RESOURCES) {
+                mClassLoader = Plugin.queryCachedClassLoader(mPath);
+            }
+
+            LoadStageExecutor.Stage<Resources> resStage = null;
             if (mPkgResources == null) {
-                // Resources
-                try {
-                    if (BuildConfig.DEBUG) {
-                        // 如果是Debug模式的话，防止与Instant Run冲突，资源重新New一个
-                        Resources r = pm.getResourcesForApplication(mPackageInfo.applicationInfo);
-                        mPkgResources = new Resources(r.getAssets(), r.getDisplayMetrics(), r.getConfiguration());
-                    } else {
-                        mPkgResources = pm.getResourcesForApplication(mPackageInfo.applicationInfo);
-                    }
-                } catch (NameNotFoundException e) {
-                    if (LOG) {
-                        LogDebug.d(PLUGIN_TAG, e.getMessage(), e);
+                resStage = new LoadStageExecutor.Stage<Resources>("resources") {
+                    @Override
+                    Resources run() throws Exception {
+                        return createResources(pm);
                     }
-                    return false;
-                }
-                if (mPkgResources == null) {
-                    if (LOG) {
-                        LogDebug.d(PLUGIN_TAG, "get resources null");
+                };
+            }
+
+            LoadStageExecutor.Stage<ClassLoader> dexStage = null;
+            if (load != Plugin.LOAD_RESOURCES && mClassLoader == null) {
+                final ClassLoader p = parent;
+                dexStage = new LoadStageExecutor.Stage<ClassLoader>("dex") {
+                    @Override
+                    ClassLoader run() throws Exception {
+                        return createClassLoader(p);
                     }
-                    return false;
+                };
+            }
+
+            Resources r = mPkgResources;
+            ClassLoader cl = mClassLoader;
+            if (resStage != null && dexStage != null && RePlugin.getConfig().isConcurrentLoadStages()) {
+                // 两个阶段都要做：Resources交给工作线程，ClassLoader（通常是最耗时的odex释放）留在当前线程
+                Future<Resources> f = LoadStageExecutor.submit(resStage);
+                cl = dexStage.call();
+                // 汇合：无论ClassLoader是否成功，都要等Resources阶段结束
+                r = LoadStageExecutor.join(f);
+            } else {
+                if (resStage != null) {
+                    r = resStage.call();
                 }
-                if (LOG) {
-                    LogDebug.d(PLUGIN_TAG, "get resources for app, r=" + mPkgResources);
+                if (r != null && dexStage != null) {
+                    cl = dexStage.call();
                 }
+            }
+            LoadStageExecutor.report(mPluginName, infoStage, resStage, dexStage);
 
+            if (r == null) {
+                return false;
+            }
+            if (resStage != null) {
+                mPkgResources = r;
                 // 缓存表: Resources
-                synchronized (Plugin.FILENAME_2_RESOURCES) {
-                    Plugin.FILENAME_2_RESOURCES.put(mPath, new WeakReference<>(mPkgResources));
-                }
+                PluginArtifactCache.put(mPath, PluginArtifactCache.TYPE_RESOURCES, mPkgResources);
             }
             if (load == Plugin.LOAD_RESOURCES) {
                 return isResourcesLoaded();
             }
 
-            mClassLoader = Plugin.queryCachedClassLoader(mPath);
-            if (mClassLoader == null) {
-                // ClassLoader
-                String out = mPluginObj.mInfo.getDexParentDir().getPath();
-                //changeDexMode(out);
-
-                //
-                Log.i("dex", "load " + mPath + " ...");
-                if (BuildConfig.DEBUG) {
-                    // 因为Instant Run会替换parent为IncrementalClassLoader，所以在DEBUG环境里
-                    // 需要替换为BootClassLoader才行
-                    // Added by yangchao-xy & Jiongxuan Zhang
-                    parent = ClassLoader.getSystemClassLoader();
-                } else {
-                    // 线上环境保持不变
-                    parent = getClass().getClassLoader().getParent(); // TODO: 这里直接用父类加载器
-                }
-                String soDir = mPackageInfo.applicationInfo.nativeLibraryDir;
-
-                long begin = 0;
-                boolean isDexExist = false;
-
-                if (LOG) {
-                    begin = System.currentTimeMillis();
-                    File dexFile = mPluginObj.mInfo.getDexFile();
-                    if (dexFile.exists() && dexFile.length() > 0) {
-                        isDexExist = true;
-                    }
-                }
-
-                mClassLoader = RePlugin.getConfig().getCallbacks().createPluginClassLoader(mPluginObj.mInfo, mPath, out, soDir, parent);
-                Log.i("dex", "load " + mPath + " = " + mClassLoader);
-
-                if (mClassLoader == null) {
-                    if (LOG) {
-                        LogDebug.d(PLUGIN_TAG, "get dex null");
-                    }
-                    return false;
-                }
-
-                if (LOG) {
-                    if (!isDexExist) {
-                        Log.d(LOADER_TAG, " --释放DEX, " + "(plugin=" + mPluginName + ", version=" + mPluginObj.mInfo.getVersion() + ")"
-                                + ", use:" + (System.currentTimeMillis() - begin)
-                                + ", process:" + IPC.getCurrentProcessName());
-                    } else {
-                        Log.d(LOADER_TAG, " --无需释放DEX, " + "(plugin=" + mPluginName + ", version=" + mPluginObj.mInfo.getVersion() + ")"
-                                + ", use:" + (System.currentTimeMillis() - begin)
-                                + ", process:" + IPC.getCurrentProcessName());
-                    }
-                }
-
+            if (cl == null) {
+                return false;
+            }
+            if (dexStage != null) {
+                mClassLoader = cl;
                 // 缓存表：ClassLoader
-                synchronized (Plugin.FILENAME_2_DEX) {
-                    Plugin.FILENAME_2_DEX.put(mPath, new WeakReference<>(mClassLoader));
-                }
+                PluginArtifactCache.put(mPath, PluginArtifactCache.TYPE_CLASS_LOADER, mClassLoader);
+                // 反向索引：ClassLoader -> 插件名
+                PluginClassLoaderIndex.put(mClassLoader, mPluginName);
             }
             if (load == Plugin.LOAD_DEX) {
                 return isDexLoaded();
@@ -375,6 +280,197 @@ class Loader {
         return true;
     }
 
+    /**
+     * 加载阶段：获取PackageInfo并创建ComponentList
+     *
+     * @return 是否成功
+     */
+    private boolean loadPackageInfoStage(PackageManager pm) throws android.os.RemoteException {
+        ManifestComponents components = null;
+        if (mPackageInfo == null) {
+            // PackageInfo
+            // 优先读取安装时生成的快照，可省去对整个APK的解析
+            File apk = new File(mPath);
+            PackageSnapshot snapshot = PackageSnapshot.read(apk);
+            if (snapshot != null) {
+                mPackageInfo = snapshot.getPackageInfo();
+                components = snapshot.getComponents();
+            } else {
+                mPackageInfo = pm.getPackageArchiveInfo(mPath, PackageSnapshot.PARSE_FLAGS);
+                if (mPackageInfo == null || mPackageInfo.applicationInfo == null) {
+                    if (LOG) {
+                        LogDebug.d(PLUGIN_TAG, "get package archive info null");
+                    }
+                    mPackageInfo = null;
+                    return false;
+                }
+                // 没有快照（如老版本安装的插件，或系统升级后已失效），则在修改PackageInfo之前补写一份
+                components = ComponentList.getComponentsFromApk(mPath);
+                PackageSnapshot.write(apk, mPackageInfo, components);
+            }
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, "get package archive info, pi=" + mPackageInfo + ", snapshot=" + (snapshot != null));
+            }
+            mPackageInfo.applicationInfo.sourceDir = mPath;
+            mPackageInfo.applicationInfo.publicSourceDir = mPath;
+
+            if (TextUtils.isEmpty(mPackageInfo.applicationInfo.processName)) {
+                mPackageInfo.applicationInfo.processName = mPackageInfo.applicationInfo.packageName;
+            }
+
+            // 添加针对SO库的加载
+            // 此属性最终用于ApplicationLoaders.getClassLoader，在创建PathClassLoader时成为其参数
+            // 这样findLibrary可不用覆写，即可直接实现SO的加载
+            // Added by Jiongxuan Zhang
+            PluginInfo pi = mPluginObj.mInfo;
+            File ld = pi.getNativeLibsDir();
+            mPackageInfo.applicationInfo.nativeLibraryDir = ld.getAbsolutePath();
+
+//            // 若PluginInfo.getFrameworkVersion为FRAMEWORK_VERSION_UNKNOWN（p-n才会有），则这里需要读取并修改
+//            if (pi.getFrameworkVersion() == PluginInfo.FRAMEWORK_VERSION_UNKNOWN) {
+//                pi.setFrameworkVersionByMeta(mPackageInfo.applicationInfo.metaData);
+//            }
+
+            // 缓存表: pkgName -> pluginName
+            synchronized (Plugin.PKG_NAME_2_PLUGIN_NAME) {
+                Plugin.PKG_NAME_2_PLUGIN_NAME.put(mPackageInfo.packageName, mPluginName);
+            }
+
+            // 缓存表: pluginName -> fileName
+            synchronized (Plugin.PLUGIN_NAME_2_FILENAME) {
+                Plugin.PLUGIN_NAME_2_FILENAME.put(mPluginName, mPath);
+            }
+
+            // 缓存表: fileName -> PackageInfo
+            PluginArtifactCache.put(mPath, PluginArtifactCache.TYPE_PACKAGE_INFO, mPackageInfo);
+        }
+
+        // TODO preload预加载虽然通知到常驻了(但pluginInfo是通过MP.getPlugin(name, true)完全clone出来的)，本进程的PluginInfo并没有得到更新
+        // TODO 因此preload会造成某些插件真正生效时由于cache，造成插件版本号2.0或者以上无法生效。
+        // TODO 这里是临时做法，避免发版前出现重大问题，后面可以修过修改preload的流程来优化
+        // 若PluginInfo.getFrameworkVersion为FRAMEWORK_VERSION_UNKNOWN（p-n才会有），则这里需要读取并修改
+        if (mPluginObj.mInfo.getFrameworkVersion() == PluginInfo.FRAMEWORK_VERSION_UNKNOWN) {
+            mPluginObj.mInfo.setFrameworkVersionByMeta(mPackageInfo.applicationInfo.metaData);
+            // 只有“P-n”插件才会到这里，故无需调用“纯APK”的保存功能
+            // PluginInfoList.save();
+        }
+
+        // 创建或获取ComponentList表
+        // Added by Jiongxuan Zhang
+        mComponents = Plugin.queryCachedComponentList(mPath);
+        if (mComponents == null) {
+            // ComponentList
+            mComponents = new ComponentList(mPackageInfo, mPath, mPluginObj.mInfo, components);
+
+            // 动态注册插件中声明的 receiver
+            regReceivers();
+
+            // 缓存表：ComponentList
+            PluginArtifactCache.put(mPath, PluginArtifactCache.TYPE_COMPONENT_LIST, mComponents);
+
+            /* 只调整一次 */
+            // 调整插件中组件的进程名称
+            adjustPluginProcess(mPackageInfo.applicationInfo);
+
+            // 调整插件中 Activity 的 TaskAffinity
+            adjustPluginTaskAffinity(mPluginName, mPackageInfo.applicationInfo);
+        }
+        return true;
+    }
+
+    /**
+     * 加载阶段：创建插件的Resources对象 <p>
+     * 注意：可能运行在工作线程中，故只读取mPackageInfo，不修改Loader的任何字段
+     *
+     * @return 插件的Resources对象，失败则返回null
+     */
+    private Resources createResources(PackageManager pm) {
+        Resources res;
+        try {
+            if (BuildConfig.DEBUG) {
+                // 如果是Debug模式的话，防止与Instant Run冲突，资源重新New一个
+                Resources r = pm.getResourcesForApplication(mPackageInfo.applicationInfo);
+                res = new Resources(r.getAssets(), r.getDisplayMetrics(), r.getConfiguration());
+            } else {
+                res = pm.getResourcesForApplication(mPackageInfo.applicationInfo);
+            }
+        } catch (NameNotFoundException e) {
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, e.getMessage(), e);
+            }
+            return null;
+        }
+        if (res == null) {
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, "get resources null");
+            }
+            return null;
+        }
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "get resources for app, r=" + res);
+        }
+        return res;
+    }
+
+    /**
+     * 加载阶段：创建插件的ClassLoader（首次加载时会释放odex） <p>
+     * 注意：只读取mPackageInfo，不修改Loader的任何字段
+     *
+     * @return 插件的ClassLoader对象，失败则返回null
+     */
+    private ClassLoader createClassLoader(ClassLoader parent) {
+        // ClassLoader
+        String out = mPluginObj.mInfo.getDexParentDir().getPath();
+        //changeDexMode(out);
+
+        //
+        Log.i("dex", "load " + mPath + " ...");
+        if (BuildConfig.DEBUG) {
+            // 因为Instant Run会替换parent为IncrementalClassLoader，所以在DEBUG环境里
+            // 需要替换为BootClassLoader才行
+            // Added by yangchao-xy & Jiongxuan Zhang
+            parent = ClassLoader.getSystemClassLoader();
+        } else {
+            // 线上环境保持不变
+            parent = getClass().getClassLoader().getParent(); // TODO: 这里直接用父类加载器
+        }
+        String soDir = mPackageInfo.applicationInfo.nativeLibraryDir;
+
+        long begin = 0;
+        boolean isDexExist = false;
+
+        if (LOG) {
+            begin = System.currentTimeMillis();
+            File dexFile = mPluginObj.mInfo.getDexFile();
+            if (dexFile.exists() && dexFile.length() > 0) {
+                isDexExist = true;
+            }
+        }
+
+        ClassLoader cl = RePlugin.getConfig().getCallbacks().createPluginClassLoader(mPluginObj.mInfo, mPath, out, soDir, parent);
+        Log.i("dex", "load " + mPath + " = " + cl);
+
+        if (cl == null) {
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, "get dex null");
+            }
+            return null;
+        }
+
+        if (LOG) {
+            if (!isDexExist) {
+                Log.d(LOADER_TAG, " --释放DEX, " + "(plugin=" + mPluginName + ", version=" + mPluginObj.mInfo.getVersion() + ")"
+                        + ", use:" + (System.currentTimeMillis() - begin)
+                        + ", process:" + IPC.getCurrentProcessName());
+            } else {
+                Log.d(LOADER_TAG, " --无需释放DEX, " + "(plugin=" + mPluginName + ", version=" + mPluginObj.mInfo.getVersion() + ")"
+                        + ", use:" + (System.currentTimeMillis() - begin)
+                        + ", process:" + IPC.getCurrentProcessName());
+            }
+        }
+        return cl;
+    }
+
     /**
      * 动态注册插件中静态声明的 receiver 到常驻进程
      *
@@ -260,6 +260,80 @@ public class MP {
         return null;
     }
 
+    /**
+     * 批量安装插件。“纯APK”插件会在常驻进程中一次性安装，插件信息只保存一次
+     *
+     * @param paths 插件路径列表
+     * @return 和paths一一对应的安装结果，失败的为null
+     */
+    public static final List<PluginInfo> pluginsDownloaded(List<String> paths) {
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "MP.pluginsDownloaded ... paths=" + paths);
+        }
+
+        // p-n插件需要加锁（见pluginDownloaded），故仍逐个安装
+        PluginInfo[] result = new PluginInfo[paths.size()];
+        ArrayList<String> others = new ArrayList<>(paths.size());
+        ArrayList<Integer> otherIndexes = new ArrayList<>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            if (path != null && new File(path).getName().startsWith("p-n-")) {
+                result[i] = pluginDownloaded(path);
+            } else {
+                others.add(path);
+                otherIndexes.add(i);
+            }
+        }
+
+        if (!others.isEmpty()) {
+            try {
+                List<PluginInfo> installed = PluginProcessMain.getPluginHost().pluginsDownloaded(others);
+                for (int i = 0; installed != null && i < installed.size() && i < otherIndexes.size(); i++) {
+                    PluginInfo info = installed.get(i);
+                    if (info != null) {
+                        RePlugin.getConfig().getEventCallbacks().onInstallPluginSucceed(info);
+                    }
+                    result[otherIndexes.get(i)] = info;
+                }
+            } catch (Throwable e) {
+                if (LOGR) {
+                    LogRelease.e(PLUGIN_TAG, "mp.psded: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        ArrayList<PluginInfo> list = new ArrayList<>(result.length);
+        for (PluginInfo info : result) {
+            list.add(info);
+        }
+        return list;
+    }
+
+    /**
+     * 根据增量包安装插件的新版本（只支持“纯APK”插件）
+     *
+     * @param pluginName 插件名
+     * @param patchPath  增量包的路径
+     * @return 安装成功的插件信息；失败则返回null
+     */
+    public static final PluginInfo pluginPatchDownloaded(String pluginName, String patchPath) {
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "MP.pluginPatchDownloaded ... pn=" + pluginName + "; path=" + patchPath);
+        }
+        try {
+            PluginInfo info = PluginProcessMain.getPluginHost().pluginPatchDownloaded(pluginName, patchPath);
+            if (info != null) {
+                RePlugin.getConfig().getEventCallbacks().onInstallPluginSucceed(info);
+            }
+            return info;
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "mp.ppded: " + e.getMessage(), e);
+            }
+        }
+        return null;
+    }
+
     /**
      * 插件卸载
      * 判断插件是否已安装：插件未安装，不做处理
@@ -30,6 +30,7 @@ import com.qihoo360.i.IModule;
 import com.qihoo360.i.IPlugin;
 import com.qihoo360.loader.utils.ProcessLocker;
 import com.qihoo360.mobilesafe.api.Tasks;
+import com.qihoo360.mobilesafe.core.BuildConfig;
 import com.qihoo360.replugin.RePlugin;
 import com.qihoo360.replugin.component.ComponentList;
 import com.qihoo360.replugin.component.app.PluginApplicationClient;
@@ -37,6 +38,7 @@ import com.qihoo360.replugin.helper.LogDebug;
 import com.qihoo360.replugin.helper.LogRelease;
 import com.qihoo360.replugin.model.PluginInfo;
 import com.qihoo360.replugin.packages.PluginManagerProxy;
+import com.qihoo360.replugin.packages.PluginPrewarmer;
 import com.qihoo360.replugin.utils.AssetsUtils;
 import com.qihoo360.replugin.utils.FileUtils;
 
@@ -44,7 +46,6 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -72,6 +73,11 @@ class Plugin {
     // 加载插件信息、资源、Dex，并运行Entry类
     static final int LOAD_APP = 3;
 
+    /**
+     * 加载插件时，等待进程锁的最长时间（毫秒）
+     */
+    private static final long LOAD_LOCK_TIMEOUT = 5000;
+
     /**
      * 专门针对LoadEntry（见方法）的锁
      */
@@ -87,26 +93,6 @@ class Plugin {
      */
     static final HashMap<String, String> PLUGIN_NAME_2_FILENAME = new HashMap<>();
 
-    /**
-     *
-     */
-    static final HashMap<String, WeakReference<ClassLoader>> FILENAME_2_DEX = new HashMap<>();
-
-    /**
-     *
-     */
-    static final HashMap<String, WeakReference<Resources>> FILENAME_2_RESOURCES = new HashMap<>();
-
-    /**
-     *
-     */
-    static final HashMap<String, WeakReference<PackageInfo>> FILENAME_2_PACKAGE_INFO = new HashMap<>();
-
-    /**
-     *
-     */
-    static final HashMap<String, WeakReference<ComponentList>> FILENAME_2_COMPONENT_LIST = new HashMap<>();
-
     /**
      * 调试用
      */
@@ -181,6 +167,59 @@ class Plugin {
         return new Plugin(info);
     }
 
+    /**
+     * 只释放并优化插件的Dex（dex2oat），不创建Loader，也不会将插件标记为“正在运行” <p>
+     * 和loadLocked使用同一把进程锁，避免与插件的正常加载同时写入odex
+     *
+     * @param c  Context对象
+     * @param pi 插件信息
+     * @return 是否成功
+     */
+    static final boolean optimizeDex(Context c, PluginInfo pi) {
+        if (pi.isDexExtracted()) {
+            return true;
+        }
+        File apk = pi.getApkFile();
+        if (!apk.exists()) {
+            if (LOG) {
+                LogDebug.e(PLUGIN_TAG, "optimizeDex: apk not found. pi=" + pi);
+            }
+            return false;
+        }
+
+        ClassLoader parent;
+        if (BuildConfig.DEBUG) {
+            // 同Loader：防止Instant Run替换parent
+            parent = ClassLoader.getSystemClassLoader();
+        } else {
+            parent = Plugin.class.getClassLoader().getParent();
+        }
+
+        String lockFileName = String.format(Constant.LOAD_PLUGIN_LOCK, apk.getName());
+        ProcessLocker lock = new ProcessLocker(c, lockFileName);
+        if (!lock.lockTimeWait(LOAD_LOCK_TIMEOUT)) {
+            if (LOGR) {
+                LogRelease.w(PLUGIN_TAG, "optimizeDex: failed to lock. pn=" + pi.getName());
+            }
+        }
+        long begin = System.currentTimeMillis();
+        ClassLoader cl = null;
+        try {
+            cl = RePlugin.getConfig().getCallbacks().createPluginClassLoader(pi, apk.getAbsolutePath(),
+                    pi.getDexParentDir().getPath(), pi.getNativeLibsDir().getAbsolutePath(), parent);
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "p.od: " + e.getMessage(), e);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (LOGR) {
+            LogRelease.i(PLUGIN_TAG, "optimizeDex: pn=" + pi.getName() + "; ver=" + pi.getVersion() + "; rc=" + (cl != null) + "; cost=" + (System.currentTimeMillis() - begin));
+        }
+        return cl != null;
+    }
+
     static final Plugin cloneAndReattach(Context c, Plugin p, ClassLoader parent, PluginCommImpl pm) {
         if (p == null) {
             return null;
@@ -216,134 +255,23 @@ class Plugin {
     }
 
     static final ClassLoader queryCachedClassLoader(String filename) {
-        ClassLoader dex = null;
-        if (!TextUtils.isEmpty(filename)) {
-            synchronized (FILENAME_2_DEX) {
-                WeakReference<ClassLoader> ref = FILENAME_2_DEX.get(filename);
-                if (ref != null) {
-                    dex = ref.get();
-                    if (dex == null) {
-                        FILENAME_2_DEX.remove(filename);
-                    }
-                    if (LOG) {
-                        LogDebug.d(PLUGIN_TAG, "cached Dex " + filename + " -> " + dex);
-                    }
-                }
-            }
-        }
-        return dex;
+        return PluginArtifactCache.get(filename, PluginArtifactCache.TYPE_CLASS_LOADER);
     }
 
     static final Resources queryCachedResources(String filename) {
-        Resources resources = null;
-        if (!TextUtils.isEmpty(filename)) {
-            synchronized (FILENAME_2_RESOURCES) {
-                WeakReference<Resources> ref = FILENAME_2_RESOURCES.get(filename);
-                if (ref != null) {
-                    resources = ref.get();
-                    if (resources == null) {
-                        FILENAME_2_RESOURCES.remove(filename);
-                    }
-                    if (LOG) {
-                        LogDebug.d(PLUGIN_TAG, "cached Resources " + filename + " -> " + resources);
-                    }
-                }
-            }
-        }
-        return resources;
+        return PluginArtifactCache.get(filename, PluginArtifactCache.TYPE_RESOURCES);
     }
 
     static final PackageInfo queryCachedPackageInfo(String filename) {
-        PackageInfo packageInfo = null;
-        if (!TextUtils.isEmpty(filename)) {
-            synchronized (FILENAME_2_PACKAGE_INFO) {
-                WeakReference<PackageInfo> ref = FILENAME_2_PACKAGE_INFO.get(filename);
-                if (ref != null) {
-                    packageInfo = ref.get();
-                    if (packageInfo == null) {
-                        FILENAME_2_PACKAGE_INFO.remove(filename);
-                    }
-                    if (LOG) {
-                        LogDebug.d(PLUGIN_TAG, "cached packageInfo " + filename + " -> " + packageInfo);
-                    }
-                }
-            }
-        }
-        return packageInfo;
+        return PluginArtifactCache.get(filename, PluginArtifactCache.TYPE_PACKAGE_INFO);
     }
 
     static final ComponentList queryCachedComponentList(String filename) {
-        ComponentList cl = null;
-        if (!TextUtils.isEmpty(filename)) {
-            synchronized (FILENAME_2_COMPONENT_LIST) {
-                WeakReference<ComponentList> ref = FILENAME_2_COMPONENT_LIST.get(filename);
-                if (ref != null) {
-                    cl = ref.get();
-                    if (cl == null) {
-                        FILENAME_2_COMPONENT_LIST.remove(filename);
-                    }
-                    if (LOG) {
-                        LogDebug.d(PLUGIN_TAG, "cached componentList " + filename + " -> " + cl);
-                    }
-                }
-            }
-        }
-        return cl;
+        return PluginArtifactCache.get(filename, PluginArtifactCache.TYPE_COMPONENT_LIST);
     }
 
-    static final void clearCachedPlugin(String filename) {
-        if (TextUtils.isEmpty(filename)) {
-            return;
-        }
-
-        ClassLoader dex = null;
-        synchronized (FILENAME_2_DEX) {
-            WeakReference<ClassLoader> ref = FILENAME_2_DEX.get(filename);
-            if (ref != null) {
-                dex = ref.get();
-                FILENAME_2_DEX.remove(filename);
-                if (LOG) {
-                    LogDebug.d(PLUGIN_TAG, "clear Cached Dex " + filename + " -> " + dex);
-                }
-            }
-        }
-
-        Resources resources = null;
-        synchronized (FILENAME_2_RESOURCES) {
-            WeakReference<Resources> ref = FILENAME_2_RESOURCES.get(filename);
-            if (ref != null) {
-                resources = ref.get();
-                FILENAME_2_RESOURCES.remove(filename);
-                if (LOG) {
-                    LogDebug.d(PLUGIN_TAG, "clear Cached Resources " + filename + " -> " + resources);
-                }
-            }
-        }
-
-        PackageInfo packageInfo = null;
-        synchronized (FILENAME_2_PACKAGE_INFO) {
-            WeakReference<PackageInfo> ref = FILENAME_2_PACKAGE_INFO.get(filename);
-            if (ref != null) {
-                packageInfo = ref.get();
-                FILENAME_2_PACKAGE_INFO.remove(filename);
-                if (LOG) {
-                    LogDebug.d(PLUGIN_TAG, "clear Cached packageInfo " + filename + " -> " + packageInfo);
-                }
-            }
-        }
-
-        ComponentList cl = null;
-        synchronized (FILENAME_2_COMPONENT_LIST) {
-            WeakReference<ComponentList> ref = FILENAME_2_COMPONENT_LIST.get(filename);
-            if (ref != null) {
-                cl = ref.get();
-                FILENAME_2_COMPONENT_LIST.remove(filename);
-                if (LOG) {
-                    LogDebug.d(PLUGIN_TAG, "clear Cached componentList " + filename + " -> " + cl);
-                }
-            }
-        }
-
+    static final long clearCachedPlugin(String filename) {
+        return PluginArtifactCache.remove(filename);
     }
 
     static final void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
@@ -353,21 +281,8 @@ class Plugin {
             for (String name : PLUGIN_NAME_2_FILENAME.keySet()) {
                 writer.println(name + ": " + PLUGIN_NAME_2_FILENAME.get(name));
             }
-            writer.println("--- cached plugin Resources ---");
-            // 懒得锁了
-            for (String name : FILENAME_2_RESOURCES.keySet()) {
-                writer.println(name + ": " + FILENAME_2_RESOURCES.get(name));
-            }
-            writer.println("--- cached plugin PackageInfo ---");
-            // 懒得锁了
-            for (String name : FILENAME_2_PACKAGE_INFO.keySet()) {
-                writer.println(name + ": " + FILENAME_2_PACKAGE_INFO.get(name));
-            }
-            writer.println("--- cached plugin ComponentList ---");
-            // 懒得锁了
-            for (String name : FILENAME_2_COMPONENT_LIST.keySet()) {
-                writer.println(name + ": " + FILENAME_2_COMPONENT_LIST.get(name));
-            }
+            PluginArtifactCache.dump(writer);
+            PluginMemoryGovernor.dump(writer);
         }
     }
 
@@ -442,6 +357,15 @@ class Plugin {
         // Added by Jiongxuan Zhang
         if (load == LOAD_APP && rc) {
             callApp();
+
+            // 插件已运行，钉住其Resources、ClassLoader等产物，内存紧张时也不淘汰
+            PluginArtifactCache.pin(queryCachedFilename(mInfo.getName()));
+
+            // 记录插件的使用情况，以便下次预热
+            PluginPrewarmer.onPluginLaunched(mInfo.getName());
+
+            // 计入本进程的插件内存占用，空闲且超出预算时可被移出
+            PluginMemoryGovernor.onPluginLaunched(mInfo);
         }
         // 如果info改了，通知一下常驻
         // 只针对P-n的Type转化来处理，一定要通知，这样Framework_Version也会得到更新
@@ -618,11 +542,19 @@ class Plugin {
         if (LOG) {
             LogDebug.i(PLUGIN_TAG, "loadLocked(): Ready to lock! logtag = " + logTag + "; pn = " + mInfo.getName());
         }
-        if (!lock.tryLockTimeWait(5000, 10)) {
+        if (!lock.lockTimeWait(LOAD_LOCK_TIMEOUT)) {
             // 此处仅仅打印错误
             if (LOGR) {
                 LogRelease.w(PLUGIN_TAG, logTag + ": failed to lock: can't wait plugin ready");
             }
+        } else if (useCache && lock.hasWaited() && loadByCache(load)) {
+            // 等锁期间，同进程的其它线程已加载完毕，直接复用其结果，无需再次释放和优化Dex
+            // 注意：其它进程的“释放”结果（odex、so等）已落盘，doLoad时会直接使用
+            lock.unlock();
+            if (LOG) {
+                LogDebug.i(PLUGIN_TAG, "loadLocked(): Reuse result after waiting! pn = " + mInfo.getName());
+            }
+            return true;
         }
         //
         long t1 = System.currentTimeMillis();
@@ -664,7 +596,7 @@ class Plugin {
         //
         logTag = "try2";
         lock = new ProcessLocker(context, lockFileName);
-        if (!lock.tryLockTimeWait(5000, 10)) {
+        if (!lock.lockTimeWait(LOAD_LOCK_TIMEOUT)) {
             // 此处仅仅打印错误
             if (LOGR) {
                 LogRelease.w(PLUGIN_TAG, logTag + ": failed to lock: can't wait plugin ready");
@@ -729,12 +661,18 @@ class Plugin {
     }
 
     final IModule query(Class<? extends IModule> c) {
-        return mLoader.mPlugin.query(c);
+        IModule m = mLoader.mPlugin.query(c);
+        // 在用的IModule会阻止插件被移出内存
+        PluginBinderTracker.track(mInfo.getName(), m);
+        return m;
     }
 
     final IBinder query(String binder) {
         try {
-            return mLoader.mBinderPlugin.mPlugin.query(binder);
+            IBinder b = mLoader.mBinderPlugin.mPlugin.query(binder);
+            // 在用的Binder会阻止插件被移出内存
+            PluginBinderTracker.track(mInfo.getName(), b);
+            return b;
         } catch (Throwable e) {
             if (LOGR) {
                 LogRelease.e(PLUGIN_TAG, "q.b.e.m" + e.getMessage(), e);
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import android.content.ComponentCallbacks2;
+import android.text.TextUtils;
+
+import com.qihoo360.replugin.RePlugin;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件“加载产物”（PackageInfo、ComponentList、Resources、ClassLoader）的进程内缓存 <p>
+ * 1、正在运行的插件（已执行过LOAD_APP）会被“钉住”，其产物不会被淘汰 <p>
+ * 2、其余插件按LRU排序，总的估算大小超出预算（见RePluginConfig.setPluginCacheBudget）时，从最久未用的开始淘汰 <p>
+ * 3、收到onTrimMemory时，按内存紧张程度主动淘汰 <p>
+ * 被淘汰的产物会降级为弱引用：只要还有人持有（如尚未销毁的Activity），仍可被再次命中，和以前的WeakReference表行为一致
+ *
+ * @author RePlugin Team
+ */
+public final class PluginArtifactCache {
+
+    private static final String TAG = "PluginArtifactCache";
+
+    static final int TYPE_PACKAGE_INFO = 0;
+
+    static final int TYPE_COMPONENT_LIST = 1;
+
+    static final int TYPE_RESOURCES = 2;
+
+    static final int TYPE_CLASS_LOADER = 3;
+
+    private static final int TYPE_COUNT = 4;
+
+    private static final String[] TYPE_NAMES = {"PackageInfo", "ComponentList", "Resources", "ClassLoader"};
+
+    /**
+     * PackageInfo和ComponentList的估算大小（字节）。两者只是些组件信息，远小于Resources和ClassLoader
+     */
+    private static final long INFO_BYTES = 16 * 1024;
+
+    private static final byte[] LOCKER = new byte[0];
+
+    /**
+     * 插件文件名 -> 缓存项。按访问顺序排列，最久未用的在最前面
+     */
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 当前“强引用”着的产物的估算总大小
+     */
+    private static long sBytes;
+
+    private static long sHitCount;
+
+    private static long sMissCount;
+
+    private static long sEvictionCount;
+
+    /**
+     * 同一插件文件的所有产物
+     */
+    private static final class Entry {
+
+        final String mFilename;
+
+        /**
+         * 插件APK的大小，用来粗略估算Resources和ClassLoader的内存占用
+         */
+        final long mApkSize;
+
+        final Object[] mStrong = new Object[TYPE_COUNT];
+
+        final WeakReference<?>[] mWeak = new WeakReference<?>[TYPE_COUNT];
+
+        boolean mPinned;
+
+        Entry(String filename, long apkSize) {
+            mFilename = filename;
+            mApkSize = apkSize;
+        }
+
+        long bytesOf(int type) {
+            return type == TYPE_RESOURCES || type == TYPE_CLASS_LOADER ? mApkSize : INFO_BYTES;
+        }
+
+        long strongBytes() {
+            long bytes = 0;
+            for (int i = 0; i < TYPE_COUNT; i++) {
+                if (mStrong[i] != null) {
+                    bytes += bytesOf(i);
+                }
+            }
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mFilename).append(": pinned=").append(mPinned).append(", bytes=").append(strongBytes());
+            for (int i = 0; i < TYPE_COUNT; i++) {
+                Object o = mWeak[i] != null ? mWeak[i].get() : null;
+                sb.append(", ").append(TYPE_NAMES[i]).append('=').append(mStrong[i] != null ? "strong" : (o != null ? "weak" : "null"));
+            }
+            return sb.toString();
+        }
+    }
+
+    private PluginArtifactCache() {
+        // no instance
+    }
+
+    /**
+     * 获取插件的某个加载产物
+     *
+     * @param filename 插件文件名
+     * @param type     见TYPE_XXX
+     * @return 缓存的对象，没有则返回null
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T get(String filename, int type) {
+        if (TextUtils.isEmpty(filename)) {
+            return null;
+        }
+        Object o = null;
+        synchronized (LOCKER) {
+            Entry e = ENTRIES.get(filename);
+            if (e != null) {
+                o = e.mStrong[type];
+                if (o == null && e.mWeak[type] != null) {
+                    // 已被淘汰，但还有人在用。既然又用到了，则重新“转正”
+                    o = e.mWeak[type].get();
+                    if (o != null) {
+                        e.mStrong[type] = o;
+                        sBytes += e.bytesOf(type);
+                        trimToSizeLocked(getBudget());
+                    } else {
+                        e.mWeak[type] = null;
+                    }
+                }
+            }
+            if (o != null) {
+                sHitCount++;
+            } else {
+                sMissCount++;
+            }
+        }
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "cached " + TYPE_NAMES[type] + " " + filename + " -> " + o);
+        }
+        return (T) o;
+    }
+
+    /**
+     * 缓存插件的某个加载产物
+     *
+     * @param filename 插件文件名
+     * @param type     见TYPE_XXX
+     * @param o        要缓存的对象
+     */
+    static void put(String filename, int type, Object o) {
+        if (TextUtils.isEmpty(filename) || o == null) {
+            return;
+        }
+        PluginMemoryTrimmer.registerCallbacksIfNeeded();
+
+        // 文件大小放在锁外读取，避免IO阻塞其它线程的查询
+        long apkSize = new File(filename).length();
+        synchronized (LOCKER) {
+            Entry e = ENTRIES.get(filename);
+            if (e == null) {
+                e = new Entry(filename, apkSize);
+                ENTRIES.put(filename, e);
+            }
+            if (e.mStrong[type] == null) {
+                sBytes += e.bytesOf(type);
+            }
+            e.mStrong[type] = o;
+            e.mWeak[type] = new WeakReference<>(o);
+            trimToSizeLocked(getBudget());
+        }
+    }
+
+    /**
+     * 钉住插件的所有产物，使其不会被淘汰。通常在插件“运行”（LOAD_APP）后调用
+     */
+    static void pin(String filename) {
+        setPinned(filename, true);
+    }
+
+    /**
+     * 取消钉住。产物仍会保留，但会参与LRU淘汰
+     */
+    static void unpin(String filename) {
+        setPinned(filename, false);
+    }
+
+    private static void setPinned(String filename, boolean pinned) {
+        if (TextUtils.isEmpty(filename)) {
+            return;
+        }
+        synchronized (LOCKER) {
+            Entry e = ENTRIES.get(filename);
+            if (e == null) {
+                return;
+            }
+            e.mPinned = pinned;
+            if (!pinned) {
+                trimToSizeLocked(getBudget());
+            }
+        }
+        if (LOG) {
+            LogDebug.d(TAG, "setPinned: " + filename + " -> " + pinned);
+        }
+    }
+
+    /**
+     * 移除插件的所有产物（如插件被卸载、更新，或被移出内存时）
+     *
+     * @return 移除的产物所估算的内存占用（字节）
+     */
+    static long remove(String filename) {
+        if (TextUtils.isEmpty(filename)) {
+            return 0;
+        }
+        Entry e;
+        long bytes = 0;
+        ClassLoader cl = null;
+        synchronized (LOCKER) {
+            e = ENTRIES.remove(filename);
+            if (e != null) {
+                bytes = e.strongBytes();
+                sBytes -= bytes;
+                cl = (ClassLoader) e.mStrong[TYPE_CLASS_LOADER];
+                if (cl == null && e.mWeak[TYPE_CLASS_LOADER] != null) {
+                    cl = (ClassLoader) e.mWeak[TYPE_CLASS_LOADER].get();
+                }
+            }
+        }
+        // ClassLoader已被丢弃，其中的类不再算作插件的
+        PluginClassLoaderIndex.remove(cl);
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "clear cached plugin: " + e);
+        }
+        return bytes;
+    }
+
+    /**
+     * 根据系统的内存紧张程度，淘汰未钉住的产物 <p>
+     * 由PluginMemoryTrimmer统一通知，无需外界调用
+     *
+     * @param level 见ComponentCallbacks2.TRIM_MEMORY_XXX
+     */
+    public static void onTrimMemory(int level) {
+        long target;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // 已在后台LRU列表的中后部，随时可能被杀，只留下正在运行的插件
+            target = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            target = getBudget() / 2;
+        } else {
+            // TRIM_MEMORY_UI_HIDDEN、TRIM_MEMORY_RUNNING_MODERATE等，暂不处理
+            return;
+        }
+        int evicted;
+        synchronized (LOCKER) {
+            evicted = trimToSizeLocked(target);
+        }
+        if (LOGR) {
+            LogRelease.i(PLUGIN_TAG, "pac.otm: level=" + level + "; evicted=" + evicted + "; bytes=" + getCachedBytes());
+        }
+    }
+
+    /**
+     * @return 缓存命中次数
+     */
+    public static long getHitCount() {
+        synchronized (LOCKER) {
+            return sHitCount;
+        }
+    }
+
+    /**
+     * @return 缓存未命中次数
+     */
+    public static long getMissCount() {
+        synchronized (LOCKER) {
+            return sMissCount;
+        }
+    }
+
+    /**
+     * @return 因超出预算或内存紧张而被淘汰的插件次数
+     */
+    public static long getEvictionCount() {
+        synchronized (LOCKER) {
+            return sEvictionCount;
+        }
+    }
+
+    /**
+     * @return 当前强引用着的产物的估算总大小（字节）
+     */
+    public static long getCachedBytes() {
+        synchronized (LOCKER) {
+            return sBytes;
+        }
+    }
+
+    static void dump(PrintWriter writer) {
+        synchronized (LOCKER) {
+            writer.println("--- cached plugin artifacts ---");
+            writer.println("bytes=" + sBytes + "; budget=" + getBudget() + "; hit=" + sHitCount + "; miss=" + sMissCount + "; eviction=" + sEvictionCount);
+            for (Entry e : ENTRIES.values()) {
+                writer.println(e);
+            }
+        }
+    }
+
+    /**
+     * 从最久未用的开始，将未钉住的产物降级为弱引用，直到总大小不超过目标值
+     *
+     * @return 本次淘汰的插件数
+     */
+    private static int trimToSizeLocked(long target) {
+        int evicted = 0;
+        Iterator<Map.Entry<String, Entry>> it = ENTRIES.entrySet().iterator();
+        while (sBytes > target && it.hasNext()) {
+            Entry e = it.next().getValue();
+            long bytes = e.strongBytes();
+            if (e.mPinned || bytes == 0) {
+                continue;
+            }
+            for (int i = 0; i < TYPE_COUNT; i++) {
+                e.mStrong[i] = null;
+            }
+            sBytes -= bytes;
+            sEvictionCount++;
+            evicted++;
+            if (LOG) {
+                LogDebug.d(TAG, "trimToSize: evict " + e.mFilename + "; bytes=" + bytes + "; remain=" + sBytes + "; target=" + target);
+            }
+        }
+
+        // 顺便清理掉“弱引用也已失效”的项，避免表无限增长
+        // 注意：仅降级为弱引用的ClassLoader可能仍被已加载（LOAD_DEX）的插件使用，故不能从PluginClassLoaderIndex中移除
+        boolean dropped = false;
+        it = ENTRIES.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next().getValue();
+            if (!e.mPinned && e.strongBytes() == 0 && !hasLiveWeak(e)) {
+                it.remove();
+                dropped = true;
+            }
+        }
+        if (dropped) {
+            // 这些ClassLoader已被回收，一并清掉反向索引中的记录
+            PluginClassLoaderIndex.expungeStaleEntries();
+        }
+        return evicted;
+    }
+
+    private static boolean hasLiveWeak(Entry e) {
+        for (WeakReference<?> ref : e.mWeak) {
+            if (ref != null && ref.get() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getBudget() {
+        return PluginMemoryTrimmer.getBudget(RePlugin.getConfig().getPluginCacheBudget(), 8);
+    }
+}
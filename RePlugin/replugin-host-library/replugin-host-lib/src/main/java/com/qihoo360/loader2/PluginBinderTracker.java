@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 记录本进程中各插件“交出去”的Binder和IModule（如通过fetchBinder、IPlugin.query获取的） <p>
+ * 只持有弱引用：只要调用方（含其它进程，Binder会被跨进程引用着）还在用，对象就不会被回收，插件就不能被移出内存（见PmBase.unloadPlugin） <p>
+ * 注意：对象在不再被引用后，要等到下次GC才会被认为“已释放”
+ *
+ * @author RePlugin Team
+ */
+final class PluginBinderTracker {
+
+    private static final byte[] LOCKER = new byte[0];
+
+    /**
+     * 插件名 -> 交出去的对象
+     */
+    private static final HashMap<String, List<WeakReference<Object>>> OBJECTS = new HashMap<>();
+
+    private PluginBinderTracker() {
+        // no instance
+    }
+
+    /**
+     * 记录插件交出去的对象
+     *
+     * @param pluginName 插件名
+     * @param o          Binder或IModule。为null时忽略
+     */
+    static void track(String pluginName, Object o) {
+        if (pluginName == null || o == null) {
+            return;
+        }
+        synchronized (LOCKER) {
+            List<WeakReference<Object>> refs = OBJECTS.get(pluginName);
+            if (refs == null) {
+                refs = new ArrayList<>(2);
+                OBJECTS.put(pluginName, refs);
+            }
+            for (WeakReference<Object> ref : refs) {
+                if (ref.get() == o) {
+                    // 同一个对象只记一次
+                    return;
+                }
+            }
+            refs.add(new WeakReference<>(o));
+        }
+    }
+
+    /**
+     * @return 插件交出去的对象中，是否还有未被回收的
+     */
+    static boolean hasLive(String pluginName) {
+        synchronized (LOCKER) {
+            List<WeakReference<Object>> refs = OBJECTS.get(pluginName);
+            if (refs == null) {
+                return false;
+            }
+            Iterator<WeakReference<Object>> it = refs.iterator();
+            while (it.hasNext()) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            if (refs.isEmpty()) {
+                OBJECTS.remove(pluginName);
+                return false;
+            }
+            return true;
+        }
+    }
+}
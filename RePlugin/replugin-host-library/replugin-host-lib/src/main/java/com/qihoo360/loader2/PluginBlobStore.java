@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import com.qihoo360.loader.utils.StringUtils;
+import com.qihoo360.replugin.RePluginInternal;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+import com.qihoo360.replugin.utils.FileUtils;
+import com.qihoo360.replugin.utils.basic.SecurityUtil;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件文件（APK、SO）的“按内容寻址”存储，用来让内容相同的文件只占用一份磁盘空间 <p>
+ * 1、存储目录（app_p_blob）下的每个文件以其SHA-256命名，和插件目录中内容相同的文件互为“硬链接”（同一个inode） <p>
+ * 2、引用计数即文件的链接数（st_nlink）：插件文件被删除时自动减一，无需额外记录。只剩存储目录自己引用的，由gc删除 <p>
+ * 3、放入存储的文件会被设为只读（同一inode，插件目录中的各个链接也随之只读），原地改写会直接失败而不会破坏共享的内容。 <p>
+ * 复用已有文件前须确认它仍是只读的；不是只读的（如旧版本放入的）须重新校验SHA-256，不符的从存储中移除 <p>
+ * 4、插件目录中的文件只能“整体替换”（写临时文件后改名，见FileUtils.copyFile），不能原地修改 <p>
+ * 5、硬链接需要API 21（Os.link），以下版本直接跳过，文件保持原样 <p>
+ * 各操作均可在多个进程中同时进行：只有链接成功后才会替换原文件，失败时原文件不受影响
+ *
+ * @author RePlugin Team
+ */
+public final class PluginBlobStore {
+
+    private static final String TAG = "PluginBlobStore";
+
+    private static final String TMP_SUFFIX = ".blob.tmp";
+
+    /**
+     * 各类用户的写权限（S_IWUSR | S_IWGRP | S_IWOTH）。不直接引用OsConstants，以免在API 21以下初始化本类时出错
+     */
+    private static final int WRITE_MASK = 0222;
+
+    private PluginBlobStore() {
+        // no instance
+    }
+
+    /**
+     * 将文件放入存储。若存储中已有内容相同的文件，则将file替换为它的硬链接（原来的那份随即被释放）；否则将file链接到存储中 <p>
+     * 注意：file须和存储位于同一文件系统（均在应用的data目录下即可）
+     *
+     * @param file   要共享的文件
+     * @param sha256 文件的SHA-256。为null时在此计算
+     * @return 是否和已有文件共享了同一份内容
+     */
+    public static boolean share(File file, byte[] sha256) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return false;
+        }
+        File dir = getDir();
+        if (dir == null || !file.isFile()) {
+            return false;
+        }
+        if (sha256 == null) {
+            sha256 = SecurityUtil.SHA256(file);
+            if (sha256 == null) {
+                return false;
+            }
+        }
+        File blob = new File(dir, StringUtils.toHexString(sha256));
+        try {
+            return shareApi21(file, blob, sha256);
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pbs.s: f=" + file + "; " + e.getMessage(), e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 删除已不被任何插件引用的文件，以及中途失败残留的临时文件。须在常驻进程中调用
+     *
+     * @return 释放的字节数
+     */
+    public static long gc() {
+        if (Build.VERSION.SDK_INT < 21) {
+            return 0;
+        }
+        File dir = getDir();
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null) {
+            return 0;
+        }
+        long freed = 0;
+        int count = 0;
+        for (File f : files) {
+            try {
+                if (f.getName().endsWith(TMP_SUFFIX) || linkCountApi21(f) <= 1) {
+                    long length = f.length();
+                    if (f.delete()) {
+                        freed += length;
+                        count++;
+                    }
+                }
+            } catch (Throwable e) {
+                if (LOGR) {
+                    LogRelease.e(PLUGIN_TAG, "pbs.gc: f=" + f + "; " + e.getMessage(), e);
+                }
+            }
+        }
+        if (LOGR && count > 0) {
+            LogRelease.i(PLUGIN_TAG, "pbs.gc: count=" + count + "; freed=" + freed);
+        }
+        return freed;
+    }
+
+    @TargetApi(21)
+    private static boolean shareApi21(File file, File blob, byte[] sha256) throws ErrnoException {
+        String path = file.getAbsolutePath();
+        String blobPath = blob.getAbsolutePath();
+        long fileIno = Os.stat(path).st_ino;
+        if (blob.exists()) {
+            if (Os.stat(blobPath).st_ino == fileIno) {
+                // 已经是同一份
+                return true;
+            }
+            if (!checkBlobApi21(blob, file.length(), sha256)) {
+                // 内容已不可信，从存储中移除（插件中已有的链接不受影响），改为放入file
+                FileUtils.deleteQuietly(blob);
+                return addApi21(file, blob, sha256);
+            }
+
+            // 先在同目录下建立链接，再改名覆盖原文件，这样原文件始终是完整的
+            File tmp = new File(file.getParentFile(), file.getName() + TMP_SUFFIX);
+            FileUtils.deleteQuietly(tmp);
+            try {
+                Os.link(blobPath, tmp.getAbsolutePath());
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOENT) {
+                    // 刚好被gc删掉，下次再共享即可
+                    return false;
+                }
+                throw e;
+            }
+            if (!tmp.renameTo(file)) {
+                FileUtils.deleteQuietly(tmp);
+                return false;
+            }
+            if (LOG) {
+                LogDebug.d(TAG, "share: Shared. f=" + path + "; blob=" + blob.getName());
+            }
+            return true;
+        }
+        return addApi21(file, blob, sha256);
+    }
+
+    /**
+     * 将file链接到存储中，并设为只读
+     */
+    @TargetApi(21)
+    private static boolean addApi21(File file, File blob, byte[] sha256) throws ErrnoException {
+        String path = file.getAbsolutePath();
+        String blobPath = blob.getAbsolutePath();
+        try {
+            Os.link(path, blobPath);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EEXIST) {
+                // 其它进程刚刚放入了同样的内容，再试一次即可
+                return shareApi21(file, blob, sha256);
+            }
+            throw e;
+        }
+        makeReadOnlyApi21(blobPath);
+        if (LOG) {
+            LogDebug.d(TAG, "share: Added. f=" + path + "; blob=" + blob.getName());
+        }
+        return false;
+    }
+
+    /**
+     * 确认存储中的文件可以复用：只读的，只需核对大小；否则须核对SHA-256，一致时补设为只读
+     */
+    @TargetApi(21)
+    private static boolean checkBlobApi21(File blob, long length, byte[] sha256) throws ErrnoException {
+        String blobPath = blob.getAbsolutePath();
+        if (blob.length() != length) {
+            return false;
+        }
+        if ((Os.stat(blobPath).st_mode & WRITE_MASK) == 0) {
+            return true;
+        }
+        if (!Arrays.equals(SecurityUtil.SHA256(blob), sha256)) {
+            if (LOGR) {
+                LogRelease.w(PLUGIN_TAG, "pbs.cb: digest mismatch, drop. blob=" + blob.getName());
+            }
+            return false;
+        }
+        makeReadOnlyApi21(blobPath);
+        return true;
+    }
+
+    @TargetApi(21)
+    private static void makeReadOnlyApi21(String path) throws ErrnoException {
+        int mode = Os.stat(path).st_mode;
+        Os.chmod(path, mode & 0777 & ~WRITE_MASK);
+    }
+
+    @TargetApi(21)
+    private static long linkCountApi21(File f) throws ErrnoException {
+        return Os.stat(f.getAbsolutePath()).st_nlink;
+    }
+
+    private static File getDir() {
+        Context context = RePluginInternal.getAppContext();
+        if (context == null) {
+            return null;
+        }
+        return context.getDir(Constant.LOCAL_PLUGIN_BLOB_SUB_DIR, 0);
+    }
+}
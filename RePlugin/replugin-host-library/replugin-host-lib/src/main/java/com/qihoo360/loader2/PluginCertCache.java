@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import android.content.Context;
+import android.content.pm.Signature;
+
+import com.qihoo360.loader.utils.StringUtils;
+import com.qihoo360.replugin.RePluginInternal;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+import com.qihoo360.replugin.utils.Charsets;
+import com.qihoo360.replugin.utils.FileUtils;
+import com.qihoo360.replugin.utils.basic.SecurityUtil;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件签名校验结果的缓存 <p>
+ * 1、以APK内容的摘要（SHA-256 + 长度）为Key，记录校验通过时的签名指纹。同一个APK再次安装、同版本覆盖、启动时重复释放V5插件时， <p>
+ * 命中缓存则无需再解析APK的签名（getPackageArchiveInfo + GET_SIGNATURES会校验APK中的每个文件，非常耗时） <p>
+ * 2、只缓存“校验通过”的结果。命中时仍会确认记录的签名指纹都还在CertUtils.SIGNATURES中 <p>
+ * 3、允许的签名列表变化（见RePlugin.addCertSignature）后，各条目会在下次使用时重新确认 <p>
+ * 缓存写在app_p_a目录下，和插件列表（p.l）一样只有宿主自己可以修改
+ *
+ * @author RePlugin Team
+ */
+public final class PluginCertCache {
+
+    private static final String TAG = "PluginCertCache";
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static final byte[] LOCKER = new byte[0];
+
+    /**
+     * 摘要 -> 签名指纹。按访问顺序排列，最久未用的在最前
+     */
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static boolean sLoaded;
+
+    /**
+     * 允许的签名列表的版本号，每次变化时加一
+     */
+    private static int sCertsVersion;
+
+    private static final class Entry {
+
+        final String[] mSigners;
+
+        /**
+         * 上次确认时的sCertsVersion
+         */
+        int mCheckedVersion = -1;
+
+        Entry(String[] signers) {
+            mSigners = signers;
+        }
+    }
+
+    private PluginCertCache() {
+        // no instance
+    }
+
+    /**
+     * 计算APK的缓存Key
+     *
+     * @return 缓存Key；若读取失败，则返回null
+     */
+    public static String keyOf(File apk) {
+        return keyOf(SecurityUtil.SHA256(apk), apk.length());
+    }
+
+    /**
+     * 根据已算好的SHA-256计算APK的缓存Key
+     *
+     * @return 缓存Key；若sha256为null，则返回null
+     */
+    public static String keyOf(byte[] sha256, long length) {
+        if (sha256 == null) {
+            return null;
+        }
+        return StringUtils.toHexString(sha256) + ":" + length;
+    }
+
+    /**
+     * @param key 见keyOf
+     * @return 此APK是否已校验通过，且其签名仍被允许
+     */
+    public static boolean isVerified(String key) {
+        if (key == null) {
+            return false;
+        }
+        synchronized (LOCKER) {
+            loadIfNeeded();
+            Entry e = ENTRIES.get(key);
+            if (e == null) {
+                return false;
+            }
+            if (e.mCheckedVersion == sCertsVersion) {
+                return true;
+            }
+            for (String signer : e.mSigners) {
+                if (!CertUtils.isAllowedSignature(signer)) {
+                    // 不再被允许，须重新校验
+                    ENTRIES.remove(key);
+                    save();
+                    return false;
+                }
+            }
+            e.mCheckedVersion = sCertsVersion;
+        }
+        if (LOG) {
+            LogDebug.d(TAG, "isVerified: hit. key=" + key);
+        }
+        return true;
+    }
+
+    /**
+     * 记录校验通过的APK
+     *
+     * @param key        见keyOf
+     * @param signatures 校验通过的签名
+     */
+    public static void put(String key, Signature[] signatures) {
+        if (key == null || signatures == null || signatures.length == 0) {
+            return;
+        }
+        String[] signers = new String[signatures.length];
+        for (int i = 0; i < signatures.length; i++) {
+            signers[i] = CertUtils.getSignatureMd5(signatures[i]);
+        }
+        Entry e = new Entry(signers);
+        synchronized (LOCKER) {
+            loadIfNeeded();
+            e.mCheckedVersion = sCertsVersion;
+            ENTRIES.put(key, e);
+            trimToSize();
+            save();
+        }
+    }
+
+    /**
+     * 允许的签名列表发生变化时调用
+     */
+    public static void onCertsChanged() {
+        synchronized (LOCKER) {
+            sCertsVersion++;
+        }
+    }
+
+    private static void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> it = ENTRIES.entrySet().iterator();
+        while (ENTRIES.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static void loadIfNeeded() {
+        if (sLoaded) {
+            return;
+        }
+        sLoaded = true;
+        File f = getFile();
+        if (f == null || !f.exists()) {
+            return;
+        }
+        try {
+            // [[key, signer1, signer2, ...], ...]，按最久未用的在最前的顺序
+            JSONArray ja = new JSONArray(FileUtils.readFileToString(f, Charsets.UTF_8));
+            for (int i = 0; i < ja.length(); i++) {
+                JSONArray item = ja.optJSONArray(i);
+                if (item == null || item.length() < 2) {
+                    continue;
+                }
+                String[] signers = new String[item.length() - 1];
+                for (int j = 0; j < signers.length; j++) {
+                    signers[j] = item.getString(j + 1);
+                }
+                ENTRIES.put(item.getString(0), new Entry(signers));
+            }
+        } catch (Throwable e) {
+            // 文件损坏，放弃即可，之后会重新校验
+            ENTRIES.clear();
+            FileUtils.deleteQuietly(f);
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pcc.l: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static void save() {
+        File f = getFile();
+        if (f == null) {
+            return;
+        }
+        try {
+            JSONArray ja = new JSONArray();
+            for (Map.Entry<String, Entry> me : ENTRIES.entrySet()) {
+                JSONArray item = new JSONArray();
+                item.put(me.getKey());
+                for (String signer : me.getValue().mSigners) {
+                    item.put(signer);
+                }
+                ja.put(item);
+            }
+            File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+            FileUtils.writeStringToFile(tmp, ja.toString(), Charsets.UTF_8);
+            if (!tmp.renameTo(f)) {
+                FileUtils.deleteQuietly(tmp);
+            }
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pcc.s: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static File getFile() {
+        Context context = RePluginInternal.getAppContext();
+        if (context == null) {
+            return null;
+        }
+        final File d = context.getDir(Constant.LOCAL_PLUGIN_APK_SUB_DIR, 0);
+        return new File(d, "p_cert.json");
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 插件ClassLoader -> 插件名的反向索引，用于PmBase.lookupPlugin <p>
+ * 1、按“对象地址”比较ClassLoader（而非equals），且只持有其弱引用，不影响ClassLoader被回收 <p>
+ * 2、由Loader在创建ClassLoader时写入；插件被移出内存（PmBase.unloadPlugin）或其产物被丢弃（PluginArtifactCache.remove）时移除。 <p>
+ * 已被回收的ClassLoader则在每次写入、移除时顺便清除 <p>
+ * 3、基于ConcurrentHashMap，读取时无需加锁
+ *
+ * @author RePlugin Team
+ */
+final class PluginClassLoaderIndex {
+
+    private static final ConcurrentHashMap<Key, String> INDEX = new ConcurrentHashMap<>();
+
+    private static final ReferenceQueue<ClassLoader> QUEUE = new ReferenceQueue<>();
+
+    private PluginClassLoaderIndex() {
+        // no instance
+    }
+
+    /**
+     * 记录ClassLoader所属的插件
+     */
+    static void put(ClassLoader cl, String pluginName) {
+        expungeStaleEntries();
+        INDEX.put(new Key(cl, QUEUE), pluginName);
+    }
+
+    /**
+     * 移除ClassLoader的记录。此后lookupPlugin不再将其视为插件的ClassLoader
+     */
+    static void remove(ClassLoader cl) {
+        expungeStaleEntries();
+        if (cl == null) {
+            return;
+        }
+        INDEX.remove(new Key(cl, null));
+    }
+
+    /**
+     * @return ClassLoader所属的插件名。若不是插件的ClassLoader，则返回null
+     */
+    static String get(ClassLoader cl) {
+        if (cl == null) {
+            return null;
+        }
+        return INDEX.get(new Key(cl, null));
+    }
+
+    /**
+     * @return 索引中的条目数（含尚未清除的、已被回收的ClassLoader）
+     */
+    static int size() {
+        return INDEX.size();
+    }
+
+    /**
+     * 清除已被回收的ClassLoader的记录
+     */
+    static void expungeStaleEntries() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = QUEUE.poll()) != null) {
+            INDEX.remove(ref);
+        }
+    }
+
+    /**
+     * 以“对象地址”比较的ClassLoader弱引用
+     */
+    private static final class Key extends WeakReference<ClassLoader> {
+
+        private final int mHash;
+
+        Key(ClassLoader cl, ReferenceQueue<ClassLoader> queue) {
+            super(cl, queue);
+            mHash = System.identityHashCode(cl);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Object cl = get();
+            // 已被回收的Key只和自己相等，以便被正确移除
+            return cl != null && cl == ((Key) o).get();
+        }
+    }
+}
@@ -322,6 +322,26 @@ public class PluginCommImpl {
         return null;
     }
 
+    /**
+     * 警告：低层接口
+     * 只释放并优化插件的Dex，不加载资源，也不会将插件标记为“正在运行”。通常用于安装后的“后台Dex优化”
+     * @param pi 插件信息
+     * @return 是否成功
+     */
+    public boolean optimizePluginDex(PluginInfo pi) {
+        return Plugin.optimizeDex(mContext, pi);
+    }
+
+    /**
+     * 警告：低层接口
+     * 将插件移出当前进程的内存，下次使用时再重新加载。若插件仍有存活的组件，则不会移出
+     * @param name 插件名
+     * @return 估算回收的内存（字节）；若不允许移出，则返回-1
+     */
+    public long unloadPlugin(String name) {
+        return mPluginMgr.unloadPlugin(name);
+    }
+
     /**
      * 警告：低层接口
      * 调用此接口会“依据PluginInfo中指定的插件信息”，在当前进程加载插件（不启动App）。通常用于“指定路径来直接安装”的情况
@@ -786,6 +786,22 @@ a 流程完成
         return null;
     }
 
+    /**
+     * 插件是否还有存活的Activity（在本进程中）
+     *
+     * @param plugin 插件名
+     */
+    final boolean hasRunningActivities(String plugin) {
+        synchronized (mLock) {
+            for (ActivityState state : mStates.values()) {
+                if (TextUtils.equals(state.plugin, plugin) && state.hasRef()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     final String dump() {
 
         JSONArray activityArr = new JSONArray();
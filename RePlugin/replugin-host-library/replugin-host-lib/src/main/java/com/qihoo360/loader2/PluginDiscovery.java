@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import android.content.Context;
+
+import com.qihoo360.loader2.Builder.PxAll;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+import com.qihoo360.replugin.model.PluginInfo;
+import com.qihoo360.replugin.packages.PluginManagerServer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 常驻进程启动时的插件搜索 <p>
+ * 1、并发地读取各来源：内置插件（plugins-builtin.json）、V5插件、已释放的p-n插件、“纯APK”插件列表 <p>
+ * 2、按原有的优先级合并（内置 > V5 > 已释放），生成“临时插件表”，常驻进程即可立即对外提供服务 <p>
+ * 3、删除过期文件、执行“更新或删除Pending插件”等涉及文件操作的工作，放到后台完成，见cleanup方法和PmBase.initForServer <p>
+ * 搜索过程只读取文件，不做任何修改，故可安全地并发执行
+ *
+ * @author RePlugin Team
+ * @see Builder#builder(Context, PxAll)
+ */
+final class PluginDiscovery {
+
+    private static final String TAG = "PluginDiscovery";
+
+    private final Context mContext;
+
+    private final PxAll mAll;
+
+    private final PluginManagerServer mManager;
+
+    /**
+     * 插件目录中非插件文件和坏的文件，在后台删除
+     */
+    private final HashSet<File> mInvalidFiles = new HashSet<>();
+
+    /**
+     * 开始搜索的时间。后台清理时只删除早于此时间的文件，以免误删之后刚释放的插件
+     */
+    private long mStartTime;
+
+    private List<PluginInfo> mApkPlugins;
+
+    PluginDiscovery(Context context, PxAll all, PluginManagerServer manager) {
+        mContext = context;
+        mAll = all;
+        mManager = manager;
+    }
+
+    /**
+     * 并发地搜索所有插件，结果写入PxAll中；“纯APK”插件通过getApkPlugins获取
+     */
+    void search() {
+        mStartTime = System.currentTimeMillis();
+        final File pluginDir = mContext.getDir(Constant.LOCAL_PLUGIN_SUB_DIR, 0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3, new ThreadFactory() {
+            private final AtomicInteger mIndex = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "replugin-discovery-" + mIndex.incrementAndGet());
+            }
+        });
+
+        // 各任务只写入自己的PxAll，最后再按优先级合并，故无需加锁
+        Future<PxAll> builtins = executor.submit(new Callable<PxAll>() {
+            @Override
+            public PxAll call() throws Exception {
+                PxAll all = new PxAll();
+                FinderBuiltin.loadPlugins(mContext, all);
+                return all;
+            }
+        });
+        Future<PxAll> v5s = executor.submit(new Callable<PxAll>() {
+            @Override
+            public PxAll call() throws Exception {
+                PxAll all = new PxAll();
+                // 启动时V5插件只读取文件头，不会释放，故可和扫描插件目录同时进行
+                V5Finder.search(mContext, pluginDir, all);
+                return all;
+            }
+        });
+        Future<List<PluginInfo>> apks = executor.submit(new Callable<List<PluginInfo>>() {
+            @Override
+            public List<PluginInfo> call() throws Exception {
+                return mManager.loadWithoutUpdate();
+            }
+        });
+        executor.shutdown();
+
+        // 扫描插件目录，直接在当前线程中进行
+        ArrayList<PluginInfo> locals = new ArrayList<>();
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "search plugins: dir=" + pluginDir.getAbsolutePath());
+        }
+        Finder.searchLocalPlugins(pluginDir, locals, mInvalidFiles);
+
+        // 按“内置 > V5 > 已释放”的顺序合并，和Finder.search完全一致
+        PxAll b = get(builtins);
+        if (b != null) {
+            for (PluginInfo info : b.getBuiltins()) {
+                mAll.addBuiltin(info);
+            }
+        }
+        PxAll v = get(v5s);
+        if (v != null) {
+            for (PluginInfo info : v.getV5s()) {
+                mAll.addV5(info);
+            }
+        }
+        for (PluginInfo info : locals) {
+            mAll.addNormal(info);
+        }
+        mApkPlugins = get(apks);
+
+        if (LOGR) {
+            LogRelease.i(PLUGIN_TAG, "pd.s: pn=" + mAll.getPlugins().size() + "; apk=" + (mApkPlugins != null ? mApkPlugins.size() : -1)
+                    + "; cost=" + (System.currentTimeMillis() - mStartTime));
+        }
+    }
+
+    /**
+     * @return 未经“更新或删除Pending插件”处理的“纯APK”插件列表，可能为null
+     */
+    List<PluginInfo> getApkPlugins() {
+        return mApkPlugins;
+    }
+
+    /**
+     * 删除不适配的插件、坏文件，以及和插件表不一致的Dex、SO文件。须在后台线程中调用
+     */
+    void cleanup() {
+        long begin = System.currentTimeMillis();
+        Finder.deleteInvalidFiles(mInvalidFiles, mStartTime);
+        Builder.cleanup(mContext, mAll, mStartTime);
+        if (LOG) {
+            LogDebug.d(TAG, "cleanup: cost=" + (System.currentTimeMillis() - begin));
+        }
+    }
+
+    private static <T> T get(Future<T> f) {
+        try {
+            return f.get();
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pd.g: " + e.getMessage(), e);
+            }
+            return null;
+        }
+    }
+}
@@ -36,6 +36,7 @@ import com.qihoo360.replugin.helper.HostConfigHelper;
 import com.qihoo360.replugin.helper.LogDebug;
 import com.qihoo360.replugin.helper.LogRelease;
 import com.qihoo360.replugin.model.PluginInfo;
+import com.qihoo360.replugin.packages.PluginPreloadScheduler;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -198,6 +199,9 @@ public class PluginLibraryInternalProxy {
             LogDebug.d(PLUGIN_TAG, "start activity: intent=" + intent + " plugin=" + plugin + " activity=" + activity + " process=" + process + " download=" + download);
         }
 
+        // 若该插件有排队中的后台预加载任务，则将其提到最前，尽量让前台的加载直接命中
+        PluginPreloadScheduler.promote(plugin);
+
         // 是否启动下载
         // 若插件不可用（不存在或版本不匹配），则直接弹出“下载插件”对话框
         // 因为已经打开UpdateActivity，故在这里返回True，告诉外界已经打开，无需处理
@@ -608,6 +612,9 @@ public class PluginLibraryInternalProxy {
             }
         }
 
+        // 插件可能就此空闲下来，刷新其“最近使用”时间
+        PluginMemoryGovernor.touch(plugin);
+
         // 触发退出检测
         RePlugin.getConfig().getEventCallbacks().onActivityDestroyed(activity);
     }
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.qihoo360.i.Factory;
+import com.qihoo360.mobilesafe.api.Tasks;
+import com.qihoo360.replugin.RePlugin;
+import com.qihoo360.replugin.RePluginEventCallbacks;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+import com.qihoo360.replugin.model.PluginInfo;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 进程内“正在运行”插件的内存管理 <p>
+ * 1、插件运行（LOAD_APP）时，粗略估算其占用：Java堆按APK体积（Resources + ClassLoader），Native按Dex和SO文件体积 <p>
+ * 2、按最近使用的顺序（LRU）记录各插件；插件被启动、Activity被销毁时视为“使用” <p>
+ * 3、总占用超出预算（见RePluginConfig.setPluginMemoryBudget），或收到onTrimMemory时，从最久未用的开始， <p>
+ * 将没有存活组件的插件移出内存（见PmBase.unloadPlugin），宿主可通过RePluginEventCallbacks阻止 <p>
+ * 未运行插件的产物由PluginArtifactCache负责淘汰，这里只管“已运行、但已空闲”的插件 <p>
+ * 移出操作都在UI线程中进行，这样和Activity的创建不会交错，检查“是否有存活的组件”才有意义
+ *
+ * @author RePlugin Team
+ * @see com.qihoo360.replugin.RePluginConfig#setMemoryGovernor(boolean)
+ */
+public final class PluginMemoryGovernor {
+
+    private static final String TAG = "PluginMemoryGovernor";
+
+    /**
+     * 插件至少空闲多久（毫秒）才会因“超出预算”而被移出。内存紧张时（进程已在后台）不受此限制
+     */
+    private static final long MIN_IDLE_MS = 60 * 1000;
+
+    private static final byte[] LOCKER = new byte[0];
+
+    /**
+     * 插件名 -> 占用记录。按访问顺序排列，最久未用的在最前
+     */
+    private static final LinkedHashMap<String, Record> RECORDS = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long sBytes;
+
+    private static int sEvictionCount;
+
+    private static final Runnable CHECK_TASK = new Runnable() {
+        @Override
+        public void run() {
+            checkBudget();
+        }
+    };
+
+    private static final class Record {
+
+        final String mName;
+
+        final long mHeapBytes;
+
+        final long mNativeBytes;
+
+        long mLastUsed;
+
+        Record(String name, long heapBytes, long nativeBytes) {
+            mName = name;
+            mHeapBytes = heapBytes;
+            mNativeBytes = nativeBytes;
+        }
+
+        long bytes() {
+            return mHeapBytes + mNativeBytes;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": heap=" + mHeapBytes + "; native=" + mNativeBytes + "; idle=" + (SystemClock.elapsedRealtime() - mLastUsed);
+        }
+    }
+
+    private PluginMemoryGovernor() {
+        // no instance
+    }
+
+    /**
+     * 插件在当前进程中被启动（LOAD_APP）时调用
+     *
+     * @param pi 插件信息
+     */
+    static void onPluginLaunched(PluginInfo pi) {
+        if (!RePlugin.getConfig().isMemoryGovernor()) {
+            return;
+        }
+        String name = pi.getName();
+        boolean exists;
+        synchronized (LOCKER) {
+            Record r = RECORDS.get(name);
+            exists = r != null;
+            if (exists) {
+                r.mLastUsed = SystemClock.elapsedRealtime();
+            }
+        }
+        if (!exists) {
+            // 文件大小放在锁外读取，避免IO阻塞其它线程
+            Record r = new Record(name, 2 * pi.getApkFile().length(), pi.getDexFile().length() + sizeOf(pi.getNativeLibsDir()));
+            r.mLastUsed = SystemClock.elapsedRealtime();
+            synchronized (LOCKER) {
+                Record old = RECORDS.put(name, r);
+                if (old != null) {
+                    sBytes -= old.bytes();
+                }
+                sBytes += r.bytes();
+            }
+            if (LOG) {
+                LogDebug.d(TAG, "onPluginLaunched: " + r);
+            }
+            PluginMemoryTrimmer.registerCallbacksIfNeeded();
+        }
+        scheduleCheckIfNeeded();
+    }
+
+    /**
+     * 插件被使用时调用（如其Activity被销毁时），以刷新其在LRU中的位置
+     *
+     * @param name 插件名
+     */
+    static void touch(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return;
+        }
+        synchronized (LOCKER) {
+            Record r = RECORDS.get(name);
+            if (r == null) {
+                return;
+            }
+            r.mLastUsed = SystemClock.elapsedRealtime();
+        }
+        scheduleCheckIfNeeded();
+    }
+
+    /**
+     * 插件被移出内存后调用（无论是否由此类发起）
+     *
+     * @param name 插件名
+     */
+    static void onPluginUnloaded(String name) {
+        synchronized (LOCKER) {
+            Record r = RECORDS.remove(name);
+            if (r != null) {
+                sBytes -= r.bytes();
+            }
+        }
+    }
+
+    /**
+     * 根据系统的内存紧张程度，移出空闲的插件。须在UI线程中调用 <p>
+     * 由PluginMemoryTrimmer统一通知，无需外界调用
+     *
+     * @param level 见ComponentCallbacks2.TRIM_MEMORY_XXX
+     */
+    public static void onTrimMemory(int level) {
+        if (!RePlugin.getConfig().isMemoryGovernor()) {
+            return;
+        }
+        long target;
+        long minIdle;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // 已在后台LRU列表的中后部，随时可能被杀，空闲的插件全部移出
+            target = 0;
+            minIdle = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            target = getBudget() / 2;
+            minIdle = 0;
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // 仍在前台，只移出一段时间没用过的
+            target = getBudget() / 2;
+            minIdle = MIN_IDLE_MS;
+        } else {
+            return;
+        }
+        int evicted = trimToSize(target, minIdle);
+        if (LOGR) {
+            LogRelease.i(PLUGIN_TAG, "pmg.otm: level=" + level + "; evicted=" + evicted + "; bytes=" + getBytes());
+        }
+    }
+
+    /**
+     * @return 当前进程中“正在运行”插件的估算总占用（字节）
+     */
+    static long getBytes() {
+        synchronized (LOCKER) {
+            return sBytes;
+        }
+    }
+
+    static void dump(PrintWriter writer) {
+        synchronized (LOCKER) {
+            writer.println("--- plugin memory governor ---");
+            writer.println("bytes=" + sBytes + "; budget=" + getBudget() + "; eviction=" + sEvictionCount);
+            for (Record r : RECORDS.values()) {
+                writer.println(r);
+            }
+        }
+    }
+
+    private static void scheduleCheckIfNeeded() {
+        if (getBytes() <= getBudget()) {
+            return;
+        }
+        // 刚用过的插件此时还不够“空闲”，故等待一段时间后再检查
+        Tasks.cancelTask(CHECK_TASK);
+        Tasks.postDelayed2UI(CHECK_TASK, MIN_IDLE_MS);
+    }
+
+    private static void checkBudget() {
+        int evicted = trimToSize(getBudget(), MIN_IDLE_MS);
+        if (LOG) {
+            LogDebug.d(TAG, "checkBudget: evicted=" + evicted + "; bytes=" + getBytes());
+        }
+        // 只有“这次有进展”或“还有插件不够空闲”时才稍后再试。否则剩下的都在使用中（或被宿主阻止），
+        // 重试也无济于事，等下次onPluginLaunched、touch时再检查，以免一直周期性地唤醒UI线程
+        if (evicted > 0 || hasRecentlyUsed(MIN_IDLE_MS)) {
+            scheduleCheckIfNeeded();
+        }
+    }
+
+    /**
+     * @return 是否有插件在idleMs之内被用过
+     */
+    private static boolean hasRecentlyUsed(long idleMs) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (LOCKER) {
+            for (Record r : RECORDS.values()) {
+                if (now - r.mLastUsed < idleMs) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从最久未用的开始，移出空闲的插件，直到总占用不超过目标值。须在UI线程中调用
+     *
+     * @return 本次移出的插件数
+     */
+    private static int trimToSize(long target, long minIdle) {
+        ArrayList<Record> records;
+        synchronized (LOCKER) {
+            if (sBytes <= target) {
+                return 0;
+            }
+            records = new ArrayList<>(RECORDS.values());
+        }
+        RePluginEventCallbacks callbacks = RePlugin.getConfig().getEventCallbacks();
+        long now = SystemClock.elapsedRealtime();
+        int evicted = 0;
+        for (Record r : records) {
+            if (getBytes() <= target) {
+                break;
+            }
+            if (now - r.mLastUsed < minIdle) {
+                // 之后的都是更近用过的
+                break;
+            }
+            long bytes = r.bytes();
+            if (callbacks != null && !callbacks.onPrepareEvictPlugin(r.mName, bytes)) {
+                continue;
+            }
+            if (Factory.unloadPlugin(r.mName) < 0) {
+                // 仍有存活的组件，或交出去的Binder仍在被使用（见PluginBinderTracker）
+                continue;
+            }
+            evicted++;
+            synchronized (LOCKER) {
+                sEvictionCount++;
+            }
+            if (LOGR) {
+                LogRelease.i(PLUGIN_TAG, "pmg.e: pn=" + r.mName + "; bytes=" + bytes);
+            }
+            if (callbacks != null) {
+                callbacks.onPluginEvicted(r.mName, bytes);
+            }
+        }
+        return evicted;
+    }
+
+    private static long getBudget() {
+        return PluginMemoryTrimmer.getBudget(RePlugin.getConfig().getPluginMemoryBudget(), 4);
+    }
+
+    private static long sizeOf(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.isDirectory() ? sizeOf(f) : f.length();
+        }
+        return size;
+    }
+}
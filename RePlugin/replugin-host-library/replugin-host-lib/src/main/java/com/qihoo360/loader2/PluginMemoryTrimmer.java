@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.loader2;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+import com.qihoo360.replugin.RePluginInternal;
+
+/**
+ * 插件内存回收（PluginArtifactCache、PluginMemoryGovernor）的公共部分 <p>
+ * 1、计算内存预算 <p>
+ * 2、只注册一次ComponentCallbacks2，收到onTrimMemory、onLowMemory后依次通知两者。API 14以下由RePlugin.App负责调用onTrimMemory
+ *
+ * @author RePlugin Team
+ */
+public final class PluginMemoryTrimmer {
+
+    private static final byte[] LOCKER = new byte[0];
+
+    private static boolean sCallbacksRegistered;
+
+    private PluginMemoryTrimmer() {
+        // no instance
+    }
+
+    /**
+     * 根据系统的内存紧张程度，淘汰未运行插件的缓存，并移出空闲的插件
+     *
+     * @param level 见ComponentCallbacks2.TRIM_MEMORY_XXX
+     */
+    public static void onTrimMemory(int level) {
+        PluginArtifactCache.onTrimMemory(level);
+        PluginMemoryGovernor.onTrimMemory(level);
+    }
+
+    /**
+     * @param configured 宿主设置的预算（字节），0为使用默认值
+     * @param divisor    默认值为最大堆内存的几分之一
+     * @return 预算大小（字节）
+     */
+    static long getBudget(long configured, int divisor) {
+        if (configured > 0) {
+            return configured;
+        }
+        return Runtime.getRuntime().maxMemory() / divisor;
+    }
+
+    /**
+     * 注册ComponentCallbacks2（若尚未注册）
+     */
+    static void registerCallbacksIfNeeded() {
+        if (Build.VERSION.SDK_INT < 14) {
+            // 由RePlugin.App.onTrimMemory负责通知
+            return;
+        }
+        Context context = RePluginInternal.getAppContext();
+        if (context == null) {
+            return;
+        }
+        synchronized (LOCKER) {
+            if (sCallbacksRegistered) {
+                return;
+            }
+            sCallbacksRegistered = true;
+        }
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                PluginMemoryTrimmer.onTrimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                // Nothing
+            }
+
+            @Override
+            public void onLowMemory() {
+                PluginMemoryTrimmer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+    }
+}
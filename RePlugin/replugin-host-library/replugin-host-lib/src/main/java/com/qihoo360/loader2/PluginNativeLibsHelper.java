@@ -25,16 +25,35 @@ import com.qihoo360.mobilesafe.core.BuildConfig;
 import com.qihoo360.replugin.helper.LogDebug;
 
 import com.qihoo360.replugin.utils.FileUtils;
+import com.qihoo360.replugin.utils.IOUtils;
+import com.qihoo360.replugin.utils.pkg.ApkHandle;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -49,9 +68,17 @@ public class PluginNativeLibsHelper {
 
     private static final String TAG = "PluginNativeLibsHelper";
 
+    /**
+     * 同时释放SO库的最大线程数
+     */
+    private static final int MAX_EXTRACT_THREADS = 4;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
     /**
      * 安装Native SO库 <p>
-     * 模拟系统安装流程，最终只释放一个最合身的SO库进入Libs目录中
+     * 模拟系统安装流程，最终只释放一个最合身的SO库进入Libs目录中 <p>
+     * 目录中已有、且大小和CRC都与APK中一致的SO会被保留，只释放有变化的（多个时并行释放）；其余文件会被删除，以防加载到旧SO
      *
      * @param apkPath   APK文件路径
      * @param nativeDir 要释放的Libs目录，通常从getLibDir中获取
@@ -64,18 +91,18 @@ public class PluginNativeLibsHelper {
 
         // TODO 线程同步
 
-        // 为防止加载旧SO，先清空目录
-        clear(nativeDir);
-
-        ZipFile zipFile = null;
+        // 和安装流程的其它步骤（如生成快照、类名索引）共用同一个ZipFile
+        ApkHandle handle = ApkHandle.acquire(apkPath);
+        ExecutorService executor = null;
         try {
-            zipFile = new ZipFile(apkPath);
+            ZipFile zipFile = handle.getZipFile();
             Map<String, ZipEntry> libZipEntries = new HashMap<>();
             Map<String, Set<String>> soList = new HashMap<>();
 
             // 找到所有的SO库，包括各种版本的，方便findSoPathForAbis中过滤
             injectEntriesAndLibsMap(zipFile, libZipEntries, soList);
 
+            Map<String, ZipEntry> chosen = new HashMap<>();
             for (String soName : soList.keySet()) {
                 Set<String> soPaths = soList.get(soName);
                 String soPath = findSoPathForAbis(soPaths, soName);
@@ -85,19 +112,79 @@ public class PluginNativeLibsHelper {
                 if (soPath == null) {
                     continue;
                 }
-                File file = new File(nativeDir, soName);
-                extractFile(zipFile, libZipEntries.get(soPath), file);
+                chosen.put(soName, libZipEntries.get(soPath));
+            }
+
+            // 为防止加载旧SO，删掉不再需要的文件（含上次残留的临时文件）
+            deleteUnknownFiles(nativeDir, chosen.keySet());
+            if (chosen.isEmpty()) {
+                return true;
+            }
+            FileUtils.forceMkdir(nativeDir);
+
+            final ZipFile zf = zipFile;
+            final File dir = nativeDir;
+            List<Future<Boolean>> results = new ArrayList<>();
+            if (chosen.size() > 1) {
+                executor = Executors.newFixedThreadPool(Math.min(chosen.size(), MAX_EXTRACT_THREADS), new ThreadFactory() {
+                    private final AtomicInteger mIndex = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "replugin-so-" + mIndex.incrementAndGet());
+                    }
+                });
+            }
+            for (final Map.Entry<String, ZipEntry> e : chosen.entrySet()) {
+                Callable<Boolean> task = new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return extractFileIfChanged(zf, e.getValue(), new File(dir, e.getKey()));
+                    }
+                };
+                if (executor != null) {
+                    results.add(executor.submit(task));
+                } else {
+                    task.call();
+                }
+            }
+            int extracted = 0;
+            for (Future<Boolean> f : results) {
+                // 任一失败都会在此抛出
+                if (f.get()) {
+                    extracted++;
+                }
+            }
+            if (LogDebug.LOG) {
+                LogDebug.d(TAG, "install: total=" + chosen.size() + "; extracted=" + extracted);
             }
             return true;
         } catch (Throwable e) {
             if (BuildConfig.DEBUG) {
                 e.printStackTrace();
             }
-            // 清除所有释放的文件，防止释放了一半
+            // 清除所有释放的文件，防止释放了一半。须等其它任务都停下来再清除
+            if (executor != null) {
+                executor.shutdownNow();
+                awaitTermination(executor);
+            }
             clear(nativeDir);
             return false;
         } finally {
-            CloseableUtils.closeQuietly(zipFile);
+            if (executor != null) {
+                // 释放ZipFile前，须等待所有任务结束
+                executor.shutdown();
+                awaitTermination(executor);
+            }
+            handle.release();
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Nothing
         }
     }
 
@@ -142,14 +229,87 @@ public class PluginNativeLibsHelper {
         }
     }
 
-    private static void extractFile(ZipFile zipFile, ZipEntry ze, File outFile) throws IOException {
+    private static void deleteUnknownFiles(File nativeDir, Set<String> keep) {
+        File[] files = nativeDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (!keep.contains(f.getName())) {
+                FileUtils.deleteQuietly(f);
+            }
+        }
+    }
+
+    /**
+     * 若outFile的大小和CRC与ze一致，则保留；否则先释放到临时文件，校验CRC后再改名为outFile
+     *
+     * @return 是否做了释放
+     */
+    private static boolean extractFileIfChanged(ZipFile zipFile, ZipEntry ze, File outFile) throws IOException {
+        if (ze.getCrc() != -1 && outFile.length() == ze.getSize() && crcOf(outFile) == ze.getCrc()) {
+            if (BuildConfig.DEBUG) {
+                Log.i(TAG, "extractFile(): Unchanged, skip. fn=" + outFile.getName());
+            }
+            return false;
+        }
+        File tmpFile = new File(outFile.getParentFile(), outFile.getName() + TMP_SUFFIX);
         InputStream in = null;
+        OutputStream out = null;
         try {
-            in = zipFile.getInputStream(ze);
-            FileUtils.copyInputStreamToFile(in, outFile);
+            CheckedInputStream cin = new CheckedInputStream(zipFile.getInputStream(ze), new CRC32());
+            // 同时计算SHA-256，供PluginBlobStore去重，无需再读一遍
+            MessageDigest digest = newSha256();
+            in = digest != null ? new DigestInputStream(cin, digest) : cin;
+            out = new FileOutputStream(tmpFile);
+            IOUtils.copyLarge(in, out);
+            out.close();
+            out = null;
+            if (ze.getCrc() != -1 && cin.getChecksum().getValue() != ze.getCrc()) {
+                throw new IOException("crc mismatch: " + ze.getName());
+            }
+            // 和其它插件（或其它版本）中内容相同的SO共享同一份文件
+            if (digest != null) {
+                PluginBlobStore.share(tmpFile, digest.digest());
+            }
+            // 同目录下改名是原子的，加载方不会看到写了一半的SO
+            if (!tmpFile.renameTo(outFile)) {
+                throw new IOException("rename failed: " + tmpFile);
+            }
             if (BuildConfig.DEBUG) {
                 Log.i(TAG, "extractFile(): Success! fn=" + outFile.getName());
             }
+            return true;
+        } finally {
+            CloseableUtils.closeQuietly(in);
+            CloseableUtils.closeQuietly(out);
+            if (tmpFile.exists()) {
+                FileUtils.deleteQuietly(tmpFile);
+            }
+        }
+    }
+
+    /**
+     * @return SHA-256的MessageDigest；不支持时返回null，此时不做去重
+     */
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static long crcOf(File f) throws IOException {
+        InputStream in = null;
+        try {
+            CheckedInputStream cin = new CheckedInputStream(new FileInputStream(f), new CRC32());
+            in = cin;
+            byte[] buffer = new byte[64 * 1024];
+            while (cin.read(buffer) != -1) {
+                // 读取即可
+            }
+            return cin.getChecksum().getValue();
         } finally {
             CloseableUtils.closeQuietly(in);
         }
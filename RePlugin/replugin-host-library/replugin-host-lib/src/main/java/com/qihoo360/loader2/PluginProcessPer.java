@@ -40,6 +40,7 @@ import com.qihoo360.replugin.helper.LogRelease;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 
 import static com.qihoo360.replugin.helper.LogDebug.LOG;
 import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
@@ -87,6 +88,23 @@ class PluginProcessPer extends IPluginClient.Stub {
         mDefaultPlugin = p;
     }
 
+    /**
+     * 移除插件的所有Receiver对象（如插件被移出内存时）。下次收到广播时会重新创建
+     *
+     * @param plugin 插件名
+     */
+    final void removeReceivers(String plugin) {
+        String prefix = plugin + "-";
+        synchronized (mReceivers) {
+            Iterator<String> it = mReceivers.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
     /**
      * 类加载器根据容器解析到目标的activity
      * @param container
@@ -210,9 +228,8 @@ class PluginProcessPer extends IPluginClient.Stub {
         if (LOG) {
             LogDebug.d(PLUGIN_TAG, "PluginImpl.query: call plugin aidl: plugin=" + p.mInfo.getName() + " binder.name=" + binder + " binder.object=" + b);
         }
-        if (b != null) {
-            // TODO 增加计数器
-        }
+        // 在用的Binder会阻止插件被移出内存
+        PluginBinderTracker.track(p.mInfo.getName(), b);
         return b;
     }
 
@@ -336,7 +353,9 @@ class PluginProcessPer extends IPluginClient.Stub {
 
     @Override
     public void onReceive(String plugin, final String receiver, final Intent intent) {
-        PluginReceiverHelper.onPluginReceiverReceived(plugin, receiver, mReceivers, intent);
+        synchronized (mReceivers) {
+            PluginReceiverHelper.onPluginReceiverReceived(plugin, receiver, mReceivers, intent);
+        }
     }
 
     @Override
@@ -34,16 +34,19 @@ import com.qihoo360.i.Factory;
 import com.qihoo360.i.IModule;
 import com.qihoo360.i.IPluginManager;
 import com.qihoo360.mobilesafe.api.Tasks;
+import com.qihoo360.mobilesafe.parser.manifest.ManifestParser;
 import com.qihoo360.replugin.IHostBinderFetcher;
 import com.qihoo360.replugin.RePlugin;
 import com.qihoo360.replugin.RePluginConstants;
 import com.qihoo360.replugin.RePluginInternal;
 import com.qihoo360.replugin.base.IPC;
 import com.qihoo360.replugin.component.activity.DynamicClassProxyActivity;
+import com.qihoo360.replugin.component.app.PluginApplicationClient;
 import com.qihoo360.replugin.component.dummy.DummyActivity;
 import com.qihoo360.replugin.component.dummy.DummyProvider;
 import com.qihoo360.replugin.component.dummy.DummyService;
 import com.qihoo360.replugin.component.process.PluginProcessHost;
+import com.qihoo360.replugin.component.provider.PluginProviderHelper;
 import com.qihoo360.replugin.component.service.server.PluginPitService;
 import com.qihoo360.replugin.helper.HostConfigHelper;
 import com.qihoo360.replugin.helper.LogDebug;
@@ -54,6 +57,7 @@ import com.qihoo360.replugin.utils.ReflectUtils;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -125,6 +129,27 @@ class PmBase {
      */
     private final HashMap<String, DynamicClass> mDynamicClasses = new HashMap<String, DynamicClass>();
 
+    /**
+     * 类的“路由表”：坑位（Activity、Service、Provider）和动态类 -> ROUTE_XXX <p>
+     * loadClass时只需查一次表，不在表中的即为普通的宿主类，可直接跳过各项插件检查
+     */
+    private final Map<String, Integer> mClassRoutes = new ConcurrentHashMap<>();
+
+    private static final int ROUTE_CONTAINER_ACTIVITY = 1;
+    private static final int ROUTE_CONTAINER_SERVICE = 2;
+    private static final int ROUTE_CONTAINER_PROVIDER = 3;
+    private static final int ROUTE_DYNAMIC = 4;
+
+    /**
+     * 在默认插件中找不到的类（负缓存），避免每次都去默认插件中找一遍
+     */
+    private final Map<String, Boolean> mDefaultClassMisses = new ConcurrentHashMap<>();
+
+    /**
+     * 负缓存的最大条目数，超过后清空重来
+     */
+    private static final int MAX_DEFAULT_CLASS_MISSES = 4096;
+
     /**
      *
      */
@@ -256,6 +281,17 @@ class PmBase {
         //初始化客户端binder对象
         mClient = new PluginProcessPer(context, this, PluginManager.sPluginProcessIndex, mContainerActivities);
 
+        // 坑位在此之后不再变化，预先建好路由表
+        for (String name : mContainerActivities) {
+            mClassRoutes.put(name, ROUTE_CONTAINER_ACTIVITY);
+        }
+        for (String name : mContainerServices) {
+            mClassRoutes.put(name, ROUTE_CONTAINER_SERVICE);
+        }
+        for (String name : mContainerProviders) {
+            mClassRoutes.put(name, ROUTE_CONTAINER_PROVIDER);
+        }
+
         //创建通信桥梁
         mLocal = new PluginCommImpl(context, this);
 
@@ -318,28 +354,99 @@ class PmBase {
         //清理之前的任务
         StubProcessManager.schedulePluginProcessLoop(StubProcessManager.CHECK_STAGE1_DELAY);
 
-        // 兼容即将废弃的p-n方案 by Jiongxuan Zhang
+        // 并发搜索p-n插件（兼容即将废弃的p-n方案）和"纯APK"插件，先生成一份"临时插件表"
+        // 删除过期文件、更新或删除Pending插件等耗时操作放到后台去做，以免阻塞其它进程的连接
         mAll = new Builder.PxAll();
-        Builder.builder(mContext, mAll);
+        final PluginDiscovery discovery = new PluginDiscovery(mContext, mAll, mHostSvc.mManager);
+        discovery.search();
         refreshPluginMap(mAll.getPlugins());
 
         // [Newest!] 使用全新的RePlugin APK方案
         // Added by Jiongxuan Zhang
+        // 将"纯APK"插件信息并入总的插件信息表中，方便查询
+        // 这里有可能会覆盖之前在p-n中加入的信息。本来我们就想这么干，以"纯APK"插件为准
+        // 注意：待卸载、待更新的插件稍后就会被删除或替换，故不放入"临时插件表"，以免其它进程在此期间加载到旧版本
+        // 它们在后台处理完后，若仍存在，会作为"有变化的插件"同步到各进程
+        final List<PluginInfo> provisional = excludePendingPlugins(discovery.getApkPlugins());
+        refreshPluginMap(provisional);
+
+        // 记下"临时插件表"中各插件的内容，以便稍后找出有变化的插件
+        final HashMap<String, PluginInfo> snapshot = new HashMap<>();
+        if (provisional != null) {
+            for (PluginInfo pi : provisional) {
+                snapshot.put(pi.getName(), (PluginInfo) pi.clone());
+            }
+        }
+
+        Tasks.post2Thread(new Runnable() {
+            @Override
+            public void run() {
+                discovery.cleanup();
+                finishApkPluginsLoading(snapshot);
+            }
+        });
+    }
+
+    /**
+     * @return 去掉“待卸载”和“待更新”插件后的列表；plugins为null时返回null
+     */
+    private static List<PluginInfo> excludePendingPlugins(List<PluginInfo> plugins) {
+        if (plugins == null) {
+            return null;
+        }
+        List<PluginInfo> result = new ArrayList<>(plugins.size());
+        for (PluginInfo pi : plugins) {
+            if (pi.isNeedUninstall() || pi.isNeedUpdate()) {
+                if (LOG) {
+                    LogDebug.d(PLUGIN_TAG, "initForServer: pending, not provisional. pi=" + pi);
+                }
+                continue;
+            }
+            result.add(pi);
+        }
+        return result;
+    }
+
+    /**
+     * 在后台完成"纯APK"插件的加载（更新或删除Pending插件等），并将有变化的插件同步到各进程
+     *
+     * @param snapshot "临时插件表"中各插件的内容
+     */
+    private void finishApkPluginsLoading(HashMap<String, PluginInfo> snapshot) {
+        List<PluginInfo> l;
         try {
             //这里调用的load是远程调用的，最终调用了PluginManagerServer的loadLocked方法
             //这里主要是判断之前安装的插件是否需要更新或删除等操作，然后进行响应的操作并返回处理后的集合，
             //返回的集合是一个副本，这样可以保证信息的安全性
             //加载插件
-            List<PluginInfo> l = PluginManagerProxy.load();
-            if (l != null) {
-                // 将"纯APK"插件信息并入总的插件信息表中，方便查询
-                // 这里有可能会覆盖之前在p-n中加入的信息。本来我们就想这么干，以"纯APK"插件为准
-                refreshPluginMap(l);
-            }
+            l = PluginManagerProxy.load();
         } catch (RemoteException e) {
             if (LOGR) {
                 LogRelease.e(PLUGIN_TAG, "lst.p: " + e.getMessage(), e);
             }
+            return;
+        }
+        if (l == null) {
+            return;
+        }
+
+        for (PluginInfo pi : l) {
+            PluginInfo old = snapshot.remove(pi.getName());
+            if (old != null && old.getJSON().toString().equals(pi.getJSON().toString())) {
+                continue;
+            }
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, "finishApkPluginsLoading: changed. pi=" + pi);
+            }
+            mHostSvc.syncInstalledPluginInfo2All(pi);
+        }
+
+        // 剩下的是已被删除的插件
+        for (PluginInfo pi : snapshot.values()) {
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, "finishApkPluginsLoading: removed. pi=" + pi);
+            }
+            mHostSvc.syncUninstalledPluginInfo2All(pi);
         }
     }
 
@@ -542,6 +649,11 @@ class PmBase {
         dc.className = target;
         dc.defClass = defClass;
         mDynamicClasses.put(className, dc);
+        // 坑位优先，和loadClass的判断顺序一致
+        if (!mClassRoutes.containsKey(className)) {
+            mClassRoutes.put(className, ROUTE_DYNAMIC);
+        }
+        mDefaultClassMisses.remove(className);
         return true;
     }
 
@@ -564,6 +676,10 @@ class PmBase {
 
     final void removeDynamicClass(String className) {
         mDynamicClasses.remove(className);
+        Integer route = mClassRoutes.get(className);
+        if (route != null && route == ROUTE_DYNAMIC) {
+            mClassRoutes.remove(className);
+        }
     }
 
     /**
@@ -685,8 +801,14 @@ class PmBase {
             return PluginPitService.class;
         }
 
+        // 查路由表：不在表中的是普通的宿主类，直接跳过坑位和动态类的检查
+        Integer route = mClassRoutes.get(className);
+        if (route == null) {
+            return loadDefaultClassWithCache(className);
+        }
+
         //
-        if (mContainerActivities.contains(className)) {
+        if (route == ROUTE_CONTAINER_ACTIVITY) {
             Class<?> c = mClient.resolveActivityClass(className);
             if (c != null) {
                 return c;
@@ -700,7 +822,7 @@ class PmBase {
         }
 
         //
-        if (mContainerServices.contains(className)) {
+        if (route == ROUTE_CONTAINER_SERVICE) {
             Class<?> c = loadServiceClass(className);
             if (c != null) {
                 return c;
@@ -714,7 +836,7 @@ class PmBase {
         }
 
         //
-        if (mContainerProviders.contains(className)) {
+        if (route == ROUTE_CONTAINER_PROVIDER) {
             Class<?> c = loadProviderClass(className);
             if (c != null) {
                 return c;
@@ -822,6 +944,27 @@ class PmBase {
         return loadDefaultClass(className);
     }
 
+    /**
+     * 同loadDefaultClass，但会记住“默认插件中没有”的类，下次直接返回null，交由宿主加载
+     */
+    private Class<?> loadDefaultClassWithCache(String className) {
+        if (mDefaultPlugin == null) {
+            // 非插件进程，或默认插件未加载，无需缓存
+            return loadDefaultClass(className);
+        }
+        if (mDefaultClassMisses.containsKey(className)) {
+            return null;
+        }
+        Class<?> c = loadDefaultClass(className);
+        if (c == null) {
+            if (mDefaultClassMisses.size() >= MAX_DEFAULT_CLASS_MISSES) {
+                mDefaultClassMisses.clear();
+            }
+            mDefaultClassMisses.put(className, Boolean.TRUE);
+        }
+        return c;
+    }
+
     /**
      * @param className
      * @return
@@ -1121,10 +1264,95 @@ class PmBase {
     }
 
     final Plugin lookupPlugin(ClassLoader loader) {
-        for (Plugin p : mPlugins.values()) {
-            if (p != null && p.getClassLoader() == loader) {
-                return p;
+        // 插件的ClassLoader只会由Loader创建，并在创建时写入反向索引。不在索引中的，肯定不是插件的
+        String name = PluginClassLoaderIndex.get(loader);
+        if (name == null) {
+            return null;
+        }
+        Plugin p = mPlugins.get(name);
+        if (p != null && p.getClassLoader() == loader) {
+            return p;
+        }
+        // 插件表中的Plugin对象不是用此ClassLoader的（如已被替换），则按原方式查找
+        for (Plugin pl : mPlugins.values()) {
+            if (pl != null && pl.getClassLoader() == loader) {
+                return pl;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 将插件移出当前进程的内存：丢弃其ClassLoader、Resources、PluginContext、Application等，下次使用时再重新加载 <p>
+     * 若插件在本进程中仍有存活的Activity、Service（含仍被绑定的）、已创建的Provider，或交出去的Binder仍在被使用，则不允许移出
+     *
+     * @param name 插件名
+     * @return 估算回收的内存（字节）；若不允许移出，则返回-1
+     */
+    final long unloadPlugin(String name) {
+        synchronized (LOCKER) {
+            Plugin p = mPlugins.get(name);
+            if (p == null) {
+                return -1;
+            }
+            String reason = checkUnloadable(p.mInfo.getName());
+            if (reason != null) {
+                if (LOGR) {
+                    LogRelease.w(PLUGIN_TAG, "pmb.up: refused. pn=" + name + "; r=" + reason);
+                }
+                return -1;
+            }
+
+            // 换上一个“未加载”的Plugin对象（包名和别名都要换），下次使用时自然会重新加载
+            if (p.mLoader != null) {
+                // 旧ClassLoader中的类可能仍被引用着，但已不属于任何“已加载”的插件
+                PluginClassLoaderIndex.remove(p.mLoader.mClassLoader);
+                Plugin fresh = Plugin.build(p.mInfo);
+                fresh.attach(mContext, mClassLoader, mLocal);
+                for (Map.Entry<String, Plugin> e : mPlugins.entrySet()) {
+                    if (e.getValue() == p) {
+                        mPlugins.put(e.getKey(), fresh);
+                    }
+                }
+            }
+
+            String pn = p.mInfo.getName();
+            PluginApplicationClient.terminate(pn);
+            mClient.removeReceivers(pn);
+            long bytes = Plugin.clearCachedPlugin(Plugin.queryCachedFilename(pn));
+            PluginManagerProxy.removeFromRunningPluginsNoThrows(pn);
+            PluginMemoryGovernor.onPluginUnloaded(pn);
+
+            if (LOGR) {
+                LogRelease.i(PLUGIN_TAG, "pmb.up: pn=" + pn + "; loaded=" + (p.mLoader != null) + "; bytes=" + bytes);
             }
+            return bytes;
+        }
+    }
+
+    /**
+     * @return 不允许移出插件的原因；若允许，则返回null
+     */
+    private String checkUnloadable(String name) {
+        if (mDefaultPlugin != null && TextUtils.equals(mDefaultPlugin.mInfo.getName(), name)) {
+            // 坑位进程的“默认插件”，进程内的类都靠它来加载
+            return "default";
+        }
+        if (mClient.mACM.hasRunningActivities(name)) {
+            return "activity";
+        }
+        if (mClient.mServiceMgr.hasRunningServices(name)) {
+            return "service";
+        }
+        if (mHostSvc != null && mHostSvc.mServiceMgr.hasRunningServices(name)) {
+            return "service";
+        }
+        if (PluginProviderHelper.hasInstalledProvider(name)) {
+            return "provider";
+        }
+        if (PluginBinderTracker.hasLive(name)) {
+            // 通过fetchBinder、IPlugin.query交出去的Binder、IModule仍在被使用
+            return "binder";
         }
         return null;
     }
@@ -1214,6 +1442,9 @@ class PmBase {
 
         // 移除内存中插件的PackageInfo、Resources、ComponentList和DexClassLoader缓存对象
         Plugin.clearCachedPlugin(Plugin.queryCachedFilename(info.getName()));
+
+        // 移除隐式启动用的IntentFilter索引
+        ManifestParser.INS.removePlugin(info.getName());
     }
 
     final IPluginClient startPluginProcessLocked(String plugin, int process, PluginBinderInfo info) {
@@ -345,6 +345,57 @@ class PmHostSvc extends IPluginHost.Stub {
         return pi;
     }
 
+    @Override
+    public List<PluginInfo> pluginsDownloaded(List<String> paths) throws RemoteException {
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "pluginsDownloaded： paths=" + paths);
+        }
+
+        // 旧的P-N插件逐个安装，其余的交给PluginManagerServer一次性安装
+        PluginInfo[] result = new PluginInfo[paths.size()];
+        ArrayList<String> apks = new ArrayList<>(paths.size());
+        ArrayList<Integer> apkIndexes = new ArrayList<>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            String fn = new File(path).getName();
+            if (fn.startsWith("p-n-") || fn.startsWith("v-plugin-") || fn.startsWith("plugin-s-") || fn.startsWith("p-m-")) {
+                result[i] = pluginDownloadedForPn(path);
+            } else {
+                apks.add(path);
+                apkIndexes.add(i);
+            }
+        }
+        if (!apks.isEmpty()) {
+            List<PluginInfo> installed = mManager.getService().installAll(apks);
+            for (int i = 0; installed != null && i < installed.size() && i < apkIndexes.size(); i++) {
+                result[apkIndexes.get(i)] = installed.get(i);
+            }
+        }
+
+        ArrayList<PluginInfo> list = new ArrayList<>(result.length);
+        for (PluginInfo pi : result) {
+            if (pi != null) {
+                syncInstalledPluginInfo2All(pi);
+            }
+            list.add(pi);
+        }
+        return list;
+    }
+
+    @Override
+    public PluginInfo pluginPatchDownloaded(String pluginName, String patchPath) throws RemoteException {
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "pluginPatchDownloaded： pn=" + pluginName + "; path=" + patchPath);
+        }
+
+        // 增量包只支持“纯APK”插件
+        PluginInfo pi = mManager.getService().installPatch(pluginName, patchPath);
+        if (pi != null) {
+            syncInstalledPluginInfo2All(pi);
+        }
+        return pi;
+    }
+
     @Override
     public boolean pluginUninstalled(PluginInfo info) throws RemoteException {
         if (LOG) {
@@ -360,7 +411,7 @@ class PmHostSvc extends IPluginHost.Stub {
         return result;
     }
 
-    private void syncInstalledPluginInfo2All(PluginInfo pi) {
+    void syncInstalledPluginInfo2All(PluginInfo pi) {
         // PS：若更新了“正在运行”的插件（属于“下次重启进程后更新”），则由于install返回的是“新的PluginInfo”，为防止出现“错误更新”，需要使用原来的
         //
         // 举例，有一个正在运行的插件A（其Info为PluginInfoOld）升级到新版（其Info为PluginInfoNew），则：
@@ -393,7 +444,7 @@ class PmHostSvc extends IPluginHost.Stub {
     }
 
 
-    private void syncUninstalledPluginInfo2All(PluginInfo pi) {
+    void syncUninstalledPluginInfo2All(PluginInfo pi) {
 
         // 在常驻进程内更新插件内存表
         mPluginMgr.pluginUninstalled(pi);
@@ -36,6 +36,7 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.security.MessageDigest;
 import java.util.Locale;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
@@ -329,26 +330,37 @@ public class V5FileInfo {
             if (LOG) {
                 LogDebug.d(PLUGIN_TAG, "update v5 plugin: extract ..." + " name=" + mName);
             }
-            //
+            // 释放的同时计算MD5（用于校验）和SHA-256（用于签名缓存），无需释放完后再完整读一遍
+            // 注：dis没有缓冲，故is的Channel恰好位于文件内容的起始处
             File tmpfile = new File(dir, String.format("%s_plugin.tmp", mName));
-            FileUtils.copyInputStreamToFile(dis, tmpfile);
+            os = new FileOutputStream(tmpfile);
+            MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+            MessageDigest sha256Digest = null;
+            MessageDigest digests[];
+            if (verifyCert) {
+                sha256Digest = MessageDigest.getInstance("SHA-256");
+                digests = new MessageDigest[]{md5Digest, sha256Digest};
+            } else {
+                digests = new MessageDigest[]{md5Digest};
+            }
+            byte rc[] = SecurityUtil.copyAndDigest(is.getChannel(), os.getChannel(), length, digests) ? md5Digest.digest() : null;
+            os.close();
+            os = null;
 
             // 检查结果，如果不成功就删除该文件
             boolean deleted = false;
 
-            // 长度校验
-            if (tmpfile.length() != length) {
+            // 长度校验：V5文件中的内容不足（如正在被覆盖），立即放弃
+            if (rc == null) {
                 if (LOG) {
-                    LogDebug.d(PLUGIN_TAG, "update v5 plugin: extract file length=" + tmpfile.length() + " expected=" + length);
+                    LogDebug.d(PLUGIN_TAG, "update v5 plugin: extract file truncated, expected=" + length + " name=" + mName);
                 }
                 deleted = true;
             }
 
             // MD5校验
             if (!deleted) {
-                byte rc[] = SecurityUtil.MD5(tmpfile);
-                String tmpMD5 = rc != null ? StringUtils.toHexString(rc) : "";
-                tmpMD5 = tmpMD5.toLowerCase(Locale.ENGLISH);
+                String tmpMD5 = StringUtils.toHexString(rc).toLowerCase(Locale.ENGLISH);
                 if (!md5.equals(tmpMD5)) {
                     if (LOG) {
                         LogDebug.d(PLUGIN_TAG, "update v5 plugin: extract=" + tmpMD5 + " orig=" + md5 + ", delete tmpfile" + " name=" + mName);
@@ -357,8 +369,19 @@ public class V5FileInfo {
                 }
             }
 
+            // 同一个文件此前已校验通过（如启动时重复释放）？则无需再解析APK和签名
+            String certKey = null;
+            boolean certVerified = false;
+            if (!deleted && verifyCert) {
+                certKey = PluginCertCache.keyOf(sha256Digest.digest(), length);
+                certVerified = PluginCertCache.isVerified(certKey);
+                if (LOG && certVerified) {
+                    LogDebug.d(PLUGIN_TAG, "update v5 plugin: cert verified before" + " name=" + mName);
+                }
+            }
+
             // 证书校验
-            if (!deleted) {
+            if (!deleted && !certVerified) {
                 PackageManager pm = context.getPackageManager();
                 PackageInfo info = null;
                 try {
@@ -387,6 +410,8 @@ public class V5FileInfo {
                         if (!RePluginInternal.FOR_DEV) {
                             deleted = true;
                         }
+                    } else if (!deleted) {
+                        PluginCertCache.put(certKey, info.signatures);
                     }
                 }
                 if (LOG) {
@@ -430,6 +455,7 @@ public class V5FileInfo {
                 LogDebug.d(PLUGIN_TAG, e.getMessage(), e);
             }
         } finally {
+            CloseableUtils.closeQuietly(os);
             CloseableUtils.closeQuietly(is);
             CloseableUtils.closeQuietly(dis);
         }
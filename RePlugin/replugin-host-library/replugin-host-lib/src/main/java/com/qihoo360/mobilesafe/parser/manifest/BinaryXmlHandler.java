@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.mobilesafe.parser.manifest;
+
+import com.qihoo360.replugin.ext.parser.parser.XmlStreamer;
+import com.qihoo360.replugin.ext.parser.struct.xml.Attribute;
+import com.qihoo360.replugin.ext.parser.struct.xml.XmlNamespaceEndTag;
+import com.qihoo360.replugin.ext.parser.struct.xml.XmlNamespaceStartTag;
+import com.qihoo360.replugin.ext.parser.struct.xml.XmlNodeEndTag;
+import com.qihoo360.replugin.ext.parser.struct.xml.XmlNodeStartTag;
+
+/**
+ * 解析 APK 中二进制形式的 AndroidManifest，由 BinaryXmlParser 直接回调，无需先转成 XML 文本再用 SAX 解析
+ *
+ * @author RePlugin Team
+ */
+class BinaryXmlHandler implements XmlStreamer {
+
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+
+    private final ComponentsBuilder builder = new ComponentsBuilder();
+
+    public ManifestComponents getComponents() {
+        return builder.build();
+    }
+
+    @Override
+    public void onStartTag(XmlNodeStartTag xmlNodeStartTag) {
+        final Attribute[] attributes = xmlNodeStartTag.getAttributes().value();
+        builder.onStartTag(xmlNodeStartTag.getName(), new ComponentsBuilder.AttributeSource() {
+            @Override
+            public String getValue(String name) {
+                return find(attributes, null, name);
+            }
+
+            @Override
+            public String getAndroidValue(String name) {
+                return find(attributes, ANDROID_NS, name);
+            }
+        });
+    }
+
+    @Override
+    public void onEndTag(XmlNodeEndTag xmlNodeEndTag) {
+        builder.onEndTag(xmlNodeEndTag.getName());
+    }
+
+    @Override
+    public void onNamespaceStart(XmlNamespaceStartTag tag) {
+        // 属性直接按命名空间的 URI 比较，无需记录前缀
+    }
+
+    @Override
+    public void onNamespaceEnd(XmlNamespaceEndTag tag) {
+        // Nothing
+    }
+
+    private static String find(Attribute[] attributes, String namespace, String name) {
+        for (Attribute attr : attributes) {
+            if (!name.equals(attr.getName())) {
+                continue;
+            }
+            String ns = attr.getNamespace();
+            if (namespace == null ? ns == null || ns.isEmpty() : namespace.equals(ns)) {
+                return attr.getValue();
+            }
+        }
+        return null;
+    }
+}
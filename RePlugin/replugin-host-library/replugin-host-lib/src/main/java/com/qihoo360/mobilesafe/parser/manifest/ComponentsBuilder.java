@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.mobilesafe.parser.manifest;
+
+import android.content.IntentFilter;
+import android.text.TextUtils;
+
+import com.qihoo360.mobilesafe.parser.manifest.bean.ComponentBean;
+import com.qihoo360.mobilesafe.parser.manifest.bean.DataBean;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 根据 AndroidManifest 的标签流生成 ManifestComponents，和具体的 XML 格式（文本或二进制）无关
+ *
+ * @author RePlugin Team
+ */
+final class ComponentsBuilder {
+
+    private ArrayList<ComponentBean> activities;
+    private ArrayList<ComponentBean> services;
+    private ArrayList<ComponentBean> receivers;
+
+    private String pkg;
+    private ComponentBean curComponent;
+    private IntentFilter curFilter;
+    private List<IntentFilter> filters;
+    private List<String> curActions;
+    private List<String> curCategories;
+    private List<DataBean> curDataBeans;
+
+    /**
+     * 标签属性的来源：SAX 解析出的 XML 文本，或 APK 中的二进制 XML
+     */
+    interface AttributeSource {
+
+        /**
+         * @param name 不带命名空间的属性名，如 package
+         */
+        String getValue(String name);
+
+        /**
+         * @param name android 命名空间下的属性名，如 name（即 android:name）
+         */
+        String getAndroidValue(String name);
+    }
+
+    ManifestComponents build() {
+        return new ManifestComponents(activities, services, receivers);
+    }
+
+    /**
+     * 标签开始
+     *
+     * @param tag        标签名（不含前缀）
+     * @param attributes 标签的属性
+     */
+    void onStartTag(String tag, AttributeSource attributes) {
+        switch (tag) {
+            case "manifest":
+                pkg = attributes.getValue("package");
+                break;
+
+            case "activity":
+                if (activities == null) {
+                    activities = new ArrayList<>();
+                }
+                curComponent = new ComponentBean();
+                filters = new ArrayList<>();
+                curComponent.intentFilters = filters;
+                curComponent.name = repairAttrName(attributes.getAndroidValue("name"));
+                break;
+
+            case "service":
+                if (services == null) {
+                    services = new ArrayList<>();
+                }
+                curComponent = new ComponentBean();
+                filters = new ArrayList<>();
+                curComponent.intentFilters = filters;
+                curComponent.name = repairAttrName(attributes.getAndroidValue("name"));
+                break;
+
+            case "receiver":
+                if (receivers == null) {
+                    receivers = new ArrayList<>();
+                }
+                curComponent = new ComponentBean();
+                filters = new ArrayList<>();
+                curComponent.intentFilters = filters;
+                curComponent.name = repairAttrName(attributes.getAndroidValue("name"));
+                break;
+
+            case "intent-filter":
+                curFilter = new IntentFilter();
+                curFilter.setPriority(parsePriority(attributes.getAndroidValue("priority")));
+                filters.add(curFilter);
+                break;
+
+            case "action":
+                if (curActions == null) {
+                    curActions = new ArrayList<>();
+                }
+                curActions.add(attributes.getAndroidValue("name"));
+                break;
+
+            case "category":
+                if (curCategories == null) {
+                    curCategories = new ArrayList<>();
+                }
+                curCategories.add(attributes.getAndroidValue("name"));
+                break;
+
+            case "data":
+                if (curDataBeans == null) {
+                    curDataBeans = new ArrayList<>();
+                }
+                DataBean bean = new DataBean();
+                bean.scheme = attributes.getAndroidValue("scheme");
+                bean.mimeType = attributes.getAndroidValue("mimeType");
+                bean.host = attributes.getAndroidValue("host");
+                bean.port = attributes.getAndroidValue("port");
+                bean.path = attributes.getAndroidValue("path");
+                bean.pathPattern = attributes.getAndroidValue("pathPattern");
+                bean.pathPrefix = attributes.getAndroidValue("pathPrefix");
+
+                curDataBeans.add(bean);
+                break;
+        }
+    }
+
+    /**
+     * 标签结束
+     *
+     * @param tag 标签名（不含前缀）
+     */
+    void onEndTag(String tag) {
+        switch (tag) {
+            case "intent-filter":
+                if (curActions != null) {
+                    for (String action : curActions) {
+                        curFilter.addAction(action);
+                    }
+                }
+                if (curCategories != null) {
+                    for (String cate : curCategories) {
+                        curFilter.addCategory(cate);
+                    }
+                }
+
+                if (curDataBeans != null) {
+                    for (DataBean bean : curDataBeans) {
+                        if (!TextUtils.isEmpty(bean.scheme)) {
+                            curFilter.addDataScheme(bean.scheme);
+                        }
+
+                        if (!TextUtils.isEmpty(bean.host) && !TextUtils.isEmpty(bean.port)) {
+                            curFilter.addDataAuthority(bean.host, bean.port);
+                        }
+
+                        if (!TextUtils.isEmpty(bean.path)) {
+                            curFilter.addDataPath(bean.path, bean.getPatternMatcherType());
+                        }
+
+                        try {
+                            if (!TextUtils.isEmpty(bean.mimeType)) {
+                                curFilter.addDataType(bean.mimeType);
+                            }
+                        } catch (IntentFilter.MalformedMimeTypeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+
+                curActions = null;
+                curCategories = null;
+                curDataBeans = null;
+                break;
+            case "activity":
+                activities.add(curComponent);
+                break;
+            case "service":
+                services.add(curComponent);
+                break;
+            case "receiver":
+                receivers.add(curComponent);
+                break;
+        }
+    }
+
+    /**
+     * @param val android:priority 属性的值
+     * @return 优先级；未设置或不合法时为 0，同系统
+     */
+    static int parsePriority(String val) {
+        if (TextUtils.isEmpty(val)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 如果 android:name 中未包含 pkg，则添加 pkg
+     *
+     * @param val android:name 属性的值
+     * @return 包含 package 的 android:name
+     */
+    private String repairAttrName(String val) {
+        // val 中未包含 pkg
+        if (!val.startsWith(".")) {
+            return val;
+        } else {
+            return (pkg + val).intern();
+        }
+    }
+}
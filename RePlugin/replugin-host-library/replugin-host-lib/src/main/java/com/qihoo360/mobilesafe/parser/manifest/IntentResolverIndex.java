@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.mobilesafe.parser.manifest;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+
+import com.qihoo360.mobilesafe.parser.manifest.bean.ComponentBean;
+import com.qihoo360.replugin.helper.LogDebug;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+
+/**
+ * 跨插件的 IntentFilter 索引，用于隐式启动 Activity、Service 时快速找到候选组件 <p>
+ * 1、和系统的 IntentResolver 类似，按 action、MIME 类型（主类型）、scheme 以及“不含 data”分别建立索引， <p>
+ * 查询时只对其中最小的那个候选集调用 IntentFilter.match，而无需遍历所有插件的所有 IntentFilter <p>
+ * 2、结果按 priority、匹配程度（MATCH_CATEGORY_XXX）从高到低排序，同 PackageManager.queryIntentActivities <p>
+ * 3、插件的组件信息生成（ManifestParser.parse）时加入，插件卸载时移除
+ *
+ * @author RePlugin Team
+ */
+public final class IntentResolverIndex {
+
+    private static final String TAG = "IntentResolverIndex";
+
+    /**
+     * 任意主类型，即以 "*" 开头的类型
+     */
+    private static final String WILD_BASE_TYPE = "*";
+
+    private final byte[] mLocker = new byte[0];
+
+    /**
+     * 插件名 -> 该插件的所有 IntentFilter
+     */
+    private final HashMap<String, List<Entry>> mPluginEntries = new HashMap<>();
+
+    private final HashMap<String, List<Entry>> mActionToEntries = new HashMap<>();
+
+    /**
+     * MIME 主类型（如 image） -> 含此类型的 IntentFilter
+     */
+    private final HashMap<String, List<Entry>> mBaseTypeToEntries = new HashMap<>();
+
+    private final HashMap<String, List<Entry>> mSchemeToEntries = new HashMap<>();
+
+    /**
+     * 既无 scheme 也无 type 的 IntentFilter
+     */
+    private final List<Entry> mNoDataEntries = new ArrayList<>();
+
+    private static final Comparator<Match> RESOLVE_PRIO_SORTER = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            int lp = lhs.getFilter().getPriority();
+            int rp = rhs.getFilter().getPriority();
+            if (lp != rp) {
+                return lp > rp ? -1 : 1;
+            }
+            int lm = lhs.getMatch() & IntentFilter.MATCH_CATEGORY_MASK;
+            int rm = rhs.getMatch() & IntentFilter.MATCH_CATEGORY_MASK;
+            if (lm != rm) {
+                return lm > rm ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private static final class Entry {
+
+        final String mPlugin;
+
+        final String mComponent;
+
+        final IntentFilter mFilter;
+
+        Entry(String plugin, String component, IntentFilter filter) {
+            mPlugin = plugin;
+            mComponent = component;
+            mFilter = filter;
+        }
+    }
+
+    /**
+     * 匹配结果
+     */
+    public static final class Match {
+
+        private final Entry mEntry;
+
+        private final int mMatch;
+
+        private Match(Entry entry, int match) {
+            mEntry = entry;
+            mMatch = match;
+        }
+
+        /**
+         * @return 组件所在的插件名
+         */
+        public String getPlugin() {
+            return mEntry.mPlugin;
+        }
+
+        /**
+         * @return 组件类名
+         */
+        public String getComponent() {
+            return mEntry.mComponent;
+        }
+
+        public IntentFilter getFilter() {
+            return mEntry.mFilter;
+        }
+
+        /**
+         * @return IntentFilter.match 的结果
+         */
+        public int getMatch() {
+            return mMatch;
+        }
+    }
+
+    IntentResolverIndex() {
+    }
+
+    /**
+     * 加入（或替换）插件的组件
+     *
+     * @param plugin     插件名
+     * @param components 插件中的一类组件（如所有 Activity）
+     */
+    void put(String plugin, List<ComponentBean> components) {
+        synchronized (mLocker) {
+            removeLocked(plugin);
+            if (components == null) {
+                return;
+            }
+            List<Entry> entries = new ArrayList<>();
+            for (ComponentBean cb : components) {
+                if (cb.intentFilters == null) {
+                    continue;
+                }
+                for (IntentFilter filter : cb.intentFilters) {
+                    Entry e = new Entry(plugin, cb.name, filter);
+                    entries.add(e);
+                    addLocked(e);
+                }
+            }
+            if (!entries.isEmpty()) {
+                mPluginEntries.put(plugin, entries);
+            }
+        }
+    }
+
+    /**
+     * 移除插件的所有组件
+     *
+     * @param plugin 插件名
+     */
+    void remove(String plugin) {
+        synchronized (mLocker) {
+            removeLocked(plugin);
+        }
+    }
+
+    /**
+     * 查找能响应 Intent 的组件
+     *
+     * @param context Context，用于解析 Intent 的 MIME 类型
+     * @param intent  调用方传来的 Intent
+     * @param plugin  只在此插件中查找；为 null 时查找所有插件
+     * @return 按 priority、匹配程度从高到低排序的结果，不会为 null
+     */
+    public List<Match> query(Context context, Intent intent, String plugin) {
+        final String action = intent.getAction();
+        final String type = intent.resolveTypeIfNeeded(context.getContentResolver());
+        final Uri data = intent.getData();
+        final String scheme = intent.getScheme();
+        final Set<String> categories = intent.getCategories();
+
+        List<Match> result = new ArrayList<>();
+        synchronized (mLocker) {
+            List<Entry> candidates = getCandidatesLocked(action, type, scheme, data, plugin);
+            for (Entry e : candidates) {
+                if (plugin != null && !plugin.equals(e.mPlugin)) {
+                    continue;
+                }
+                int match = e.mFilter.match(action, type, scheme, data, categories, TAG);
+                if (match >= 0) {
+                    result.add(new Match(e, match));
+                }
+            }
+            if (LOG) {
+                LogDebug.d(TAG, "query: intent=" + intent + "; plugin=" + plugin + "; candidates=" + candidates.size() + "; matched=" + result.size());
+            }
+        }
+        // 稳定排序：同等条件下保持加入的顺序
+        Collections.sort(result, RESOLVE_PRIO_SORTER);
+        return result;
+    }
+
+    /**
+     * 取各个索引中最小的候选集。能匹配 Intent 的 IntentFilter 一定同时出现在每个适用的索引中
+     */
+    private List<Entry> getCandidatesLocked(String action, String type, String scheme, Uri data, String plugin) {
+        List<Entry> best = plugin != null ? listOf(mPluginEntries.get(plugin)) : null;
+
+        if (action != null) {
+            best = smaller(best, listOf(mActionToEntries.get(action)));
+        }
+
+        if (type != null) {
+            // Intent 带有类型时，IntentFilter 必须声明了可以匹配的类型
+            String baseType = getBaseType(type);
+            if (!WILD_BASE_TYPE.equals(baseType)) {
+                List<Entry> typed = listOf(mBaseTypeToEntries.get(baseType));
+                List<Entry> wild = mBaseTypeToEntries.get(WILD_BASE_TYPE);
+                if (wild != null) {
+                    typed = new ArrayList<>(typed);
+                    for (Entry e : wild) {
+                        // 同时声明了具体类型和任意类型的，只保留一份
+                        if (!typed.contains(e)) {
+                            typed.add(e);
+                        }
+                    }
+                }
+                best = smaller(best, typed);
+            }
+        } else if (scheme != null) {
+            // 没有类型、但有 scheme 时，IntentFilter 必须声明了此 scheme
+            best = smaller(best, listOf(mSchemeToEntries.get(scheme)));
+        } else if (data == null) {
+            best = smaller(best, mNoDataEntries);
+        }
+
+        if (best == null) {
+            // 既无 action 也无可用的 data，只能逐个匹配
+            best = new ArrayList<>();
+            for (List<Entry> entries : mPluginEntries.values()) {
+                best.addAll(entries);
+            }
+        }
+        return best;
+    }
+
+    private void addLocked(Entry e) {
+        IntentFilter filter = e.mFilter;
+        Iterator<String> actions = filter.actionsIterator();
+        while (actions != null && actions.hasNext()) {
+            addTo(mActionToEntries, actions.next(), e);
+        }
+
+        boolean hasData = false;
+        if (filter.countDataTypes() > 0) {
+            hasData = true;
+            // 同一主类型只加入一次
+            List<String> added = new ArrayList<>();
+            Iterator<String> types = filter.typesIterator();
+            while (types != null && types.hasNext()) {
+                String baseType = getBaseType(types.next());
+                if (!added.contains(baseType)) {
+                    added.add(baseType);
+                    addTo(mBaseTypeToEntries, baseType, e);
+                }
+            }
+        }
+        if (filter.countDataSchemes() > 0) {
+            hasData = true;
+            Iterator<String> schemes = filter.schemesIterator();
+            while (schemes != null && schemes.hasNext()) {
+                addTo(mSchemeToEntries, schemes.next(), e);
+            }
+        }
+        if (!hasData) {
+            mNoDataEntries.add(e);
+        }
+    }
+
+    private void removeLocked(String plugin) {
+        if (mPluginEntries.remove(plugin) == null) {
+            return;
+        }
+        removeFrom(mActionToEntries, plugin);
+        removeFrom(mBaseTypeToEntries, plugin);
+        removeFrom(mSchemeToEntries, plugin);
+        removeFrom(mNoDataEntries, plugin);
+    }
+
+    private static void addTo(HashMap<String, List<Entry>> map, String key, Entry e) {
+        List<Entry> entries = map.get(key);
+        if (entries == null) {
+            entries = new ArrayList<>(2);
+            map.put(key, entries);
+        }
+        entries.add(e);
+    }
+
+    private static void removeFrom(HashMap<String, List<Entry>> map, String plugin) {
+        Iterator<Map.Entry<String, List<Entry>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            List<Entry> entries = it.next().getValue();
+            removeFrom(entries, plugin);
+            if (entries.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void removeFrom(List<Entry> entries, String plugin) {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            if (it.next().mPlugin.equals(plugin)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static List<Entry> smaller(List<Entry> a, List<Entry> b) {
+        if (a == null) {
+            return b;
+        }
+        return b.size() < a.size() ? b : a;
+    }
+
+    private static List<Entry> listOf(List<Entry> entries) {
+        return entries != null ? entries : Collections.<Entry>emptyList();
+    }
+
+    private static String getBaseType(String type) {
+        int slash = type.indexOf('/');
+        return slash > 0 ? type.substring(0, slash) : type;
+    }
+}
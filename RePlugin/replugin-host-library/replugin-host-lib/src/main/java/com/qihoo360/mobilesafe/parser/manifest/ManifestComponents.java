@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.mobilesafe.parser.manifest;
+
+import android.content.IntentFilter;
+import android.os.Parcel;
+
+import com.qihoo360.mobilesafe.parser.manifest.bean.ComponentBean;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AndroidManifest 中各组件及其 IntentFilter 的解析结果 <p>
+ * 可写入 Parcel，由 PackageSnapshot 在安装时保存，这样各进程加载插件时无需再读取和解析 AndroidManifest
+ *
+ * @author RePlugin Team
+ */
+public final class ManifestComponents {
+
+    /**
+     * 不含任何组件，用于解析失败时
+     */
+    public static final ManifestComponents EMPTY = new ManifestComponents(null, null, null);
+
+    private final List<ComponentBean> mActivities;
+    private final List<ComponentBean> mServices;
+    private final List<ComponentBean> mReceivers;
+
+    ManifestComponents(List<ComponentBean> activities, List<ComponentBean> services, List<ComponentBean> receivers) {
+        mActivities = activities;
+        mServices = services;
+        mReceivers = receivers;
+    }
+
+    public List<ComponentBean> getActivities() {
+        return mActivities;
+    }
+
+    public List<ComponentBean> getServices() {
+        return mServices;
+    }
+
+    public List<ComponentBean> getReceivers() {
+        return mReceivers;
+    }
+
+    /**
+     * 写入 Parcel，和 readFromParcel 对应
+     */
+    public void writeToParcel(Parcel dest) {
+        writeComponents(dest, mActivities);
+        writeComponents(dest, mServices);
+        writeComponents(dest, mReceivers);
+    }
+
+    /**
+     * 从 Parcel 中读取由 writeToParcel 写入的内容
+     */
+    public static ManifestComponents readFromParcel(Parcel source) {
+        List<ComponentBean> activities = readComponents(source);
+        List<ComponentBean> services = readComponents(source);
+        List<ComponentBean> receivers = readComponents(source);
+        return new ManifestComponents(activities, services, receivers);
+    }
+
+    private static void writeComponents(Parcel dest, List<ComponentBean> components) {
+        if (components == null) {
+            dest.writeInt(-1);
+            return;
+        }
+        dest.writeInt(components.size());
+        for (ComponentBean cb : components) {
+            dest.writeString(cb.name);
+            if (cb.intentFilters == null) {
+                dest.writeInt(-1);
+                continue;
+            }
+            dest.writeInt(cb.intentFilters.size());
+            for (IntentFilter filter : cb.intentFilters) {
+                filter.writeToParcel(dest, 0);
+            }
+        }
+    }
+
+    private static List<ComponentBean> readComponents(Parcel source) {
+        int size = source.readInt();
+        if (size < 0) {
+            return null;
+        }
+        List<ComponentBean> components = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ComponentBean cb = new ComponentBean();
+            cb.name = source.readString();
+            int count = source.readInt();
+            if (count >= 0) {
+                cb.intentFilters = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    cb.intentFilters.add(IntentFilter.CREATOR.createFromParcel(source));
+                }
+            }
+            components.add(cb);
+        }
+        return components;
+    }
+}
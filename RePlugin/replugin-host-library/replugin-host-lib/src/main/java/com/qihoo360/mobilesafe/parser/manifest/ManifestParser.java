@@ -20,12 +20,14 @@ import android.content.IntentFilter;
 import android.os.PatternMatcher;
 
 import com.qihoo360.mobilesafe.parser.manifest.bean.ComponentBean;
+import com.qihoo360.replugin.ext.parser.AbstractApkParser;
 import com.qihoo360.replugin.helper.LogDebug;
 import com.qihoo360.replugin.model.PluginInfo;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
 
+import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -65,6 +67,12 @@ public enum ManifestParser {
     private Map<String, Set<String>> mActivityActionPluginsMap = new HashMap<>();
     private Map<String, Set<String>> mServiceActionPluginsMap = new HashMap<>();
 
+    /**
+     * 跨插件的 Activity、Service 的 IntentFilter 索引，用于隐式启动
+     */
+    private final IntentResolverIndex mActivityResolver = new IntentResolverIndex();
+    private final IntentResolverIndex mServiceResolver = new IntentResolverIndex();
+
     /**
      * 解析 AndroidManifest
      *
@@ -72,19 +80,53 @@ public enum ManifestParser {
      * @param manifestStr AndroidManifest.xml 字符串
      */
     public void parse(PluginInfo pli, String manifestStr) {
-        XmlHandler handler = parseManifest(manifestStr);
+        parse(pli, parseComponents(manifestStr));
+    }
+
+    /**
+     * 解析 AndroidManifest 中的组件及其 IntentFilter，不修改任何状态
+     *
+     * @param manifestStr AndroidManifest.xml 字符串
+     * @return 解析结果，可由 PackageSnapshot 保存
+     */
+    public ManifestComponents parseComponents(String manifestStr) {
+        return parseManifest(manifestStr).getComponents();
+    }
+
+    /**
+     * 直接解析 APK 中的二进制 AndroidManifest，不经过 XML 文本 <p>
+     * 属性值直接取自二进制 XML 的字符串池，同一个字符串只会有一份
+     *
+     * @param parser 插件 APK 的解析器
+     * @return 解析结果，可由 PackageSnapshot 保存
+     */
+    public ManifestComponents parseComponents(AbstractApkParser parser) throws IOException {
+        BinaryXmlHandler handler = new BinaryXmlHandler();
+        parser.parseManifestXml(handler);
+        return handler.getComponents();
+    }
 
+    /**
+     * 根据已解析好的组件信息，生成组件与 IntentFilter 的对应关系
+     *
+     * @param pli        插件信息
+     * @param components 见 parseComponents
+     */
+    public void parse(PluginInfo pli, ManifestComponents components) {
         Map<String, List<IntentFilter>> activityFilterMap = new HashMap<>();
         putToMap(mPluginActivityInfoMap, activityFilterMap, pli);
-        parseComponent(pli.getName(), activityFilterMap, handler.getActivities(), mActivityActionPluginsMap);
+        parseComponent(pli.getName(), activityFilterMap, components.getActivities(), mActivityActionPluginsMap);
 
         Map<String, List<IntentFilter>> serviceFilterMap = new HashMap<>();
         putToMap(mPluginServiceInfoMap, serviceFilterMap, pli);
-        parseComponent(pli.getName(), serviceFilterMap, handler.getServices(), mServiceActionPluginsMap);
+        parseComponent(pli.getName(), serviceFilterMap, components.getServices(), mServiceActionPluginsMap);
 
         Map<String, List<IntentFilter>> receiverFilterMap = new HashMap<>();
         putToMap(mPluginReceiverInfoMap, receiverFilterMap, pli);
-        parseComponent(pli.getName(), receiverFilterMap, handler.getReceivers(), null);
+        parseComponent(pli.getName(), receiverFilterMap, components.getReceivers(), null);
+
+        mActivityResolver.put(pli.getName(), components.getActivities());
+        mServiceResolver.put(pli.getName(), components.getServices());
 
         /* 打印日志 */
         if (LOG) {
@@ -174,6 +216,24 @@ public enum ManifestParser {
         return mServiceActionPluginsMap.get(action);
     }
 
+    /**
+     * 插件被卸载时调用，将其组件从索引中移除
+     *
+     * @param plugin 插件名称
+     */
+    public void removePlugin(String plugin) {
+        mActivityResolver.remove(plugin);
+        mServiceResolver.remove(plugin);
+    }
+
+    public IntentResolverIndex getActivityResolver() {
+        return mActivityResolver;
+    }
+
+    public IntentResolverIndex getServiceResolver() {
+        return mServiceResolver;
+    }
+
     public Map<String, List<IntentFilter>> getActivityFilterMap(String plugin) {
         return mPluginActivityInfoMap.get(plugin);
     }
@@ -20,9 +20,11 @@ import android.os.Build;
 
 import com.qihoo360.replugin.helper.LogDebug;
 import com.qihoo360.replugin.model.PluginInfo;
+import com.qihoo360.replugin.packages.PluginClassIndex;
 import com.qihoo360.replugin.utils.CloseableUtils;
 import com.qihoo360.replugin.utils.FileUtils;
 import com.qihoo360.replugin.utils.ReflectUtils;
+import com.qihoo360.replugin.utils.pkg.ApkHandle;
 
 import java.io.File;
 import java.io.IOException;
@@ -30,9 +32,12 @@ import java.io.InputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -55,6 +60,16 @@ public class PluginDexClassLoader extends DexClassLoader {
 
     private String mPluginName;
 
+    /**
+     * 插件Dex的类名索引，可能为null（如尚未生成）
+     */
+    private final PluginClassIndex mClassIndex;
+
+    /**
+     * parent中没有的类名。parent（通常为BootClassLoader）的内容不会变，故记下后无需每次都让其构造一个ClassNotFoundException
+     */
+    private final Set<String> mParentMisses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     /**
      * 初始化插件的DexClassLoader的构造函数。插件化框架会调用此函数。
      *
@@ -79,6 +94,8 @@ public class PluginDexClassLoader extends DexClassLoader {
         mHostClassLoader = RePluginInternal.getAppClassLoader();
 
         initMethods(mHostClassLoader);
+
+        mClassIndex = PluginClassIndex.readOrBuildLater(new File(dexPath));
     }
 
     private static void initMethods(ClassLoader cl) {
@@ -93,6 +110,21 @@ public class PluginDexClassLoader extends DexClassLoader {
 
     @Override
     protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        // 根据类名索引，插件Dex中肯定没有此类？则无需再去插件Dex中找，省去构造异常的开销
+        if (mClassIndex != null && !mClassIndex.mightContain(className)) {
+            Class<?> c = loadClassNotInPlugin(className, resolve);
+            if (c != null) {
+                return c;
+            }
+            // 宿主中也没有？可能是插件运行时动态加入的Dex，直接在插件自己的Dex中找（parent和宿主都已找过，无需再走一遍原流程）
+            // 找不到时由findClass抛出唯一的一个ClassNotFoundException
+            c = findClass(className);
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+
         // 插件自己的Class。从自己开始一直到BootClassLoader，采用正常的双亲委派模型流程，读到了就直接返回
         Class<?> pc = null;
         ClassNotFoundException cnfException = null;
@@ -145,6 +177,34 @@ public class PluginDexClassLoader extends DexClassLoader {
         return null;
     }
 
+    /**
+     * 加载“插件Dex中没有”的类：依次从已加载的类、parent（BootClassLoader）和宿主中找，规则和loadClass一致
+     *
+     * @return 找到的类，找不到则返回null（由调用方抛出ClassNotFoundException）
+     */
+    private Class<?> loadClassNotInPlugin(String className, boolean resolve) {
+        Class<?> c = findLoadedClass(className);
+        if (c != null) {
+            return c;
+        }
+        if (!mParentMisses.contains(className)) {
+            try {
+                return getParent().loadClass(className);
+            } catch (ClassNotFoundException e) {
+                // 记下来，下次直接跳过
+                mParentMisses.add(className);
+            }
+        }
+        if (PluginDexClassLoaderPatch.need2LoadFromHost(className) || RePlugin.getConfig().isUseHostClassIfNotFound()) {
+            try {
+                return loadClassFromHost(className, resolve);
+            } catch (ClassNotFoundException e) {
+                // Ignore
+            }
+        }
+        return null;
+    }
+
     private Class<?> loadClassFromHost(String className, boolean resolve) throws ClassNotFoundException {
         Class<?> c;
         try {
@@ -273,20 +333,18 @@ public class PluginDexClassLoader extends DexClassLoader {
      */
     private List<File> getExtraDexFiles(PluginInfo pi, String dexPath) {
 
-        ZipFile zipFile = null;
-        List<File> files = null;
+        if (pi == null) {
+            return null;
+        }
 
+        List<File> files = null;
+        ApkHandle handle = ApkHandle.acquire(dexPath);
         try {
-
-            if (pi != null) {
-                zipFile = new ZipFile(dexPath);
-                files = traverseExtraDex(pi, zipFile);
-            }
-
+            files = traverseExtraDex(pi, handle.getZipFile());
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            CloseableUtils.closeQuietly(zipFile);
+            handle.release();
         }
 
         return files;
@@ -19,6 +19,7 @@ package com.qihoo360.replugin;
 import android.app.Activity;
 import android.app.Application;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -43,6 +44,8 @@ import com.qihoo360.loader2.CertUtils;
 import com.qihoo360.loader2.DumpUtils;
 import com.qihoo360.loader2.MP;
 import com.qihoo360.loader2.PMF;
+import com.qihoo360.loader2.PluginCertCache;
+import com.qihoo360.loader2.PluginMemoryTrimmer;
 import com.qihoo360.loader2.PluginStatusController;
 import com.qihoo360.mobilesafe.api.AppVar;
 import com.qihoo360.mobilesafe.api.Tasks;
@@ -59,12 +62,16 @@ import com.qihoo360.replugin.model.PluginInfo;
 import com.qihoo360.replugin.packages.PluginFastInstallProviderProxy;
 import com.qihoo360.replugin.packages.PluginInfoUpdater;
 import com.qihoo360.replugin.packages.PluginManagerProxy;
+import com.qihoo360.replugin.packages.PluginPreloadScheduler;
+import com.qihoo360.replugin.packages.PluginPrewarmer;
 import com.qihoo360.replugin.packages.PluginRunningList;
 import com.qihoo360.replugin.packages.RePluginInstaller;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -148,6 +155,77 @@ public class RePlugin {
         return MP.pluginDownloaded(path);
     }
 
+    /**
+     * 批量安装或升级插件 <p>
+     * 和逐个调用install相比： <p>
+     * 1、“纯APK”插件在常驻进程中并发地校验、移动（或复制）和释放So，且只需一次IPC <p>
+     * 2、所有插件处理完毕后，插件信息只保存一次 <p>
+     * 3、此方法是【同步】的，建议在线程中调用。各插件的失败原因，仍通过RePluginEventCallbacks.onInstallPluginFailed回调
+     *
+     * @param paths 插件安装的地址列表。必须是“绝对路径”
+     * @return 和paths一一对应的安装结果。安装失败的，对应位置为null
+     * @see #install(String)
+     * @since 2.2.2
+     */
+    public static List<PluginInfo> installAll(List<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException();
+        }
+
+        // 不合法的文件直接跳过，和install的判断一致
+        PluginInfo[] result = new PluginInfo[paths.size()];
+        ArrayList<String> valids = new ArrayList<>(paths.size());
+        ArrayList<Integer> validIndexes = new ArrayList<>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            if (TextUtils.isEmpty(path) || !new File(path).isFile()) {
+                if (LogDebug.LOG) {
+                    LogDebug.e(TAG, "installAll: Not a valid file. path=" + path);
+                }
+                continue;
+            }
+            valids.add(path);
+            validIndexes.add(i);
+        }
+
+        if (!valids.isEmpty()) {
+            List<PluginInfo> installed = MP.pluginsDownloaded(valids);
+            for (int i = 0; i < installed.size() && i < validIndexes.size(); i++) {
+                result[validIndexes.get(i)] = installed.get(i);
+            }
+        }
+        return new ArrayList<>(Arrays.asList(result));
+    }
+
+    /**
+     * 根据“增量包”（Patch）升级此插件 <p>
+     * 注意： <p>
+     * 1、只支持“纯APK”插件，且插件必须已安装。增量包须针对已安装的版本（或尚未生效的“待更新版本”）生成 <p>
+     * 2、会在本地以流的方式合成新APK，校验其MD5后，再走和install相同的流程（校验签名、版本，立即或稍后更新） <p>
+     * 3、此方法是【同步】的，耗时和APK大小有关，建议在线程中调用 <p>
+     * 4、增量包不会被删除，由调用方自行处理
+     *
+     * @param pluginName 要升级的插件名
+     * @param patchPath  增量包的路径。必须是“绝对路径”
+     * @return 安装成功的插件信息；失败则返回null
+     * @see RePluginEventCallbacks.InstallResult#APPLY_PATCH_FAIL
+     * @since 2.2.2
+     */
+    public static PluginInfo installPatch(String pluginName, String patchPath) {
+        if (TextUtils.isEmpty(pluginName) || TextUtils.isEmpty(patchPath)) {
+            throw new IllegalArgumentException();
+        }
+
+        File file = new File(patchPath);
+        if (!file.isFile()) {
+            if (LogDebug.LOG) {
+                LogDebug.e(TAG, "installPatch: Not a valid file. path=" + patchPath);
+            }
+            return null;
+        }
+        return MP.pluginPatchDownloaded(pluginName, patchPath);
+    }
+
     /**
      * 卸载此插件 <p>
      * 注意： <p>
@@ -165,6 +243,27 @@ public class RePlugin {
         return MP.pluginUninstall(pluginName);
     }
 
+    /**
+     * 将插件移出当前进程的内存（ClassLoader、Resources、Context、Application等），以回收内存 <p>
+     * 使用场景：进程中积累了很多“只用过一次”的插件，而这些插件近期不会再用时 <p>
+     * 注意： <p>
+     * 1、只针对当前进程。若插件在本进程中仍有存活的Activity、Service（含仍被绑定的），已创建过Provider， <p>
+     * 或通过fetchBinder、IPlugin.query交出去的Binder、IModule仍被引用着（含被其它进程引用），则不会移出 <p>
+     * 2、调用方不应再持有插件的其它类、对象（如注册到宿主的回调等），否则内存无法真正回收 <p>
+     * 3、移出后，插件的Application会收到onTerminate回调；下次使用插件时会重新加载，并再次调用其Application.onCreate <p>
+     * 4、建议在UI线程中调用，以免和Activity的启动同时进行
+     *
+     * @param pluginName 插件名
+     * @return 估算回收的内存（字节）；若插件不存在或仍在使用中，则返回-1
+     * @since 2.2.2
+     */
+    public static long unload(String pluginName) {
+        if (TextUtils.isEmpty(pluginName)) {
+            throw new IllegalArgumentException();
+        }
+        return Factory.unloadPlugin(pluginName);
+    }
+
     /**
      * 预加载此插件。此方法会立即释放优化后的Dex和Native库，但不会运行插件代码。 <p>
      * 具体用法可参见preload(PluginInfo)的说明
@@ -209,6 +308,40 @@ public class RePlugin {
         return PluginFastInstallProviderProxy.install(RePluginInternal.getAppContext(), pi);
     }
 
+    /**
+     * 异步预加载此插件（后台优先级）。具体说明请参见preloadAsync(String, int, PreloadCallback)
+     *
+     * @param pluginName 要加载的插件名
+     * @return 预加载任务，可用来等待结果或取消
+     * @see #preloadAsync(String, int, PluginPreloadScheduler.PreloadCallback)
+     * @since 2.2.2
+     */
+    public static PluginPreloadScheduler.PreloadTask preloadAsync(String pluginName) {
+        return preloadAsync(pluginName, PluginPreloadScheduler.PRIORITY_BACKGROUND, null);
+    }
+
+    /**
+     * 异步预加载此插件。效果和preload(String)相同，但不会阻塞调用线程 <p>
+     * 注意： <p>
+     * 1、任务按优先级调度（见PluginPreloadScheduler.PRIORITY_XXX），同优先级则先进先出 <p>
+     * 2、同一插件的并发请求会被合并，返回同一个任务对象；若新请求的优先级更高，则提升该任务的优先级 <p>
+     * 3、若在任务执行前打开了该插件的Activity，则其任务会被自动提到最前 <p>
+     * 4、回调运行在调度器的工作线程中；若任务被取消则不会回调
+     *
+     * @param pluginName 要加载的插件名
+     * @param priority   优先级
+     * @param cb         预加载结束时的回调，可为null
+     * @return 预加载任务，可用来等待结果（get）或取消排队中的任务（cancel）
+     * @see #preload(String)
+     * @since 2.2.2
+     */
+    public static PluginPreloadScheduler.PreloadTask preloadAsync(String pluginName, int priority, PluginPreloadScheduler.PreloadCallback cb) {
+        if (TextUtils.isEmpty(pluginName)) {
+            throw new IllegalArgumentException();
+        }
+        return PluginPreloadScheduler.submit(pluginName, priority, cb);
+    }
+
     /**
      * 是否启用调试器,Debug阶段建议开启,Release阶段建议关闭,默认为关闭状态
      *
@@ -338,6 +471,7 @@ public class RePlugin {
             throw new IllegalArgumentException("arg is null");
         }
         CertUtils.SIGNATURES.add(sign.toUpperCase());
+        PluginCertCache.onCertsChanged();
     }
 
     /**
@@ -1018,6 +1152,9 @@ public class RePlugin {
                 PluginInfoUpdater.register(RePluginInternal.getAppContext());
             }
 
+            // 空闲时预热本进程接下来可能用到的插件
+            PluginPrewarmer.scheduleOnIdle();
+
             // 打印当前内存占用情况
             // 只有开启“详细日志”才会输出，防止“消耗性能”
             if (LOG && RePlugin.getConfig().isPrintDetailLog()) {
@@ -1039,6 +1176,9 @@ public class RePlugin {
                 return;
             }
 
+            // 淘汰未运行插件的Resources、ClassLoader等缓存，并移出空闲的插件
+            PluginMemoryTrimmer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
             // 遍历插件的Application对象，并调用其onLowMemory
             PluginApplicationClient.notifyOnLowMemory();
         }
@@ -1057,6 +1197,9 @@ public class RePlugin {
                 return;
             }
 
+            // 淘汰未运行插件的Resources、ClassLoader等缓存，并移出空闲的插件
+            PluginMemoryTrimmer.onTrimMemory(level);
+
             // 遍历插件的Application对象，并调用其onTrimMemory
             PluginApplicationClient.notifyOnTrimMemory(level);
         }
@@ -53,6 +53,15 @@ public final class RePluginConfig {
 
     private boolean optimizeArtLoadDex = false;//是否在Art上对首次加载插件速度做优化
 
+    private boolean concurrentLoadStages = true;//加载插件时，是否并行创建Resources和ClassLoader
+
+    private long pluginCacheBudget = 0;//插件加载产物（Resources、ClassLoader等）缓存的预算大小，0为默认值
+
+    private boolean predictivePrewarm = false;//是否根据使用记录，在进程空闲时预热接下来可能用到的插件
+    private boolean dexOptAfterInstall = false;//是否在插件安装后，于后台提前做Dex优化
+    private boolean memoryGovernor = false;//是否在超出内存预算或内存紧张时，将空闲的插件移出内存
+    private long pluginMemoryBudget = 0;//每个进程中“正在运行”插件的内存预算大小，0为默认值
+
     /**
      * 获取插件回调方法。通常无需调用此方法。
      *
@@ -362,4 +371,167 @@ public final class RePluginConfig {
         this.optimizeArtLoadDex = optimizeArtLoadDex;
         return this;
     }
-}
\ No newline at end of file
+
+    /**
+     * 加载插件时，是否并行创建Resources和ClassLoader
+     *
+     * @return 是否并行
+     * @since 2.2.2
+     */
+    public boolean isConcurrentLoadStages() {
+        return concurrentLoadStages;
+    }
+
+    /**
+     * 加载插件时，是否并行创建Resources和ClassLoader？默认为True <p>
+     * 两者只依赖插件的PackageInfo，故在首次加载（需释放odex）时，将Resources的创建放到工作线程中，可缩短加载耗时 <p>
+     * 若插件的Resources创建过程依赖调用线程（极少见），可关闭此开关，恢复为串行加载
+     *
+     * @param concurrentLoadStages 是否并行
+     * @return RePluginConfig自己。这样可以连环调用set方法
+     * @since 2.2.2
+     */
+    public RePluginConfig setConcurrentLoadStages(boolean concurrentLoadStages) {
+        if (!checkAllowModify()) {
+            return this;
+        }
+        this.concurrentLoadStages = concurrentLoadStages;
+        return this;
+    }
+
+    /**
+     * 获取插件加载产物（Resources、ClassLoader等）缓存的预算大小
+     *
+     * @return 预算大小（字节）。0表示使用默认值（进程最大可用内存的1/8）
+     * @since 2.2.2
+     */
+    public long getPluginCacheBudget() {
+        return pluginCacheBudget;
+    }
+
+    /**
+     * 设置插件加载产物（Resources、ClassLoader等）缓存的预算大小 <p>
+     * 正在运行的插件不受此限制；其余插件的产物超出预算时，按最久未用的顺序淘汰 <p>
+     * 注意：大小按插件APK的体积粗略估算，并非实际占用的内存
+     *
+     * @param pluginCacheBudget 预算大小（字节）。0表示使用默认值
+     * @return RePluginConfig自己。这样可以连环调用set方法
+     * @since 2.2.2
+     */
+    public RePluginConfig setPluginCacheBudget(long pluginCacheBudget) {
+        if (!checkAllowModify()) {
+            return this;
+        }
+        this.pluginCacheBudget = pluginCacheBudget;
+        return this;
+    }
+
+    /**
+     * 是否根据使用记录，在进程空闲时预热接下来可能用到的插件？
+     *
+     * @return 是否开启
+     * @since 2.2.2
+     */
+    public boolean isPredictivePrewarm() {
+        return predictivePrewarm;
+    }
+
+    /**
+     * 是否根据使用记录，在进程空闲时预热接下来可能用到的插件？默认为False <p>
+     * 常驻进程会记录各进程在一天中各时段、以及按何种顺序启动插件；进程启动并空闲后，据此提前加载最可能用到的插件 <p>
+     * 注意：和preload一样，被预热的插件会被视为“已运行”，升级须重启进程后才生效，且会在后台额外加载插件。请权衡后再开启
+     *
+     * @param predictivePrewarm 是否开启
+     * @return RePluginConfig自己。这样可以连环调用set方法
+     * @since 2.2.2
+     */
+    public RePluginConfig setPredictivePrewarm(boolean predictivePrewarm) {
+        if (!checkAllowModify()) {
+            return this;
+        }
+        this.predictivePrewarm = predictivePrewarm;
+        return this;
+    }
+
+    /**
+     * 是否在插件安装（或升级）后，于后台提前做Dex优化？
+     *
+     * @return 是否开启
+     * @since 2.2.2
+     */
+    public boolean isDexOptAfterInstall() {
+        return dexOptAfterInstall;
+    }
+
+    /**
+     * 是否在插件安装（或升级）后，于后台提前做Dex优化？默认为False <p>
+     * 开启后，常驻进程会将新安装的插件逐个交给UI进程做Dex优化，首次打开插件时即可省去此耗时 <p>
+     * 和preload不同，优化后的插件不会被视为“正在运行”，故不影响之后的升级 <p>
+     * 注意：UI进程未运行时会因此被拉起，且dex2oat会在后台占用较多的CPU和IO。请权衡后再开启
+     *
+     * @param dexOptAfterInstall 是否开启
+     * @return RePluginConfig自己。这样可以连环调用set方法
+     * @since 2.2.2
+     */
+    public RePluginConfig setDexOptAfterInstall(boolean dexOptAfterInstall) {
+        if (!checkAllowModify()) {
+            return this;
+        }
+        this.dexOptAfterInstall = dexOptAfterInstall;
+        return this;
+    }
+
+    /**
+     * 是否在超出内存预算或内存紧张时，将空闲的插件移出内存？
+     *
+     * @return 是否开启
+     * @since 2.2.2
+     */
+    public boolean isMemoryGovernor() {
+        return memoryGovernor;
+    }
+
+    /**
+     * 是否在超出内存预算或内存紧张时，将空闲的插件移出内存？默认为False <p>
+     * 开启后，每个进程会估算其中“正在运行”的插件所占的内存，并按最久未用的顺序记录下来。 <p>
+     * 超出预算（见setPluginMemoryBudget）或收到onTrimMemory时，将没有存活组件的空闲插件移出内存（同RePlugin.unload） <p>
+     * 注意：被移出的插件，其Application会收到onTerminate，静态变量等也会随之丢失。可通过RePluginEventCallbacks.onPrepareEvictPlugin来阻止
+     *
+     * @param memoryGovernor 是否开启
+     * @return RePluginConfig自己。这样可以连环调用set方法
+     * @since 2.2.2
+     */
+    public RePluginConfig setMemoryGovernor(boolean memoryGovernor) {
+        if (!checkAllowModify()) {
+            return this;
+        }
+        this.memoryGovernor = memoryGovernor;
+        return this;
+    }
+
+    /**
+     * 获取每个进程中“正在运行”插件的内存预算大小
+     *
+     * @return 预算大小（字节）。0表示使用默认值（进程最大可用内存的1/4）
+     * @since 2.2.2
+     */
+    public long getPluginMemoryBudget() {
+        return pluginMemoryBudget;
+    }
+
+    /**
+     * 设置每个进程中“正在运行”插件的内存预算大小。仅在开启setMemoryGovernor后有效 <p>
+     * 注意：大小按插件APK、Dex和Native库的体积粗略估算，并非实际占用的内存
+     *
+     * @param pluginMemoryBudget 预算大小（字节）。0表示使用默认值
+     * @return RePluginConfig自己。这样可以连环调用set方法
+     * @since 2.2.2
+     */
+    public RePluginConfig setPluginMemoryBudget(long pluginMemoryBudget) {
+        if (!checkAllowModify()) {
+            return this;
+        }
+        this.pluginMemoryBudget = pluginMemoryBudget;
+        return this;
+    }
+}
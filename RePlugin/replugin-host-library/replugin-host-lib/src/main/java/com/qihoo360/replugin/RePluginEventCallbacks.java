@@ -103,6 +103,28 @@ public class RePluginEventCallbacks {
         // Nothing
     }
 
+    /**
+     * 内存不足或超出预算，准备将空闲的插件移出内存时执行
+     *
+     * @param plugin 插件名
+     * @param bytes  插件估算占用的内存（字节）
+     * @return 是否允许移出。返回False则跳过此插件
+     * @see RePluginConfig#setMemoryGovernor(boolean)
+     */
+    public boolean onPrepareEvictPlugin(String plugin, long bytes) {
+        return true;
+    }
+
+    /**
+     * 空闲的插件被移出内存后执行
+     *
+     * @param plugin 插件名
+     * @param bytes  插件估算占用的内存（字节）
+     */
+    public void onPluginEvicted(String plugin, long bytes) {
+        // Nothing
+    }
+
     /**
      * 插件安装结果值
      */
@@ -113,6 +135,7 @@ public class RePluginEventCallbacks {
         READ_PKG_INFO_FAIL,
         VERIFY_SIGN_FAIL,
         VERIFY_VER_FAIL,
-        COPY_APK_FAIL
+        COPY_APK_FAIL,
+        APPLY_PATCH_FAIL
     }
 }
\ No newline at end of file
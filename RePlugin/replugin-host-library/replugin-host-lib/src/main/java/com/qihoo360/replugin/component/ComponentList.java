@@ -18,7 +18,6 @@ package com.qihoo360.replugin.component;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
@@ -29,9 +28,10 @@ import android.text.TextUtils;
 import android.util.Pair;
 
 import com.qihoo360.i.Factory;
+import com.qihoo360.mobilesafe.parser.manifest.IntentResolverIndex;
+import com.qihoo360.mobilesafe.parser.manifest.ManifestComponents;
 import com.qihoo360.mobilesafe.parser.manifest.ManifestParser;
 import com.qihoo360.replugin.component.utils.ApkCommentReader;
-import com.qihoo360.replugin.component.utils.IntentMatcherHelper;
 import com.qihoo360.replugin.ext.parser.ApkParser;
 import com.qihoo360.replugin.helper.LogDebug;
 import com.qihoo360.replugin.model.PluginInfo;
@@ -40,8 +40,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import static com.qihoo360.replugin.helper.LogDebug.LOG;
 import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
@@ -94,6 +92,16 @@ public class ComponentList {
      * 注意：仅框架内部使用
      */
     public ComponentList(PackageInfo pi, String path, PluginInfo pli) {
+        this(pi, path, pli, null);
+    }
+
+    /**
+     * 初始化ComponentList对象 <p>
+     * 注意：仅框架内部使用
+     *
+     * @param components 已解析好的组件信息（如来自PackageSnapshot）；为null时从APK中读取并解析AndroidManifest
+     */
+    public ComponentList(PackageInfo pi, String path, PluginInfo pli, ManifestComponents components) {
         if (pi.activities != null) {
             for (ActivityInfo ai : pi.activities) {
                 if (LOG) {
@@ -155,14 +163,12 @@ public class ComponentList {
         }
 
         // 解析 Apk 中的 AndroidManifest.xml
-        String manifest = getManifestFromApk(path);
-
-        if (LOG) {
-            LogDebug.d(PLUGIN_TAG, "\n解析插件 " + pli.getName() + " : " + path + "\nAndroidManifest: \n" + manifest);
+        if (components == null) {
+            components = getComponentsFromApk(path);
         }
 
         // 生成组件与 IntentFilter 的对应关系
-        ManifestParser.INS.parse(pli, manifest);
+        ManifestParser.INS.parse(pli, components);
 
         mApplication = pi.applicationInfo;
 
@@ -181,7 +187,7 @@ public class ComponentList {
      * @param apkFile apk 文件路径
      * @return apk 中 AndroidManifest 中的内容
      */
-    private static String getManifestFromApk(String apkFile) {
+    public static String getManifestFromApk(String apkFile) {
 
         // 先从 Apk comment 中解析 AndroidManifest
         String manifest = ApkCommentReader.readComment(apkFile);
@@ -220,6 +226,48 @@ public class ComponentList {
         return "";
     }
 
+    /**
+     * 从 APK 中获取各组件及其 IntentFilter <p>
+     * 和 getManifestFromApk 一样优先使用 APK Comment 中的内容；否则直接解析二进制的 AndroidManifest，不再转成 XML 文本
+     *
+     * @param apkFile apk 文件路径
+     * @return 解析结果；若解析失败，则返回不含任何组件的对象
+     */
+    public static ManifestComponents getComponentsFromApk(String apkFile) {
+        String manifest = ApkCommentReader.readComment(apkFile);
+        if (!TextUtils.isEmpty(manifest)) {
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, "从 apk comment 中解析 xml:\n " + manifest);
+            }
+            return ManifestParser.INS.parseComponents(manifest);
+        }
+
+        ApkParser parser = null;
+        try {
+            long begin = System.currentTimeMillis();
+            parser = new ApkParser(apkFile);
+            ManifestComponents components = ManifestParser.INS.parseComponents(parser);
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, "从 apk 中解析二进制 xml 耗时 " + (System.currentTimeMillis() - begin) + " 毫秒");
+            }
+            return components;
+        } catch (IOException t) {
+            t.printStackTrace();
+        } catch (RuntimeException t) {
+            // 二进制 XML 格式有误（ParserException 等）
+            t.printStackTrace();
+        } finally {
+            if (parser != null) {
+                try {
+                    parser.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return ManifestComponents.EMPTY;
+    }
+
     /**
      * 获取ServiceInfo对象
      */
@@ -265,8 +313,8 @@ public class ComponentList {
     /**
      * 根据 Intent 匹配 Service
      * <p>
-     * 遍历 plugin 插件中，所有保存的 Service 的 IntentFilter 数据，进行匹配，
-     * 返回第一个符合条件的 ServiceInfo 对象.
+     * 通过 IntentResolverIndex 在所有已解析的插件中查找能响应此 Intent 的 Service，
+     * 返回优先级最高的 ServiceInfo 对象.
      *
      * @param context Context
      * @param intent  调用方传来的 Intent
@@ -275,18 +323,11 @@ public class ComponentList {
     public Pair<ServiceInfo, String> getServiceAndPluginByIntent(Context context, Intent intent) {
         String action = intent.getAction();
         if (!TextUtils.isEmpty(action)) {
-            Set<String> plugins = ManifestParser.INS.getPluginsByActionWhenStartService(action);
-            if (plugins != null) {
-
-                for (String plugin : plugins) {
-                    // 获取 plugin 插件中，所有的 Service 和 IntentFilter 的对应关系
-                    Map<String, List<IntentFilter>> filters = ManifestParser.INS.getServiceFilterMap(plugin);
-                    // 找到 plugin 插件中，IntentFilter 匹配成功的 Service
-                    String service = IntentMatcherHelper.doMatchIntent(context, intent, filters);
-                    ServiceInfo info = Factory.queryServiceInfo(plugin, service);
-                    if (info != null) {
-                        return new Pair<>(info, plugin);
-                    }
+            List<IntentResolverIndex.Match> matches = ManifestParser.INS.getServiceResolver().query(context, intent, null);
+            for (IntentResolverIndex.Match m : matches) {
+                ServiceInfo info = Factory.queryServiceInfo(m.getPlugin(), m.getComponent());
+                if (info != null) {
+                    return new Pair<>(info, m.getPlugin());
                 }
             }
         }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.component;
+
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Process;
+
+import com.qihoo360.mobilesafe.parser.manifest.ManifestComponents;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+import com.qihoo360.replugin.utils.CloseableUtils;
+import com.qihoo360.replugin.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件APK“解析结果”的磁盘快照，包括PackageInfo（含四大组件、进程名、TaskAffinity等属性）和各组件的IntentFilter <p>
+ * 在安装时生成一次，之后各进程加载插件时可直接读取，无需再调用getPackageArchiveInfo解析整个APK，也无需再读取和解析AndroidManifest <p>
+ * 两者写在同一个Parcel中，读取时只需一次顺序读和一次反序列化 <p>
+ * 快照以“APK路径 + 大小 + 修改时间”为Key，APK有任何变化都会使其失效；
+ * 由于PackageInfo是用Parcel序列化的，故系统版本（Fingerprint）变化后也会失效 <p>
+ * 注意：仅框架内部使用
+ *
+ * @author RePlugin Team
+ */
+public final class PackageSnapshot {
+
+    private static final String TAG = "PackageSnapshot";
+
+    /**
+     * 生成快照（和Loader加载PackageInfo）时使用的Flags
+     */
+    public static final int PARSE_FLAGS = PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES
+            | PackageManager.GET_PROVIDERS | PackageManager.GET_RECEIVERS | PackageManager.GET_META_DATA;
+
+    /**
+     * 快照文件的后缀，和APK放在同一目录
+     */
+    public static final String SUFFIX = ".pis";
+
+    private static final int MAGIC = 0x52505053; // RPPS
+
+    private static final int FORMAT_VERSION = 2;
+
+    private final PackageInfo mPackageInfo;
+
+    private final ManifestComponents mComponents;
+
+    private PackageSnapshot(PackageInfo pi, ManifestComponents components) {
+        mPackageInfo = pi;
+        mComponents = components;
+    }
+
+    /**
+     * @return 快照中的PackageInfo。每次read都会生成新的对象，调用者可随意修改
+     */
+    public PackageInfo getPackageInfo() {
+        return mPackageInfo;
+    }
+
+    /**
+     * @return 快照中各组件的IntentFilter。每次read都会生成新的对象
+     */
+    public ManifestComponents getComponents() {
+        return mComponents;
+    }
+
+    /**
+     * 获取APK对应的快照文件
+     */
+    public static File getSnapshotFile(File apk) {
+        return new File(apk.getAbsolutePath() + SUFFIX);
+    }
+
+    /**
+     * 读取APK对应的快照
+     *
+     * @param apk APK文件
+     * @return 快照对象。若快照不存在、已过期或已损坏，则返回null
+     */
+    public static PackageSnapshot read(File apk) {
+        File f = getSnapshotFile(apk);
+        if (!f.exists()) {
+            return null;
+        }
+
+        long begin = System.currentTimeMillis();
+        DataInputStream in = null;
+        Parcel parcel = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return invalidate(f, "format");
+            }
+            if (!in.readUTF().equals(apk.getAbsolutePath())
+                    || in.readLong() != apk.length()
+                    || in.readLong() != apk.lastModified()
+                    || in.readInt() != Build.VERSION.SDK_INT
+                    || !in.readUTF().equals(String.valueOf(Build.FINGERPRINT))) {
+                return invalidate(f, "stale");
+            }
+
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+
+            parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            PackageInfo pi = PackageInfo.CREATOR.createFromParcel(parcel);
+            if (pi == null || pi.applicationInfo == null) {
+                return invalidate(f, "empty");
+            }
+            propagateApplicationInfo(pi);
+            ManifestComponents components = ManifestComponents.readFromParcel(parcel);
+
+            if (LOG) {
+                LogDebug.d(PLUGIN_TAG, "snapshot hit: apk=" + apk + ", use=" + (System.currentTimeMillis() - begin));
+            }
+            return new PackageSnapshot(pi, components);
+        } catch (Throwable e) {
+            // 快照损坏（如写入时进程被杀），删除后走正常解析流程即可
+            if (LOGR) {
+                LogRelease.w(PLUGIN_TAG, "ps.r: " + e.getMessage());
+            }
+            CloseableUtils.closeQuietly(in);
+            in = null;
+            return invalidate(f, "broken");
+        } finally {
+            CloseableUtils.closeQuietly(in);
+            if (parcel != null) {
+                parcel.recycle();
+            }
+        }
+    }
+
+    /**
+     * 为APK生成快照。必须在PackageInfo被修改（如调整进程名、TaskAffinity）之前调用 <p>
+     * 采用“先写临时文件再改名”的方式，多进程同时写入也不会读到半截的文件
+     *
+     * @param apk      APK文件
+     * @param pi         用PARSE_FLAGS解析出的PackageInfo
+     * @param components 由ManifestParser.parseComponents解析出的组件信息
+     * @return 是否写入成功
+     */
+    public static boolean write(File apk, PackageInfo pi, ManifestComponents components) {
+        if (pi == null || pi.applicationInfo == null || components == null || !apk.exists()) {
+            return false;
+        }
+
+        File f = getSnapshotFile(apk);
+        File tmp = new File(f.getAbsolutePath() + "." + Process.myPid() + ".tmp");
+        DataOutputStream out = null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            pi.writeToParcel(parcel, 0);
+            components.writeToParcel(parcel);
+            byte[] data = parcel.marshall();
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(apk.getAbsolutePath());
+            out.writeLong(apk.length());
+            out.writeLong(apk.lastModified());
+            out.writeInt(Build.VERSION.SDK_INT);
+            out.writeUTF(String.valueOf(Build.FINGERPRINT));
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(f)) {
+                throw new IOException("rename failed: " + tmp);
+            }
+            if (LOG) {
+                LogDebug.d(TAG, "write: ok. apk=" + apk + ", size=" + f.length());
+            }
+            return true;
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "ps.w: " + apk, e);
+            }
+            return false;
+        } finally {
+            CloseableUtils.closeQuietly(out);
+            FileUtils.deleteQuietly(tmp);
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * 删除APK对应的快照
+     */
+    public static void delete(File apk) {
+        FileUtils.deleteQuietly(getSnapshotFile(apk));
+    }
+
+    private static PackageSnapshot invalidate(File f, String reason) {
+        if (LOG) {
+            LogDebug.d(TAG, "invalidate: " + reason + ". f=" + f);
+        }
+        FileUtils.deleteQuietly(f);
+        return null;
+    }
+
+    /**
+     * 反序列化后，各组件持有的是各自独立的ApplicationInfo副本，
+     * 而Loader只会修改PackageInfo.applicationInfo（如sourceDir、nativeLibraryDir），故在此统一指回同一个对象 <p>
+     * 这也是Android O及以上系统在反序列化PackageInfo时的做法
+     */
+    private static void propagateApplicationInfo(PackageInfo pi) {
+        propagateApplicationInfo(pi, pi.activities);
+        propagateApplicationInfo(pi, pi.services);
+        propagateApplicationInfo(pi, pi.providers);
+        propagateApplicationInfo(pi, pi.receivers);
+    }
+
+    private static void propagateApplicationInfo(PackageInfo pi, ComponentInfo[] infos) {
+        if (infos == null) {
+            return;
+        }
+        for (ComponentInfo ci : infos) {
+            if (ci != null) {
+                ci.applicationInfo = pi.applicationInfo;
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.qihoo360.replugin.component.app;
 
 import android.app.Application;
+import android.content.ComponentCallbacks;
 import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
@@ -57,6 +58,11 @@ public class PluginApplicationClient {
 
     private Application mApplication;
 
+    /**
+     * 向系统注册的、用来转发onTrimMemory等回调的对象。插件被移出内存时需反注册
+     */
+    private ComponentCallbacks mComponentCallbacks;
+
     private static ArrayMap<String, WeakReference<PluginApplicationClient>> sRunningClients = new ArrayMap<>();
 
     /**
@@ -104,7 +110,7 @@ public class PluginApplicationClient {
         if (pacNew.isValid()) {
             sRunningClients.put(pn, new WeakReference<>(pacNew));
             if (Build.VERSION.SDK_INT >= 14) {
-                RePluginInternal.getAppContext().registerComponentCallbacks(new ComponentCallbacks2() {
+                pacNew.mComponentCallbacks = new ComponentCallbacks2() {
                     @Override
                     public void onTrimMemory(int level) {
                         pacNew.callOnTrimMemory(level);
@@ -119,7 +125,8 @@ public class PluginApplicationClient {
                     public void onLowMemory() {
                         pacNew.callOnLowMemory();
                     }
-                });
+                };
+                RePluginInternal.getAppContext().registerComponentCallbacks(pacNew.mComponentCallbacks);
             }
             return pacNew;
         } else {
@@ -158,6 +165,24 @@ public class PluginApplicationClient {
         }
     }
 
+    /**
+     * 插件被移出内存时调用：回调插件Application的onTerminate，且此后不再向其转发onTrimMemory等回调
+     *
+     * @param pn 插件名
+     */
+    public static void terminate(String pn) {
+        WeakReference<PluginApplicationClient> w = sRunningClients.remove(pn);
+        PluginApplicationClient pac = w != null ? w.get() : null;
+        if (pac == null) {
+            return;
+        }
+        if (pac.mComponentCallbacks != null) {
+            RePluginInternal.getAppContext().unregisterComponentCallbacks(pac.mComponentCallbacks);
+            pac.mComponentCallbacks = null;
+        }
+        pac.callOnTerminate();
+    }
+
     public static PluginApplicationClient getRunning(String pn) {
         WeakReference<PluginApplicationClient> w = sRunningClients.get(pn);
         if (w == null) {
@@ -249,6 +274,19 @@ public class PluginApplicationClient {
         mApplication.onConfigurationChanged(newConfig);
     }
 
+    public void callOnTerminate() {
+        if (LOG) {
+            LogDebug.d(PLUGIN_TAG, "PAC.callOnTerminate(): Call onTerminate(), cl=" + mPlgClassLoader);
+        }
+        try {
+            mApplication.onTerminate();
+        } catch (Throwable e) {
+            if (BuildConfig.DEBUG) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     public Application getObj() {
         return mApplication;
     }
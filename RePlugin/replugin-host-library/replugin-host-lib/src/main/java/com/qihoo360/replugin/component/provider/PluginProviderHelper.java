@@ -29,6 +29,7 @@ import com.qihoo360.replugin.component.ComponentList;
 import com.qihoo360.replugin.helper.LogDebug;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -49,6 +50,22 @@ public class PluginProviderHelper {
 
     Map<String, ContentProvider> mProviderAuthorityMap = new HashMap<>();
 
+    /**
+     * 本进程中已创建过Provider对象的插件。Provider对象会一直缓存，故这些插件无法被移出内存
+     */
+    private static final HashSet<String> sProviderPlugins = new HashSet<>();
+
+    /**
+     * 插件在本进程中是否已创建过Provider对象
+     *
+     * @param plugin 插件名
+     */
+    public static boolean hasInstalledProvider(String plugin) {
+        synchronized (sProviderPlugins) {
+            return sProviderPlugins.contains(plugin);
+        }
+    }
+
     // 将从系统传过来的URI转化成插件里的URI。例如：
     // Before: content://com.qihoo360.mobilesafe.PluginTransferP/contacts/com.qihoo360.contacts.abc/people
     // After : content://                                                 com.qihoo360.contacts.abc/people （从contacts插件中解析并寻找）
@@ -123,6 +140,9 @@ public class PluginProviderHelper {
 
         // 加入列表。下次直接读缓存
         mProviderAuthorityMap.put(auth, cp);
+        synchronized (sProviderPlugins) {
+            sProviderPlugins.add(pu.plugin);
+        }
 
         if (LogDebug.LOG) {
             Log.i(TAG, "getProvider(): Okay! pu=" + pu + "; cp=" + cp);
@@ -30,6 +30,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.qihoo360.i.Factory;
@@ -326,6 +327,22 @@ public class PluginServiceServer {
         return mStub;
     }
 
+    /**
+     * 插件是否还有正在运行（已被启动，或仍被绑定）的Service
+     *
+     * @param plugin 插件名
+     */
+    public boolean hasRunningServices(String plugin) {
+        synchronized (LOCKER) {
+            for (ServiceRecord sr : mServicesByName.values()) {
+                if (TextUtils.equals(sr.getPlugin(), plugin)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     // 若Client和Server在同一进程，则两者的intent对象完全相同
     // 换言之，如果Client端修改了intent对象，则对应的，server端也会被修改，这不符合预期
     // 故，所有的Intent操作都必须Clone一份
@@ -16,10 +16,14 @@
 
 package com.qihoo360.replugin.component.utils;
 
+import com.qihoo360.replugin.ext.parser.MappedZip;
+import com.qihoo360.replugin.utils.pkg.ApkHandle;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 
@@ -45,6 +49,17 @@ public class ApkCommentReader {
      * @return comment 内容
      */
     public static String readComment(String path) {
+        // 优先从共享的内存映射中读取，无需再打开文件
+        ApkHandle handle = ApkHandle.acquire(path);
+        try {
+            MappedZip mz = handle.newMappedZip();
+            if (mz != null) {
+                return decompress(getComment(mz.getFileBuffer()));
+            }
+        } finally {
+            handle.release();
+        }
+
         RandomAccessFile raf = null;
         try {
             raf = new RandomAccessFile(path, "r");
@@ -63,6 +78,34 @@ public class ApkCommentReader {
         return "";
     }
 
+    /**
+     * 从APK的内存映射中获取解压前的注释内容
+     */
+    private static byte[] getComment(ByteBuffer apk) {
+        int index = apk.limit() - MAGIC.length;
+        if (index < 2) {
+            return null;
+        }
+        byte[] magicBuffer = new byte[MAGIC.length];
+        apk.position(index);
+        apk.get(magicBuffer);
+        if (!Arrays.equals(magicBuffer, MAGIC)) {
+            return null;
+        }
+
+        index -= 2;
+        // 2byte 转无符号 short（apk 为小端序）
+        int length = apk.getShort(index) & 0xFFFF;
+        if (length > 0 && length <= index) {
+            index -= length;
+            byte[] bytes = new byte[length];
+            apk.position(index);
+            apk.get(bytes);
+            return bytes;
+        }
+        return null;
+    }
+
     /**
      * 获取解压前的注释内容
      */
@@ -23,6 +23,7 @@ import android.content.pm.ActivityInfo;
 import android.net.Uri;
 
 import com.qihoo360.i.Factory;
+import com.qihoo360.mobilesafe.parser.manifest.IntentResolverIndex;
 import com.qihoo360.mobilesafe.parser.manifest.ManifestParser;
 import com.qihoo360.replugin.helper.LogDebug;
 
@@ -44,8 +45,8 @@ public class IntentMatcherHelper {
     /**
      * 根据 Intent 以及 plugin 匹配 Activity
      * <p>
-     * 遍历plugin插件中，保存的 Activity 的 IntentFilter 数据，进行匹配，
-     * 返回第一个符合条件的 ActivityInfo 对象.
+     * 通过 IntentResolverIndex 查找 plugin 插件中能响应此 Intent 的 Activity，
+     * 返回优先级最高的 ActivityInfo 对象.
      *
      * @param context Context
      * @param plugin  插件名称
@@ -57,8 +58,14 @@ public class IntentMatcherHelper {
             return null;
         }
 
-        String activity = doMatchIntent(context, intent, ManifestParser.INS.getActivityFilterMap(plugin));
-        return Factory.queryActivityInfo(plugin, activity);
+        List<IntentResolverIndex.Match> matches = ManifestParser.INS.getActivityResolver().query(context, intent, plugin);
+        for (IntentResolverIndex.Match m : matches) {
+            ActivityInfo ai = Factory.queryActivityInfo(plugin, m.getComponent());
+            if (ai != null) {
+                return ai;
+            }
+        }
+        return null;
     }
 
     /**
@@ -64,13 +64,19 @@ public abstract class AbstractApkParser implements Closeable {
      */
     private void parseManifestXml() throws IOException {
         XmlTranslator xmlTranslator = new XmlTranslator();
+        parseManifestXml(xmlTranslator);
+        this.manifestXml = xmlTranslator.getXml();
+    }
 
-        byte[] data = getFileData(MANIFEST_FILE);
+    /**
+     * parse manifest.xml, stream its nodes to xmlStreamer directly without building the xml text.
+     */
+    public void parseManifestXml(XmlStreamer xmlStreamer) throws IOException {
+        ByteBuffer data = getFileBuffer(MANIFEST_FILE);
         if (data == null) {
             throw new ParserException("Manifest file not found");
         }
-        transBinaryXml(data, xmlTranslator);
-        this.manifestXml = xmlTranslator.getXml();
+        transBinaryXml(data, xmlStreamer);
     }
 
     /**
@@ -78,8 +84,16 @@ public abstract class AbstractApkParser implements Closeable {
      */
     public abstract byte[] getFileData(String path) throws IOException;
 
-    private void transBinaryXml(byte[] data, XmlStreamer xmlStreamer) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
+    /**
+     * read file in apk as byte buffer, subclass may return a view of the apk without copying.
+     * the buffer is only valid until the next call or close.
+     */
+    public ByteBuffer getFileBuffer(String path) throws IOException {
+        byte[] data = getFileData(path);
+        return data != null ? ByteBuffer.wrap(data) : null;
+    }
+
+    private void transBinaryXml(ByteBuffer buffer, XmlStreamer xmlStreamer) throws IOException {
         BinaryXmlParser binaryXmlParser = new BinaryXmlParser(buffer);
         binaryXmlParser.setXmlStreamer(xmlStreamer);
         binaryXmlParser.parse();
@@ -26,28 +26,46 @@
 
 package com.qihoo360.replugin.ext.parser;
 
+import com.qihoo360.replugin.utils.pkg.ApkHandle;
+
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 
 /**
  * ApkParser and result holder.
+ * The apk is memory-mapped and its central directory indexed once, see {@link MappedZip};
+ * falls back to {@link ZipFile} if the apk can not be mapped.
+ * Both are shared with other users of the same apk in this process, see {@link ApkHandle}.
  * This class is not thread-safe.
  *
  * @author dongliu
  */
 public class ApkParser extends AbstractApkParser implements Closeable {
 
+    private final ApkHandle handle;
+
+    private final MappedZip mz;
+
     private final ZipFile zf;
 
     public ApkParser(File apkFile) throws IOException {
-        // create zip file cost time, use one zip file for apk parser life cycle
-        this.zf = new ZipFile(apkFile);
+        this.handle = ApkHandle.acquire(apkFile);
+        try {
+            // null if not a plain zip (e.g. zip64), use the platform implementation then
+            this.mz = handle.newMappedZip();
+            // create zip file cost time, use one zip file for apk parser life cycle
+            this.zf = mz == null ? handle.getZipFile() : null;
+        } catch (IOException e) {
+            handle.release();
+            throw e;
+        }
     }
 
     public ApkParser(String filePath) throws IOException {
@@ -56,6 +74,16 @@ public class ApkParser extends AbstractApkParser implements Closeable {
 
     @Override
     public byte[] getFileData(String path) throws IOException {
+        if (mz != null) {
+            ByteBuffer buffer = mz.getEntryBuffer(path);
+            if (buffer == null) {
+                return null;
+            }
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
+
         ZipEntry entry = zf.getEntry(path);
         if (entry == null) {
             return null;
@@ -65,10 +93,22 @@ public class ApkParser extends AbstractApkParser implements Closeable {
         return toByteArray(inputStream);
     }
 
+    @Override
+    public ByteBuffer getFileBuffer(String path) throws IOException {
+        if (mz != null) {
+            return mz.getEntryBuffer(path);
+        }
+        return super.getFileBuffer(path);
+    }
+
     @Override
     public void close() throws IOException {
         super.close();
-        zf.close();
+        if (mz != null) {
+            mz.close();
+        }
+        // the shared zip file is closed by the handle when idle
+        handle.release();
     }
 
     private static byte[] toByteArray(InputStream in) throws IOException {
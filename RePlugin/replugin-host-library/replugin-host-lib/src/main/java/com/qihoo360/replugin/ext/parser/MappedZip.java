@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.ext.parser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * 以内存映射（mmap）方式只读访问APK（Zip）中的文件 <p>
+ * 1、打开时只解析一次“中央目录”，建立文件名 -> 位置的索引，无需像ZipFile那样为每个条目创建对象 <p>
+ * 2、未压缩（STORED）的条目直接返回映射区的切片，不做任何拷贝 <p>
+ * 3、压缩（DEFLATED）的条目解压到复用的缓冲区中，缓冲区在close后交给下一个实例使用 <p>
+ * 4、newReader可创建共用同一份映射和索引的读取器，供其它线程使用（见ApkHandle） <p>
+ * 不支持Zip64（APK不会超过4G）。单个实例非线程安全
+ *
+ * @author RePlugin Team
+ */
+public final class MappedZip implements Closeable {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CD_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int CD_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final int INPUT_CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * 超过此大小的解压缓冲区不会被复用，以免长期占用内存
+     */
+    private static final int MAX_POOLED_SIZE = 256 * 1024;
+
+    private static final AtomicReference<byte[]> BUFFER_POOL = new AtomicReference<>();
+
+    private final ByteBuffer map;
+
+    private final HashMap<String, Entry> entries;
+
+    private byte[] buffer;
+
+    private byte[] input;
+
+    private Inflater inflater;
+
+    private static final class Entry {
+
+        final int method;
+
+        final int compressedSize;
+
+        final int size;
+
+        final int localHeaderOffset;
+
+        Entry(int method, int compressedSize, int size, int localHeaderOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private MappedZip(ByteBuffer map, HashMap<String, Entry> entries) {
+        this.map = map;
+        this.entries = entries;
+    }
+
+    /**
+     * 映射APK并建立索引
+     *
+     * @throws IOException 文件无法映射，或不是合法的Zip文件时抛出
+     */
+    public static MappedZip open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer map;
+        try {
+            // 映射建立后即可关闭文件，映射区在被回收前一直有效
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        return new MappedZip(map, readCentralDirectory(map));
+    }
+
+    /**
+     * 创建共用同一份映射和索引的读取器。可在任意线程调用，新读取器有各自的解压缓冲区
+     */
+    public MappedZip newReader() {
+        return new MappedZip(map, entries);
+    }
+
+    /**
+     * @return 整个文件的只读Buffer（小端序），position为0
+     */
+    public ByteBuffer getFileBuffer() {
+        return map.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 获取条目的内容 <p>
+     * 注意：对于压缩的条目，返回的Buffer在下次调用本方法或close之后失效
+     *
+     * @param name 条目名，如AndroidManifest.xml
+     * @return 只读的Buffer，position为0、limit为条目大小；若条目不存在，则返回null
+     */
+    public ByteBuffer getEntryBuffer(String name) throws IOException {
+        Entry e = entries.get(name);
+        if (e == null) {
+            return null;
+        }
+        int pos = e.localHeaderOffset;
+        if (pos < 0 || pos + LOCAL_HEADER_SIZE > map.limit() || map.getInt(pos) != LOCAL_SIGNATURE) {
+            throw new ZipException("bad local header: " + name);
+        }
+        // 本地文件头中的扩展字段长度可能和中央目录中的不同，须以本地的为准
+        int dataStart = pos + LOCAL_HEADER_SIZE + (map.getShort(pos + 26) & 0xffff) + (map.getShort(pos + 28) & 0xffff);
+        if (dataStart + e.compressedSize > map.limit()) {
+            throw new ZipException("truncated entry: " + name);
+        }
+
+        if (e.method == METHOD_STORED) {
+            ByteBuffer slice = map.duplicate();
+            slice.position(dataStart);
+            slice.limit(dataStart + e.size);
+            return slice.slice().order(ByteOrder.LITTLE_ENDIAN).asReadOnlyBuffer();
+        } else if (e.method == METHOD_DEFLATED) {
+            return inflate(name, dataStart, e);
+        }
+        throw new ZipException("unsupported compression method " + e.method + ": " + name);
+    }
+
+    @Override
+    public void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        if (buffer != null && buffer.length <= MAX_POOLED_SIZE) {
+            BUFFER_POOL.set(buffer);
+        }
+        buffer = null;
+        input = null;
+    }
+
+    private ByteBuffer inflate(String name, int dataStart, Entry e) throws IOException {
+        if (buffer == null || buffer.length < e.size) {
+            byte[] pooled = BUFFER_POOL.getAndSet(null);
+            buffer = pooled != null && pooled.length >= e.size ? pooled : new byte[e.size];
+        }
+        if (input == null) {
+            input = new byte[INPUT_CHUNK_SIZE];
+        }
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        } else {
+            inflater.reset();
+        }
+
+        // 映射区没有底层数组，Inflater又只接受byte[]，故压缩数据须分块拷出
+        ByteBuffer src = map.duplicate();
+        src.position(dataStart);
+        src.limit(dataStart + e.compressedSize);
+        int written = 0;
+        try {
+            while (written < e.size) {
+                if (inflater.needsInput()) {
+                    int n = Math.min(src.remaining(), input.length);
+                    if (n == 0) {
+                        break;
+                    }
+                    src.get(input, 0, n);
+                    inflater.setInput(input, 0, n);
+                }
+                int n = inflater.inflate(buffer, written, e.size - written);
+                if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    break;
+                }
+                written += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new ZipException("bad deflated data: " + name + "; " + ex.getMessage());
+        }
+        if (written != e.size) {
+            throw new ZipException("size mismatch: " + name + "; expected=" + e.size + "; actual=" + written);
+        }
+        return ByteBuffer.wrap(buffer, 0, e.size).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static HashMap<String, Entry> readCentralDirectory(ByteBuffer map) throws IOException {
+        int eocd = findEndOfCentralDirectory(map);
+        int count = map.getShort(eocd + 10) & 0xffff;
+        int cdOffset = map.getInt(eocd + 16);
+
+        HashMap<String, Entry> entries = new HashMap<>(count * 4 / 3 + 1);
+        int pos = cdOffset;
+        byte[] nameBuf = new byte[256];
+        for (int i = 0; i < count; i++) {
+            if (pos < 0 || pos + CD_HEADER_SIZE > map.limit() || map.getInt(pos) != CD_SIGNATURE) {
+                throw new ZipException("bad central directory entry: " + i);
+            }
+            int method = map.getShort(pos + 10) & 0xffff;
+            int compressedSize = map.getInt(pos + 20);
+            int size = map.getInt(pos + 24);
+            int nameLength = map.getShort(pos + 28) & 0xffff;
+            int extraLength = map.getShort(pos + 30) & 0xffff;
+            int commentLength = map.getShort(pos + 32) & 0xffff;
+            int localHeaderOffset = map.getInt(pos + 42);
+            if (compressedSize < 0 || size < 0 || pos + CD_HEADER_SIZE + nameLength > map.limit()) {
+                // 负数即超过2G，或是Zip64
+                throw new ZipException("unsupported entry: " + i);
+            }
+
+            if (nameBuf.length < nameLength) {
+                nameBuf = new byte[nameLength];
+            }
+            ByteBuffer nb = map.duplicate();
+            nb.position(pos + CD_HEADER_SIZE);
+            nb.get(nameBuf, 0, nameLength);
+            String name = new String(nameBuf, 0, nameLength, "UTF-8");
+
+            entries.put(name, new Entry(method, compressedSize, size, localHeaderOffset));
+            pos += CD_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer map) throws ZipException {
+        int limit = map.limit();
+        if (limit < EOCD_MIN_SIZE) {
+            throw new ZipException("file too short");
+        }
+        // 通常没有注释，第一次就能找到
+        int stop = Math.max(0, limit - EOCD_MIN_SIZE - MAX_COMMENT_SIZE);
+        for (int pos = limit - EOCD_MIN_SIZE; pos >= stop; pos--) {
+            if (map.getInt(pos) == EOCD_SIGNATURE
+                    && pos + EOCD_MIN_SIZE + (map.getShort(pos + 20) & 0xffff) == limit) {
+                return pos;
+            }
+        }
+        throw new ZipException("end of central directory not found");
+    }
+}
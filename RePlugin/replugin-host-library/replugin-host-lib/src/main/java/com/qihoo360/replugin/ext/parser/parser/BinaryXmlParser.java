@@ -28,6 +28,7 @@ package com.qihoo360.replugin.ext.parser.parser;
 
 import com.qihoo360.replugin.ext.parser.struct.ChunkHeader;
 import com.qihoo360.replugin.ext.parser.struct.ChunkType;
+import com.qihoo360.replugin.ext.parser.struct.ResourceValue;
 import com.qihoo360.replugin.ext.parser.struct.StringPool;
 import com.qihoo360.replugin.ext.parser.struct.StringPoolHeader;
 import com.qihoo360.replugin.ext.parser.struct.xml.Attribute;
@@ -209,7 +210,11 @@ public class BinaryXmlParser {
         if (rawValueRef > 0) {
             attribute.setRawValue(stringPool.get(rawValueRef));
         }
-        ParseUtils.readResValue(buffer, stringPool);
+        ResourceValue resValue = ParseUtils.readResValue(buffer, stringPool);
+        if (attribute.getRawValue() == null && resValue.isInt()) {
+            // aapt2 不保留整数属性（如 intent-filter 的 android:priority）的原始字符串，只能取编译后的值
+            attribute.setRawValue(resValue.toStringValue());
+        }
 
         return attribute;
     }
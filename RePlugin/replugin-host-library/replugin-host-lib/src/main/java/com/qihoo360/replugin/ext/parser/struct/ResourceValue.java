@@ -49,6 +49,13 @@ public abstract class ResourceValue {
 
     public abstract String toStringValue();
 
+    /**
+     * @return 是否为整数（TYPE_INT_DEC、TYPE_INT_HEX），此时toStringValue返回十进制的值
+     */
+    public boolean isInt() {
+        return false;
+    }
+
     private static class StringResourceValue extends ResourceValue {
         private final StringPool stringPool;
 
@@ -68,6 +75,9 @@ public abstract class ResourceValue {
     }
 
     private static class RawValue extends ResourceValue {
+        private static final short TYPE_INT_DEC = 0x10;
+        private static final short TYPE_INT_HEX = 0x11;
+
         private final short dataType;
 
         private RawValue(int value, short dataType) {
@@ -75,8 +85,16 @@ public abstract class ResourceValue {
             this.dataType = dataType;
         }
 
+        @Override
+        public boolean isInt() {
+            return dataType == TYPE_INT_DEC || dataType == TYPE_INT_HEX;
+        }
+
         @Override
         public String toStringValue() {
+            if (isInt()) {
+                return Integer.toString(value);
+            }
             return "{" + dataType + ":" + (value & 0xFFFFFFFFL) + "}";
         }
     }
@@ -103,11 +103,27 @@ public class PluginInfoList implements Iterable<PluginInfo> {
     }
 
     public boolean save(Context context) {
+        final JSONArray jsonArr = new JSONArray();
+        for (PluginInfo i : getCopyValues()) jsonArr.put(i.getJSON());
+        return save(context, jsonArr);
+    }
+
+    /**
+     * 将调用方生成好的插件信息写入文件。适合需要自行控制“读取插件信息”时机（如加锁）的情况
+     *
+     * @param jsonArr 各插件的JSON
+     */
+    public boolean save(Context context, JSONArray jsonArr) {
         try {
             final File f = getFile(context);
-            final JSONArray jsonArr = new JSONArray();
-            for (PluginInfo i : getCopyValues()) jsonArr.put(i.getJSON());
-            FileUtils.writeStringToFile(f, jsonArr.toString(), Charsets.UTF_8);
+
+            // 先写入临时文件再改名，这样即使中途进程被杀，p.l也总是完整的
+            final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+            FileUtils.writeStringToFile(tmp, jsonArr.toString(), Charsets.UTF_8);
+            if (!tmp.renameTo(f)) {
+                FileUtils.deleteQuietly(tmp);
+                throw new IOException("rename failed: " + tmp);
+            }
             return true;
         } catch (IOException e) {
             if (LogDebug.LOG) {
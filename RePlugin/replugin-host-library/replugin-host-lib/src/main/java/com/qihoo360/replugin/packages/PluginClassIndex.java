@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.packages;
+
+import android.os.Process;
+
+import com.qihoo360.mobilesafe.api.Tasks;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+import com.qihoo360.replugin.utils.CloseableUtils;
+import com.qihoo360.replugin.utils.FileUtils;
+import com.qihoo360.replugin.utils.IOUtils;
+import com.qihoo360.replugin.utils.pkg.ApkHandle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件的“类名索引”（Bloom Filter），记录插件Dex中定义的所有类 <p>
+ * PluginDexClassLoader在查找插件Dex前先查询此索引：若“肯定没有”，则可跳过插件Dex的查找， <p>
+ * 省去每次都要构造ClassNotFoundException的开销（插件大量使用宿主类时尤为明显） <p>
+ * Bloom Filter只会“误报有”，不会“漏报”，故可放心跳过；索引在安装时生成，和APK放在同一目录， <p>
+ * 以“APK大小 + 修改时间”为Key，APK有任何变化都会使其失效 <p>
+ * 注意：仅框架内部使用
+ *
+ * @author RePlugin Team
+ */
+public final class PluginClassIndex {
+
+    private static final String TAG = "PluginClassIndex";
+
+    /**
+     * 索引文件的后缀，和APK放在同一目录
+     */
+    public static final String SUFFIX = ".cni";
+
+    private static final int MAGIC = 0x5250434e; // RPCN
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * 每个类名占用的位数。10位、7个哈希函数时，误报率约为1%
+     */
+    private static final int BITS_PER_ENTRY = 10;
+
+    private static final int NUM_HASHES = 7;
+
+    /**
+     * 正在后台生成索引的APK，防止重复生成
+     */
+    private static final HashSet<String> sBuilding = new HashSet<>();
+
+    private final long[] mBits;
+
+    private final int mNumBits;
+
+    private final int mCount;
+
+    private PluginClassIndex(long[] bits, int count) {
+        mBits = bits;
+        mNumBits = bits.length * 64;
+        mCount = count;
+    }
+
+    /**
+     * 插件Dex中是否可能有此类？
+     *
+     * @param className 类名，如com.qihoo360.Foo
+     * @return 若返回false，则插件Dex中肯定没有此类；若返回true，则“可能有”
+     */
+    public boolean mightContain(String className) {
+        int h1 = className.hashCode();
+        int h2 = secondaryHash(className);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mNumBits;
+            if ((mBits[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 索引中的类数量
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * 获取APK对应的索引文件
+     */
+    public static File getIndexFile(File apk) {
+        return new File(apk.getAbsolutePath() + SUFFIX);
+    }
+
+    /**
+     * 读取APK对应的索引。若不存在，则在后台生成，供下次使用
+     *
+     * @param apk APK文件
+     * @return 索引对象。若不存在、已过期或已损坏，则返回null
+     */
+    public static PluginClassIndex readOrBuildLater(final File apk) {
+        PluginClassIndex index = read(apk);
+        if (index != null) {
+            return index;
+        }
+        synchronized (sBuilding) {
+            if (!sBuilding.add(apk.getAbsolutePath())) {
+                return null;
+            }
+        }
+        Tasks.post2Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(apk);
+                } finally {
+                    synchronized (sBuilding) {
+                        sBuilding.remove(apk.getAbsolutePath());
+                    }
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * 读取APK对应的索引
+     *
+     * @param apk APK文件
+     * @return 索引对象。若不存在、已过期或已损坏，则返回null
+     */
+    public static PluginClassIndex read(File apk) {
+        File f = getIndexFile(apk);
+        if (!f.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readLong() != apk.length() || in.readLong() != apk.lastModified()) {
+                CloseableUtils.closeQuietly(in);
+                in = null;
+                FileUtils.deleteQuietly(f);
+                return null;
+            }
+            int count = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            if (bits.length == 0) {
+                return null;
+            }
+            return new PluginClassIndex(bits, count);
+        } catch (Throwable e) {
+            // 索引损坏，删除后下次重新生成即可
+            if (LOGR) {
+                LogRelease.w(PLUGIN_TAG, "pci.r: " + e.getMessage());
+            }
+            CloseableUtils.closeQuietly(in);
+            in = null;
+            FileUtils.deleteQuietly(f);
+            return null;
+        } finally {
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 读取APK中所有Dex（classes.dex、classes2.dex……）定义的类，生成索引 <p>
+     * 采用“先写临时文件再改名”的方式，多进程同时写入也不会读到半截的文件
+     *
+     * @param apk APK文件
+     * @return 是否生成成功
+     */
+    public static boolean write(File apk) {
+        if (!apk.exists()) {
+            return false;
+        }
+        long begin = System.currentTimeMillis();
+        List<String> names;
+        try {
+            names = readClassNames(apk);
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pci.p: " + apk, e);
+            }
+            return false;
+        }
+        if (names.isEmpty()) {
+            return false;
+        }
+
+        int numBits = Math.max(64, names.size() * BITS_PER_ENTRY);
+        long[] bits = new long[(numBits + 63) / 64];
+        numBits = bits.length * 64;
+        for (String name : names) {
+            int h1 = name.hashCode();
+            int h2 = secondaryHash(name);
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+                bits[bit >>> 6] |= 1L << (bit & 63);
+            }
+        }
+
+        File f = getIndexFile(apk);
+        File tmp = new File(f.getAbsolutePath() + "." + Process.myPid() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(apk.length());
+            out.writeLong(apk.lastModified());
+            out.writeInt(names.size());
+            out.writeInt(bits.length);
+            for (long l : bits) {
+                out.writeLong(l);
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(f)) {
+                throw new IOException("rename failed: " + tmp);
+            }
+            if (LOG) {
+                LogDebug.d(TAG, "write: ok. apk=" + apk + ", classes=" + names.size() + ", size=" + f.length()
+                        + ", cost=" + (System.currentTimeMillis() - begin));
+            }
+            return true;
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pci.w: " + apk, e);
+            }
+            return false;
+        } finally {
+            CloseableUtils.closeQuietly(out);
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    /**
+     * 删除APK对应的索引
+     */
+    public static void delete(File apk) {
+        FileUtils.deleteQuietly(getIndexFile(apk));
+    }
+
+    private static List<String> readClassNames(File apk) throws IOException {
+        List<String> names = new ArrayList<>();
+        ApkHandle handle = ApkHandle.acquire(apk);
+        try {
+            ZipFile zf = handle.getZipFile();
+            Enumeration<? extends ZipEntry> entries = zf.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry ze = entries.nextElement();
+                if (!isDexEntry(ze.getName())) {
+                    continue;
+                }
+                InputStream in = null;
+                try {
+                    in = zf.getInputStream(ze);
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream(ze.getSize() > 0 ? (int) ze.getSize() : 32 * 1024);
+                    IOUtils.copy(in, bos);
+                    readClassNames(bos.toByteArray(), names);
+                } finally {
+                    CloseableUtils.closeQuietly(in);
+                }
+            }
+        } finally {
+            handle.release();
+        }
+        return names;
+    }
+
+    /**
+     * 是否为根目录下的classes.dex、classesN.dex
+     */
+    private static boolean isDexEntry(String name) {
+        if (!name.startsWith("classes") || !name.endsWith(".dex")) {
+            return false;
+        }
+        for (int i = "classes".length(); i < name.length() - ".dex".length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 解析Dex的class_defs，取出所有类名。Dex格式参见：https://source.android.com/devices/tech/dalvik/dex-format
+     */
+    private static void readClassNames(byte[] dex, List<String> out) throws IOException {
+        if (dex.length < 0x70 || dex[0] != 'd' || dex[1] != 'e' || dex[2] != 'x') {
+            throw new IOException("not a dex file");
+        }
+        int stringIdsOff = readInt(dex, 0x3c);
+        int typeIdsOff = readInt(dex, 0x44);
+        int classDefsSize = readInt(dex, 0x60);
+        int classDefsOff = readInt(dex, 0x64);
+
+        for (int i = 0; i < classDefsSize; i++) {
+            // class_def_item共32字节，第一个字段为class_idx
+            int classIdx = readInt(dex, classDefsOff + i * 32);
+            int descriptorIdx = readInt(dex, typeIdsOff + classIdx * 4);
+            int dataOff = readInt(dex, stringIdsOff + descriptorIdx * 4);
+            String desc = readMutf8(dex, dataOff);
+            // 形如Lcom/qihoo360/Foo;
+            if (desc.length() > 2 && desc.charAt(0) == 'L' && desc.charAt(desc.length() - 1) == ';') {
+                out.add(desc.substring(1, desc.length() - 1).replace('/', '.'));
+            }
+        }
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static String readMutf8(byte[] b, int off) {
+        // 跳过ULEB128编码的UTF-16长度
+        while ((b[off++] & 0x80) != 0) {
+            // skip
+        }
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int a = b[off++] & 0xff;
+            if (a == 0) {
+                break;
+            }
+            if (a < 0x80) {
+                sb.append((char) a);
+            } else if ((a & 0xe0) == 0xc0) {
+                int c = b[off++] & 0x3f;
+                sb.append((char) (((a & 0x1f) << 6) | c));
+            } else {
+                int c = b[off++] & 0x3f;
+                int d = b[off++] & 0x3f;
+                sb.append((char) (((a & 0x0f) << 12) | (c << 6) | d));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 第二个哈希函数（FNV-1a），和String.hashCode一起做“双重哈希”
+     */
+    private static int secondaryHash(String s) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x01000193;
+        }
+        // 避免为0，否则各哈希函数的结果都相同
+        return h | 1;
+    }
+}
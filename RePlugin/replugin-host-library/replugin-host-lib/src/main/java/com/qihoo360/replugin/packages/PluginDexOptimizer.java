@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.packages;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.qihoo360.loader2.Constant;
+import com.qihoo360.mobilesafe.api.Tasks;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+import com.qihoo360.replugin.model.PluginInfo;
+import com.qihoo360.replugin.utils.Charsets;
+import com.qihoo360.replugin.utils.FileUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件的“后台Dex优化”队列（运行在常驻进程中） <p>
+ * 插件安装（或升级）成功后加入队列，由后台线程逐个交给UI进程做Dex优化（见PluginFastInstallProviderProxy.dexOpt）， <p>
+ * 这样首次打开插件时即可省去dex2oat的耗时。和preload不同，优化后的插件不会被视为“正在运行” <p>
+ * 队列会写入文件，常驻进程被杀后可在下次启动时继续；失败的插件最多重试MAX_ATTEMPTS次 <p>
+ * 是否已优化完毕，可通过PluginInfo.isDexExtracted来判断
+ *
+ * @author RePlugin Team
+ * @see com.qihoo360.replugin.RePluginConfig#setDexOptAfterInstall(boolean)
+ */
+class PluginDexOptimizer {
+
+    private static final String TAG = "PluginDexOptimizer";
+
+    /**
+     * 同时做Dex优化的插件数。dex2oat本身很占CPU和IO，故只用一个线程
+     */
+    private static final int MAX_WORKERS = 1;
+
+    /**
+     * 工作线程空闲多久后退出（毫秒）
+     */
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    /**
+     * 每个插件最多尝试几次（含常驻进程重启后的重试）
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * 继续上次的优化前，先等待多久（毫秒），避免和进程启动抢占资源
+     */
+    private static final long RESUME_DELAY = 10 * 1000;
+
+    private static final String KEY_INFO = "pi";
+
+    private static final String KEY_ATTEMPTS = "n";
+
+    private final Context mContext;
+
+    /**
+     * APK路径 -> 待优化的插件
+     */
+    private final LinkedHashMap<String, Item> mItems = new LinkedHashMap<>();
+
+    private boolean mLoaded;
+
+    private boolean mResumed;
+
+    private ThreadPoolExecutor mExecutor;
+
+    private static final class Item {
+
+        final PluginInfo mInfo;
+
+        int mAttempts;
+
+        Item(PluginInfo info) {
+            mInfo = info;
+        }
+    }
+
+    PluginDexOptimizer(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * 将插件加入队列
+     *
+     * @param pi 插件信息，须为Clone过的对象
+     */
+    void enqueue(PluginInfo pi) {
+        if (pi.isDexExtracted()) {
+            return;
+        }
+        Item item = new Item(pi);
+        synchronized (this) {
+            loadIfNeeded();
+            mItems.put(pi.getPath(), item);
+            save();
+        }
+        if (LogDebug.LOG) {
+            LogDebug.d(TAG, "enqueue: pi=" + pi);
+        }
+        submit(item);
+    }
+
+    /**
+     * 继续上次未完成的优化（如常驻进程被杀时）
+     */
+    void resume() {
+        synchronized (this) {
+            if (mResumed) {
+                return;
+            }
+            mResumed = true;
+        }
+        Tasks.postDelayed2Thread(new Runnable() {
+            @Override
+            public void run() {
+                Item[] items;
+                synchronized (PluginDexOptimizer.this) {
+                    loadIfNeeded();
+                    items = mItems.values().toArray(new Item[mItems.size()]);
+                }
+                if (LogDebug.LOG) {
+                    LogDebug.d(TAG, "resume: count=" + items.length);
+                }
+                for (Item item : items) {
+                    submit(item);
+                }
+            }
+        }, RESUME_DELAY);
+    }
+
+    private void submit(final Item item) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                optimize(item);
+            }
+        });
+    }
+
+    private void optimize(Item item) {
+        PluginInfo pi = item.mInfo;
+        synchronized (this) {
+            // 已被更新的请求替换，或已处理完毕
+            if (mItems.get(pi.getPath()) != item) {
+                return;
+            }
+        }
+
+        boolean done;
+        if (!pi.getApkFile().exists()) {
+            // 插件已被卸载或被移走（如Pending的插件已更新到正式位置）
+            done = true;
+        } else if (pi.isDexExtracted()) {
+            done = true;
+        } else {
+            long begin = System.currentTimeMillis();
+            done = PluginFastInstallProviderProxy.dexOpt(mContext, pi);
+            if (LOGR) {
+                LogRelease.i(PLUGIN_TAG, "pdo.o: pn=" + pi.getName() + "; ver=" + pi.getVersion() + "; rc=" + done + "; cost=" + (System.currentTimeMillis() - begin));
+            }
+        }
+
+        synchronized (this) {
+            if (mItems.get(pi.getPath()) != item) {
+                return;
+            }
+            item.mAttempts++;
+            if (done || item.mAttempts >= MAX_ATTEMPTS) {
+                mItems.remove(pi.getPath());
+            }
+            save();
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        synchronized (this) {
+            if (mExecutor == null) {
+                mExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mIndex = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("replugin-dexopt-" + mIndex.incrementAndGet()) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+                mExecutor.allowCoreThreadTimeOut(true);
+            }
+            return mExecutor;
+        }
+    }
+
+    private void save() {
+        try {
+            JSONArray ja = new JSONArray();
+            for (Item item : mItems.values()) {
+                JSONObject jo = new JSONObject();
+                jo.put(KEY_INFO, item.mInfo.getJSON());
+                jo.put(KEY_ATTEMPTS, item.mAttempts);
+                ja.put(jo);
+            }
+            File f = getFile();
+            if (ja.length() == 0) {
+                FileUtils.deleteQuietly(f);
+            } else {
+                FileUtils.writeStringToFile(f, ja.toString(), Charsets.UTF_8);
+            }
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pdo.s: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File f = getFile();
+        if (!f.exists()) {
+            return;
+        }
+        try {
+            JSONArray ja = new JSONArray(FileUtils.readFileToString(f, Charsets.UTF_8));
+            for (int i = 0; i < ja.length(); i++) {
+                JSONObject jo = ja.optJSONObject(i);
+                if (jo == null) {
+                    continue;
+                }
+                PluginInfo pi = parseInfo(jo.optJSONObject(KEY_INFO));
+                if (pi == null) {
+                    continue;
+                }
+                Item item = new Item(pi);
+                item.mAttempts = jo.optInt(KEY_ATTEMPTS);
+                mItems.put(pi.getPath(), item);
+            }
+        } catch (Throwable e) {
+            // 文件损坏，放弃即可。插件首次加载时仍会做优化
+            mItems.clear();
+            FileUtils.deleteQuietly(f);
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pdo.l: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static PluginInfo parseInfo(JSONObject jo) {
+        if (jo == null) {
+            return null;
+        }
+        return PluginInfo.parseFromJsonText(jo.toString());
+    }
+
+    private File getFile() {
+        final File d = mContext.getDir(Constant.LOCAL_PLUGIN_APK_SUB_DIR, 0);
+        return new File(d, "p_dexopt.json");
+    }
+}
@@ -46,6 +46,8 @@ public class PluginFastInstallProvider extends ContentProvider {
 
     public static final String SELECTION_INSTALL = "inst";
 
+    public static final String SELECTION_DEX_OPT = "dexopt";
+
     public static final String KEY_PLUGIN_INFO = "pi";
 
     // 此类不是个标准的Provider（只是命令接受），不需要URI_MATCHER这么复杂的处理形式
@@ -76,6 +78,9 @@ public class PluginFastInstallProvider extends ContentProvider {
             case SELECTION_INSTALL: {
                 return install(values);
             }
+            case SELECTION_DEX_OPT: {
+                return dexOpt(values);
+            }
         }
         return 0;
     }
@@ -100,6 +105,24 @@ public class PluginFastInstallProvider extends ContentProvider {
         }
     }
 
+    private int dexOpt(ContentValues cv) {
+        if (cv == null) {
+            return 0;
+        }
+
+        String pit = cv.getAsString(KEY_PLUGIN_INFO);
+        if (TextUtils.isEmpty(pit)) {
+            return 0;
+        }
+        PluginInfo pi = PluginInfo.parseFromJsonText(pit);
+        if (pi == null) {
+            return 0;
+        }
+
+        // 只优化Dex，不将插件标记为“正在运行”，这样之后的升级仍可立即生效
+        return PMF.getLocal().optimizePluginDex(pi) ? 1 : 0;
+    }
+
     @Nullable
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
@@ -80,6 +80,39 @@ public class PluginFastInstallProviderProxy {
         return false;
     }
 
+    /**
+     * 通知UI进程只做“Dex优化”，和install不同的是，不会加载插件，也不会将插件标记为“正在运行” <p>
+     * 主要用于安装后的“后台Dex优化”，见PluginDexOptimizer
+     *
+     * @param context Context对象
+     * @param pi PluginInfo对象
+     * @return 优化是否成功
+     */
+    public static boolean dexOpt(Context context, PluginInfo pi) {
+        if (pi.isDexExtracted()) {
+            return true;
+        }
+
+        ContentProviderClient cpc = getProvider(context);
+        if (cpc == null) {
+            return false;
+        }
+
+        try {
+            int r = cpc.update(PluginFastInstallProvider.CONTENT_URI,
+                    PluginFastInstallProvider.makeInstallValues(pi),
+                    PluginFastInstallProvider.SELECTION_DEX_OPT, null);
+            if (LogDebug.LOG) {
+                LogDebug.i(TAG, "dexOpt: pi=" + pi + "; result=" + r);
+            }
+            return r > 0;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
     private static ContentProviderClient getProvider(Context context) {
         if (sProvider != null) {
             return sProvider;
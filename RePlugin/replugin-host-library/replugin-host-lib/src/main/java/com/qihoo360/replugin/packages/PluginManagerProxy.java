@@ -232,6 +232,27 @@ public class PluginManagerProxy {
         }
     }
 
+    /**
+     * 从"当前进程的正在运行插件列表"中移除插件（如插件被移出内存时），并同步到Server端
+     *
+     * @param pluginName 插件名
+     */
+    public static void removeFromRunningPluginsNoThrows(String pluginName) {
+        sRunningList.remove(pluginName);
+
+        // 直接用本进程的列表覆盖常驻进程中的，无需新增接口
+        if (sRemote != null) {
+            try {
+                sRemote.syncRunningPlugins(sRunningList);
+            } catch (RemoteException e) {
+                // 常驻进程出现问题，先不管，等下次启动时再同步
+                if (LogRelease.LOGR) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     /**
      * 调用常驻进程的Server端去拉取正在运行的插件列表。如有异常，则只获取本地即可
      *
@@ -287,4 +308,46 @@ public class PluginManagerProxy {
         }
         return r;
     }
+
+    /**
+     * 通知常驻进程：插件在当前进程中被启动了一次，用于预测接下来可能用到的插件
+     *
+     * @param pluginName 插件名
+     */
+    public static void recordPluginLaunchNoThrows(String pluginName) {
+        if (sRemote == null) {
+            return;
+        }
+        try {
+            sRemote.recordPluginLaunch(sRunningList.mProcessName, pluginName);
+        } catch (RemoteException e) {
+            // 常驻进程出现问题，少记一次无妨
+            if (LogRelease.LOGR) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 让常驻进程预测当前进程接下来可能用到的插件
+     *
+     * @param max 最多返回几个
+     * @return 插件名列表，按可能性从高到低排列。一定不会为Null
+     */
+    public static String[] predictPluginsNoThrows(int max) {
+        if (sRemote != null) {
+            try {
+                String[] r = sRemote.predictPlugins(sRunningList.mProcessName, max);
+                if (r != null) {
+                    return r;
+                }
+            } catch (RemoteException e) {
+                // 常驻进程出现问题
+                if (LogRelease.LOGR) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return new String[0];
+    }
 }
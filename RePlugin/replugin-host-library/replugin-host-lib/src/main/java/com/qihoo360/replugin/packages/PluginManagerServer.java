@@ -25,26 +25,45 @@ import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import com.qihoo360.loader2.CertUtils;
+import com.qihoo360.loader2.Constant;
 import com.qihoo360.loader2.MP;
+import com.qihoo360.loader2.PluginBlobStore;
+import com.qihoo360.loader2.PluginCertCache;
 import com.qihoo360.loader2.PluginNativeLibsHelper;
 import com.qihoo360.replugin.RePlugin;
 import com.qihoo360.replugin.RePluginEventCallbacks;
 import com.qihoo360.replugin.RePluginInternal;
+import com.qihoo360.replugin.component.ComponentList;
+import com.qihoo360.replugin.component.PackageSnapshot;
 import com.qihoo360.replugin.helper.LogDebug;
 import com.qihoo360.replugin.helper.LogRelease;
 import com.qihoo360.replugin.model.PluginInfo;
 import com.qihoo360.replugin.model.PluginInfoList;
 import com.qihoo360.replugin.utils.FileUtils;
+import com.qihoo360.replugin.utils.basic.SecurityUtil;
 import com.qihoo360.replugin.utils.pkg.PackageFilesUtil;
 
+import org.json.JSONArray;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.qihoo360.replugin.helper.LogDebug.LOG;
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
 
 /**
  * 插件管理器。用来控制插件的安装、卸载、获取等。运行在常驻进程中 <p>
@@ -59,8 +78,15 @@ public class PluginManagerServer {
 
     private static final String TAG = "PluginManagerServer";
 
-    private static final byte[] LOCKER_PROCESS_KILLED = new byte[0];
-    private static final byte[] LOCKER = new byte[0];
+    // 修改“各进程正在运行的插件”时用。读取时无需加锁
+    private static final byte[] LOCKER_RUNNING = new byte[0];
+    // 保存插件列表时用，确保同一时刻只有一个线程在写文件
+    private static final byte[] LOCKER_SAVE = new byte[0];
+
+    /**
+     * 批量安装时，同时处理的插件数
+     */
+    private static final int MAX_INSTALL_WORKERS = 4;
 
     private Context mContext;
 
@@ -68,26 +94,66 @@ public class PluginManagerServer {
     // TODO 目前这里只存新插件信息，不做额外的处理。除此之外，在PmHostSvc和PmBase中存放着所有插件信息，将来会优化这里
     private PluginInfoList mList = new PluginInfoList();
 
+    // 各进程正在运行的插件。其中的PluginRunningList一经放入便不再修改（写时复制），故读取时无需加锁
     private Map<String, PluginRunningList> mProcess2PluginsMap = new ConcurrentHashMap<>();
 
+    // 安装、卸载、更新单个插件时持有“读锁”，再按插件名加锁，不同插件间可同时进行
+    // 加载、批量更新等涉及所有插件的操作持有“写锁”
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    // 插件名 -> 锁
+    private final ConcurrentHashMap<String, Object> mPluginLockers = new ConcurrentHashMap<>();
+
+    // 插件列表的改动序号，用来合并同时发生的多次保存
+    private final AtomicLong mListVersion = new AtomicLong();
+
+    // 已保存到文件中的改动序号，受LOCKER_SAVE保护
+    private long mSavedVersion;
+
     private IPluginManagerServer mStub;
 
+    // 各进程的插件使用记录，用来预测并“预热”插件
+    private PluginUsageStats mUsageStats;
+
+    // 安装后的“后台Dex优化”队列
+    private PluginDexOptimizer mDexOptimizer;
+
     public PluginManagerServer(Context context) {
         mContext = context;
         mStub = new Stub();
+        mUsageStats = new PluginUsageStats(context);
+        mDexOptimizer = new PluginDexOptimizer(context);
     }
 
     public IPluginManagerServer getService() {
         return mStub;
     }
 
+    /**
+     * 只读取插件列表，不做“更新或删除Pending插件”等涉及文件移动的操作 <p>
+     * 仅供常驻进程启动时生成“临时插件表”使用，之后须再调用load来完成这些操作
+     *
+     * @return 插件列表，读取失败时返回null
+     */
+    public List<PluginInfo> loadWithoutUpdate() {
+        mLock.writeLock().lock();
+        try {
+            if (!mList.load(mContext)) {
+                return null;
+            }
+            return mList.cloneList();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
     /**
      * 若某个客户端进程（除常驻进程外的进程）被干掉时调用此方法
      *
      * @param processName 被干掉的进程名
      */
     public void onClientProcessKilled(String processName) {
-        synchronized (LOCKER_PROCESS_KILLED) {
+        synchronized (LOCKER_RUNNING) {
             mProcess2PluginsMap.remove(processName);
 
             if (LogDebug.LOG) {
@@ -101,6 +167,11 @@ public class PluginManagerServer {
             return null;
         }
 
+        // 继续上次没做完的Dex优化
+        if (RePlugin.getConfig().isDexOptAfterInstall()) {
+            mDexOptimizer.resume();
+        }
+
         // 执行“更新或删除Pending”插件，并返回结果
         return updateAllLocked();
     }
@@ -114,8 +185,167 @@ public class PluginManagerServer {
     }
 
     private PluginInfo installLocked(String path) {
+        return installLocked(path, RePlugin.getConfig().isMoveFileWhenInstalling());
+    }
+
+    private PluginInfo installLocked(String path, boolean move) {
+        // 1~3. 只读取APK，无需加锁
+        InstallTask task = parseApk(path);
+        if (task == null) {
+            return null;
+        }
+        return installLocked(task, move);
+    }
+
+    /**
+     * 完成安装的4~8步
+     */
+    private PluginInfo installLocked(InstallTask task, boolean move) {
+        if (!extractAndCommit(task, move)) {
+            return null;
+        }
+
+        // 7. 保存插件信息到文件中，下次可直接使用
+        saveList();
+
+        // 8. 在后台提前做Dex优化，首次打开插件时即可直接使用
+        if (RePlugin.getConfig().isDexOptAfterInstall()) {
+            mDexOptimizer.enqueue((PluginInfo) task.mInfo.clone());
+        }
+
+        return task.mInfo;
+    }
+
+    private List<PluginInfo> installAllLocked(List<String> paths) {
+        final int count = paths.size();
+        final InstallTask[] tasks = new InstallTask[count];
+        final boolean move = RePlugin.getConfig().isMoveFileWhenInstalling();
+        long begin = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(count, MAX_INSTALL_WORKERS)), new ThreadFactory() {
+            private final AtomicInteger mIndex = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "replugin-install-" + mIndex.incrementAndGet());
+            }
+        });
+        try {
+            // 1~3. 并发地读取APK内容、校验签名、解析插件信息
+            List<Future<InstallTask>> parses = new ArrayList<>(count);
+            for (final String path : paths) {
+                parses.add(executor.submit(new Callable<InstallTask>() {
+                    @Override
+                    public InstallTask call() throws Exception {
+                        return parseApk(path);
+                    }
+                }));
+            }
+            for (int i = 0; i < count; i++) {
+                tasks[i] = getQuietly(parses.get(i));
+            }
+
+            // 同一插件出现多次时，只安装版本最高的（版本相同则以后出现的为准），以免并发地写入同一位置
+            HashMap<String, Integer> name2Index = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                if (tasks[i] == null) {
+                    continue;
+                }
+                Integer prev = name2Index.get(tasks[i].mInfo.getName());
+                if (prev == null) {
+                    name2Index.put(tasks[i].mInfo.getName(), i);
+                    continue;
+                }
+                int drop = tasks[i].mInfo.getVersion() >= tasks[prev].mInfo.getVersion() ? prev : i;
+                RePlugin.getConfig().getEventCallbacks().onInstallPluginFailed(tasks[drop].mPath, RePluginEventCallbacks.InstallResult.VERIFY_VER_FAIL);
+                tasks[drop] = null;
+                if (drop == prev) {
+                    name2Index.put(tasks[i].mInfo.getName(), i);
+                }
+            }
+
+            // 4~6. 并发地移动（或复制）APK、释放So、生成快照和类名索引，并更新插件信息。各插件的目标文件互不相同
+            List<Future<Boolean>> extracts = new ArrayList<>(count);
+            for (final InstallTask task : tasks) {
+                if (task == null) {
+                    extracts.add(null);
+                    continue;
+                }
+                extracts.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return extractAndCommit(task, move);
+                    }
+                }));
+            }
+            for (int i = 0; i < count; i++) {
+                Future<Boolean> f = extracts.get(i);
+                if (f != null && !Boolean.TRUE.equals(getQuietly(f))) {
+                    tasks[i] = null;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<PluginInfo> result = new ArrayList<>(count);
+        for (InstallTask task : tasks) {
+            result.add(task != null ? task.mInfo : null);
+        }
+
+        // 7. 所有插件的信息只保存一次
+        saveList();
+
+        // 8. 在后台提前做Dex优化
+        if (RePlugin.getConfig().isDexOptAfterInstall()) {
+            for (InstallTask task : tasks) {
+                if (task != null) {
+                    mDexOptimizer.enqueue((PluginInfo) task.mInfo.clone());
+                }
+            }
+        }
+
+        if (LogRelease.LOGR) {
+            LogRelease.i(PLUGIN_TAG, "pms.ia: count=" + count + "; cost=" + (System.currentTimeMillis() - begin));
+        }
+        return result;
+    }
+
+    /**
+     * 读取APK内容、校验签名并解析出插件信息。只读取文件，可并发调用
+     *
+     * @return 待安装的插件。失败则返回null（已回调onInstallPluginFailed）
+     */
+    private InstallTask parseApk(String path) {
+        return parseApk(path, null);
+    }
+
+    /**
+     * @param knownSha256 已算好的APK的SHA-256（如合成增量包时顺带算出的），为null时读取APK计算
+     */
+    private InstallTask parseApk(String path, byte[] knownSha256) {
         final boolean verifySignEnable = RePlugin.getConfig().getVerifySign();
-        final int flags = verifySignEnable ? PackageManager.GET_META_DATA | PackageManager.GET_SIGNATURES : PackageManager.GET_META_DATA;
+
+        // APK的SHA-256，用于签名缓存和PluginBlobStore去重（需要API 21），只读一遍
+        final File apk = new File(path);
+        final byte[] sha256;
+        if (knownSha256 != null) {
+            sha256 = knownSha256;
+        } else {
+            sha256 = verifySignEnable || Build.VERSION.SDK_INT >= 21 ? SecurityUtil.SHA256(apk) : null;
+        }
+
+        // 同一个APK此前已校验通过（如重新安装、同版本覆盖）？则无需再解析签名
+        String certKey = null;
+        boolean verified = false;
+        if (verifySignEnable) {
+            certKey = PluginCertCache.keyOf(sha256, apk.length());
+            verified = PluginCertCache.isVerified(certKey);
+        }
+        final boolean needVerify = verifySignEnable && !verified;
+
+        // 同时解析出四大组件，以便生成PackageSnapshot，省去各进程加载插件时的再次解析
+        final int flags = needVerify ? PackageSnapshot.PARSE_FLAGS | PackageManager.GET_SIGNATURES : PackageSnapshot.PARSE_FLAGS;
 
         // 1. 读取APK内容
         PackageInfo pi = mContext.getPackageManager().getPackageArchiveInfo(path, flags);
@@ -129,10 +359,11 @@ public class PluginManagerServer {
         }
 
         // 2. 校验插件签名
-        if (verifySignEnable) {
+        if (needVerify) {
             if (!verifySignature(pi, path)) {
                 return null;
             }
+            PluginCertCache.put(certKey, pi.signatures);
         }
 
         // 3. 解析出名字和三元组
@@ -141,6 +372,19 @@ public class PluginManagerServer {
             LogDebug.i(TAG, "installLocked: Info=" + instPli);
         }
         instPli.setType(PluginInfo.TYPE_NOT_INSTALL);
+        InstallTask task = new InstallTask(path, pi, instPli);
+        task.mSha256 = sha256;
+        return task;
+    }
+
+    /**
+     * 校验版本，并将APK移动（或复制）到安装路径下，释放So、生成快照和类名索引。不修改插件列表，不同插件间可并发调用
+     *
+     * @return 是否成功（失败时已回调onInstallPluginFailed）
+     */
+    private boolean extractApk(InstallTask task, boolean move) {
+        final String path = task.mPath;
+        final PluginInfo instPli = task.mInfo;
 
         // 若要安装的插件版本小于或等于当前版本，则安装失败
         // NOTE 绝大多数情况下，应该在调用RePlugin.install方法前，根据云端回传的信息来判断，以防止下载旧插件，浪费流量
@@ -157,33 +401,102 @@ public class PluginManagerServer {
             final int checkResult = checkVersion(instPli, curPli);
             if (checkResult < 0) {
                 RePlugin.getConfig().getEventCallbacks().onInstallPluginFailed(path, RePluginEventCallbacks.InstallResult.VERIFY_VER_FAIL);
-                return null;
+                return false;
             } else if (checkResult == 0){
                 instPli.setIsPendingCover(true);
             }
         }
+        task.mCurrent = curPli;
 
         // 4. 将合法的APK改名后，移动（或复制，见RePluginConfig.isMoveFileWhenInstalling）到新位置
         // 注意：不能和p-n的最终释放位置相同，因为管理方式不一样
-        if (!copyOrMoveApk(path, instPli)) {
+        if (!copyOrMoveApk(path, instPli, move)) {
             RePlugin.getConfig().getEventCallbacks().onInstallPluginFailed(path, RePluginEventCallbacks.InstallResult.COPY_APK_FAIL);
-            return null;
+            return false;
         }
 
+        // 4.1 若其它插件（或其它版本）中有内容相同的APK，则共享同一份文件
+        PluginBlobStore.share(instPli.getApkFile(), task.mSha256);
+
         // 5. 从插件中释放 So 文件
         PluginNativeLibsHelper.install(instPli.getPath(), instPli.getNativeLibsDir());
 
-        // 6. 若已经安装旧版本插件，则尝试更新插件信息，否则直接加入到列表中
-        if (curPli != null) {
-            updateOrLater(curPli, instPli);
-        } else {
-            mList.add(instPli);
+        // 5.1 生成PackageInfo和组件IntentFilter的快照。签名信息仅安装时校验用，无需保存
+        PackageInfo pi = task.mPackageInfo;
+        pi.signatures = null;
+        PackageSnapshot.write(instPli.getApkFile(), pi, ComponentList.getComponentsFromApk(instPli.getPath()));
+
+        // 5.2 生成类名索引，供PluginDexClassLoader跳过“插件中肯定没有”的类
+        PluginClassIndex.write(instPli.getApkFile());
+        return true;
+    }
+
+    /**
+     * 持有插件锁，完成安装的4~6步。同名插件的安装、卸载等操作会等待此过程结束
+     */
+    private boolean extractAndCommit(InstallTask task, boolean move) {
+        synchronized (getPluginLocker(task.mInfo.getName())) {
+            if (!extractApk(task, move)) {
+                return false;
+            }
+
+            // 6. 若已经安装旧版本插件，则尝试更新插件信息，否则直接加入到列表中
+            if (task.mCurrent != null) {
+                updateOrLater(task.mCurrent, task.mInfo);
+            } else {
+                mList.add(task.mInfo);
+            }
+            mListVersion.incrementAndGet();
+            return true;
         }
+    }
 
-        // 7. 保存插件信息到文件中，下次可直接使用
-        mList.save(mContext);
+    private Object getPluginLocker(String pluginName) {
+        Object locker = mPluginLockers.get(pluginName);
+        if (locker == null) {
+            Object newLocker = new byte[0];
+            locker = mPluginLockers.putIfAbsent(pluginName, newLocker);
+            if (locker == null) {
+                locker = newLocker;
+            }
+        }
+        return locker;
+    }
 
-        return instPli;
+    /**
+     * 将插件列表保存到文件中 <p>
+     * 同一时刻只有一个线程在写文件；若在等待期间，别的线程已将本次改动一并保存，则直接返回 <p>
+     * 调用时不能持有任何插件锁，因为这里要逐个持有插件锁来读取其信息
+     */
+    private void saveList() {
+        long version = mListVersion.incrementAndGet();
+        synchronized (LOCKER_SAVE) {
+            if (mSavedVersion >= version) {
+                return;
+            }
+            long saving = mListVersion.get();
+            JSONArray jsonArr = new JSONArray();
+            for (PluginInfo pi : mList) {
+                // getJSON返回的是副本，持有插件锁时复制一份，之后再序列化
+                synchronized (getPluginLocker(pi.getName())) {
+                    jsonArr.put(pi.getJSON());
+                }
+            }
+            if (mList.save(mContext, jsonArr)) {
+                mSavedVersion = saving;
+            }
+        }
+    }
+
+    private static <T> T getQuietly(Future<T> f) {
+        try {
+            return f.get();
+        } catch (Throwable e) {
+            if (LogRelease.LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pms.gq: " + e.getMessage(), e);
+            }
+            return null;
+        }
     }
 
     private boolean verifySignature(PackageInfo pi, String path) {
@@ -234,7 +547,115 @@ public class PluginManagerServer {
         return 1;
     }
 
-    private boolean copyOrMoveApk(String path, PluginInfo instPli) {
+    private PluginInfo installPatchLocked(String pluginName, String patchPath) {
+        PatchedApk patched = applyPatch(pluginName, patchPath);
+        if (patched == null) {
+            return null;
+        }
+        File target = patched.mFile;
+
+        // 3. 走正常的安装流程（校验签名、版本，更新或稍后更新）。合成出的APK是临时文件，总是“移动”
+        try {
+            InstallTask task = parseApk(target.getAbsolutePath(), patched.mSha256);
+            if (task == null) {
+                return null;
+            }
+            // 合成出的必须是同一个插件，否则错误（或不匹配）的增量包可能会安装、升级其它插件
+            // 注意：pluginName可能是包名或别名，须和已安装插件的名字（即安装时所用的Key）比较
+            PluginInfo curPli = MP.getPlugin(pluginName, false);
+            String instName = task.mInfo.getName();
+            if (curPli == null || !TextUtils.equals(instName, curPli.getName())) {
+                if (LogRelease.LOGR) {
+                    LogRelease.e(TAG, "installPatchLocked: Plugin name mismatch! pn=" + pluginName + "; patched=" + instName + "; patch=" + patchPath);
+                }
+                RePlugin.getConfig().getEventCallbacks().onInstallPluginFailed(patchPath, RePluginEventCallbacks.InstallResult.APPLY_PATCH_FAIL);
+                return null;
+            }
+            return installLocked(task, true);
+        } finally {
+            if (target.exists()) {
+                FileUtils.deleteQuietly(target);
+            }
+        }
+    }
+
+    /**
+     * 持有插件锁，合成新APK，以免旧APK在合成过程中被更新或删除
+     *
+     * @return 合成出的新APK；失败则返回null（已回调onInstallPluginFailed）
+     */
+    private PatchedApk applyPatch(String pluginName, String patchPath) {
+        // pluginName可能是包名或别名，须和安装、卸载一样以插件名加锁
+        PluginInfo curPli = MP.getPlugin(pluginName, false);
+        if (curPli == null) {
+            onNoPatchBase(pluginName, patchPath);
+            return null;
+        }
+        synchronized (getPluginLocker(curPli.getName())) {
+            return applyPatchLocked(curPli.getName(), patchPath);
+        }
+    }
+
+    private void onNoPatchBase(String pluginName, String patchPath) {
+        if (LogDebug.LOG) {
+            LogDebug.e(TAG, "installPatchLocked: No matched base apk. pn=" + pluginName + "; patch=" + patchPath);
+        }
+        RePlugin.getConfig().getEventCallbacks().onInstallPluginFailed(patchPath, RePluginEventCallbacks.InstallResult.APPLY_PATCH_FAIL);
+    }
+
+    private PatchedApk applyPatchLocked(String pluginName, String patchPath) {
+        File patch = new File(patchPath);
+
+        // 1. 找到增量包所针对的旧APK：优先为“待更新版本”，其次为当前版本，以文件的MD5区分
+        // 加锁前插件可能刚好被卸载，故须重新获取
+        PluginInfo curPli = MP.getPlugin(pluginName, false);
+        File base = findPatchBase(curPli, patch);
+        if (base == null) {
+            onNoPatchBase(pluginName, patchPath);
+            return null;
+        }
+
+        // 2. 合成新APK。放在APK目录下，这样安装时只需改名，无需再复制一次
+        File target = new File(mContext.getDir(Constant.LOCAL_PLUGIN_APK_SUB_DIR, 0), pluginName + "-" + System.currentTimeMillis() + ".patch.apk");
+        long begin = System.currentTimeMillis();
+        byte[] sha256;
+        try {
+            sha256 = PluginPatcher.apply(base, patch, target);
+        } catch (IOException e) {
+            if (LogRelease.LOGR) {
+                LogRelease.e(TAG, "installPatchLocked: Apply failed! pn=" + pluginName + "; base=" + base + "; patch=" + patchPath, e);
+            }
+            FileUtils.deleteQuietly(target);
+            RePlugin.getConfig().getEventCallbacks().onInstallPluginFailed(patchPath, RePluginEventCallbacks.InstallResult.APPLY_PATCH_FAIL);
+            return null;
+        }
+        if (LogDebug.LOG) {
+            LogDebug.i(TAG, "installPatchLocked: Applied. pn=" + pluginName + "; size=" + target.length() + "; cost=" + (System.currentTimeMillis() - begin));
+        }
+        return new PatchedApk(target, sha256);
+    }
+
+    private File findPatchBase(PluginInfo curPli, File patch) {
+        long baseLength = PluginPatcher.readBaseLength(patch);
+        byte[] baseMd5 = PluginPatcher.readBaseMd5(patch);
+        if (curPli == null || baseLength < 0 || baseMd5 == null) {
+            return null;
+        }
+        PluginInfo[] candidates = {curPli.getPendingUpdate(), curPli.getPendingCover(), curPli};
+        for (PluginInfo pli : candidates) {
+            if (pli == null) {
+                continue;
+            }
+            File f = pli.getApkFile();
+            // 先比较长度，相同时才计算MD5
+            if (f.exists() && f.length() == baseLength && Arrays.equals(SecurityUtil.MD5(f), baseMd5)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    private boolean copyOrMoveApk(String path, PluginInfo instPli, boolean move) {
         File srcFile = new File(path);
         File newFile = instPli.getApkFile();
 
@@ -246,7 +667,7 @@ public class PluginManagerServer {
 
         // 将源APK文件移动/复制到安装路径下
         try {
-            if (RePlugin.getConfig().isMoveFileWhenInstalling()) {
+            if (move) {
                 FileUtils.moveFile(srcFile, newFile);
             } else {
                 FileUtils.copyFile(srcFile, newFile);
@@ -359,13 +780,16 @@ public class PluginManagerServer {
             LogDebug.d(TAG, "updateAllIfNeeded: Updated " + updateNum + " plugins");
         }
         if (updateNum > 0) {
-            mList.save(mContext);
+            saveList();
         }
+
+        // 插件被更新、删除后，清理已不被引用的共享文件
+        PluginBlobStore.gc();
     }
 
     // NOTE 调用此方法后，务必最终调用sList.save()，不然会丢失改动
     private boolean updateIfNeeded(PluginInfo curInfo) {
-        if (isPluginRunningLocked(curInfo.getName(), null)) {
+        if (isPluginRunning(curInfo.getName(), null)) {
             // 插件正在被使用，不能贸然升级或者卸载
             if (LogDebug.LOG) {
                 LogDebug.w(TAG, "updateIfNeeded: Plugin is running. pn=" + curInfo.getName());
@@ -428,8 +852,14 @@ public class PluginManagerServer {
         if (LogDebug.LOG) {
             LogDebug.i(TAG, "move. curPi=" + curPi.getPath() + "; newPi=" + newPi.getPath());
         }
+        // 路径变化后快照即失效，删掉旧的，待加载时重新生成
+        PackageSnapshot.delete(curPi.getApkFile());
+        PluginClassIndex.delete(curPi.getApkFile());
         try {
+            // 注意：目标文件可能是PluginBlobStore中共享（且只读）的硬链接，故copyFile/copyDir均是“写临时文件后改名替换”，
+            // 不会原地改写，其它插件和正在使用旧文件的进程不受影响
             FileUtils.copyFile(newPi.getApkFile(), curPi.getApkFile());
+            PluginBlobStore.share(curPi.getApkFile(), null);
 
             if (newPi.getDexFile().exists()) {
                 FileUtils.copyFile(newPi.getDexFile(), curPi.getDexFile());
@@ -464,6 +894,8 @@ public class PluginManagerServer {
     }
 
     private void delete(@NonNull PluginInfo pi) {
+        PackageSnapshot.delete(new File(pi.getPath()));
+        PluginClassIndex.delete(new File(pi.getPath()));
         try {
             FileUtils.forceDelete(new File(pi.getPath()));
             FileUtils.forceDelete(pi.getDexFile());
@@ -488,9 +920,12 @@ public class PluginManagerServer {
             return;
         }
 
-        // 1. 设置状态并保存
-        pi.setIsUsed(used);
-        mList.save(mContext);
+        // 1. 设置状态并保存。pluginName可能是包名或别名，须和saveList、安装、卸载一样以插件名加锁
+        synchronized (getPluginLocker(pi.getName())) {
+            pi.setIsUsed(used);
+            mListVersion.incrementAndGet();
+        }
+        saveList();
 
         // 2. 给各进程发送广播，要求更新Used状态（同步）
         PluginInfoUpdater.updateIsUsed(RePluginInternal.getAppContext(), pluginName, used);
@@ -501,13 +936,20 @@ public class PluginManagerServer {
             return false;
         }
 
-        // 插件正在运行？ 记录“卸载状态”，推迟到到常驻进程重启的时执行卸载
-        if (RePlugin.isPluginRunning(pi.getName())) {
-            return uninstallLater(pi);
+        boolean result;
+        synchronized (getPluginLocker(pi.getName())) {
+            // 插件正在运行？ 记录“卸载状态”，推迟到到常驻进程重启的时执行卸载
+            if (RePlugin.isPluginRunning(pi.getName())) {
+                result = uninstallLater(pi);
+            } else {
+                // 插件未在运行，直接卸载
+                result = uninstallNow(pi);
+            }
         }
 
-        // 插件未在运行，直接卸载
-        return uninstallNow(pi);
+        // 保存插件信息到文件中，下次可直接使用
+        saveList();
+        return result;
     }
 
     private boolean uninstallLater(PluginInfo info) {
@@ -520,8 +962,8 @@ public class PluginManagerServer {
         }
         pi.setPendingDelete(info);
 
-        // 保存插件卸载状态到文件中，下次可直接使用
-        mList.save(mContext);
+        // 插件卸载状态由调用方保存到文件中
+        mListVersion.incrementAndGet();
         return false;
     }
 
@@ -533,14 +975,17 @@ public class PluginManagerServer {
         // 1. 移除插件及其已释放的Dex、Native库等文件
         PackageFilesUtil.forceDelete(info);
 
-        // 2. 保存插件信息到文件中
+        // 2. 从列表中移除，由调用方保存到文件中
         mList.remove(info.getName());
-        mList.save(mContext);
+        mListVersion.incrementAndGet();
+
+        // 3. 不再需要预测此插件
+        mUsageStats.remove(info.getName());
 
         return true;
     }
 
-    private PluginRunningList getRunningPluginsLocked() {
+    private PluginRunningList getRunningPlugins() {
         PluginRunningList l = new PluginRunningList();
         for (PluginRunningList ps : mProcess2PluginsMap.values()) {
             for (String p : ps) {
@@ -552,7 +997,7 @@ public class PluginManagerServer {
         return l;
     }
 
-    private boolean isPluginRunningLocked(String pluginName, String process) {
+    private boolean isPluginRunning(String pluginName, String process) {
         if (TextUtils.isEmpty(process)) {
             // 没有明确目标进程，只要找到了就返回
             for (PluginRunningList ps : mProcess2PluginsMap.values()) {
@@ -572,33 +1017,37 @@ public class PluginManagerServer {
         return false;
     }
 
-    private void syncRunningPluginsLocked(PluginRunningList list) {
+    private void syncRunningPlugins(PluginRunningList list) {
         // 复制一份List，这样无论是否为跨进程，都不会因客户端对List的修改而产生影响
         PluginRunningList newList = new PluginRunningList(list);
-        mProcess2PluginsMap.put(list.mProcessName, newList);
+        synchronized (LOCKER_RUNNING) {
+            mProcess2PluginsMap.put(list.mProcessName, newList);
+        }
 
         if (LogDebug.LOG) {
-            LogDebug.d(TAG, "syncRunningPluginsLocked: Synced! pl=" + list + "; map=" + mProcess2PluginsMap);
+            LogDebug.d(TAG, "syncRunningPlugins: Synced! pl=" + list + "; map=" + mProcess2PluginsMap);
         }
     }
 
-    private void addToRunningPluginsLocked(String processName, int pid, String pluginName) {
-        PluginRunningList l = mProcess2PluginsMap.get(processName);
-        if (l == null) {
-            l = new PluginRunningList();
+    private void addToRunningPlugins(String processName, int pid, String pluginName) {
+        PluginRunningList l;
+        synchronized (LOCKER_RUNNING) {
+            // 写时复制：读取方可能正在遍历旧的List，故不能直接修改
+            PluginRunningList old = mProcess2PluginsMap.get(processName);
+            l = old != null ? new PluginRunningList(old) : new PluginRunningList();
+
+            // 不管是从缓存中获取，还是新创建的，都应该重新“刷新”一下进程信息，再将其Add到表中
+            l.setProcessInfo(processName, pid);
+            l.add(pluginName);
             mProcess2PluginsMap.put(processName, l);
         }
 
-        // 不管是从缓存中获取，还是新创建的，都应该重新“刷新”一下进程信息，再将其Add到表中
-        l.setProcessInfo(processName, pid);
-        l.add(pluginName);
-
         if (LogDebug.LOG) {
-            LogDebug.d(TAG, "addToRunningPluginsLocked: Added! pl =" + l +"; map=" + mProcess2PluginsMap);
+            LogDebug.d(TAG, "addToRunningPlugins: Added! pl =" + l +"; map=" + mProcess2PluginsMap);
         }
     }
 
-    private String[] getRunningProcessesByPluginLocked(String pluginName) {
+    private String[] getRunningProcessesByPlugin(String pluginName) {
         ArrayList<String> l = new ArrayList<>();
         for (PluginRunningList prl : mProcess2PluginsMap.values()) {
             if (prl.isRunning(pluginName)) {
@@ -608,76 +1057,160 @@ public class PluginManagerServer {
         return l.toArray(new String[0]);
     }
 
+    private String[] predictPlugins(String processName, int max) {
+        PluginRunningList running = mProcess2PluginsMap.get(processName);
+        List<String> l = mUsageStats.predict(processName, running != null ? running.getList() : null, max);
+        return l.toArray(new String[0]);
+    }
+
+    /**
+     * 安装过程中的一个插件
+     */
+    /**
+     * 合成出的新APK
+     */
+    private static final class PatchedApk {
+
+        final File mFile;
+
+        // 合成时顺带算出的SHA-256
+        final byte[] mSha256;
+
+        PatchedApk(File file, byte[] sha256) {
+            mFile = file;
+            mSha256 = sha256;
+        }
+    }
+
+    private static final class InstallTask {
+
+        final String mPath;
+
+        final PackageInfo mPackageInfo;
+
+        final PluginInfo mInfo;
+
+        // 已安装的版本（“非Clone过的”），没有则为null
+        PluginInfo mCurrent;
+
+        // APK的SHA-256，读取失败时为null
+        byte[] mSha256;
+
+        InstallTask(String path, PackageInfo packageInfo, PluginInfo info) {
+            mPath = path;
+            mPackageInfo = packageInfo;
+            mInfo = info;
+        }
+    }
+
     private class Stub extends IPluginManagerServer.Stub {
 
         @Override
         public PluginInfo install(String path) throws RemoteException {
-            synchronized (LOCKER) {
+            mLock.readLock().lock();
+            try {
                 return PluginManagerServer.this.installLocked(path);
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public List<PluginInfo> installAll(List<String> paths) throws RemoteException {
+            mLock.readLock().lock();
+            try {
+                return PluginManagerServer.this.installAllLocked(paths);
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public PluginInfo installPatch(String pluginName, String patchPath) throws RemoteException {
+            mLock.readLock().lock();
+            try {
+                return PluginManagerServer.this.installPatchLocked(pluginName, patchPath);
+            } finally {
+                mLock.readLock().unlock();
             }
         }
 
         @Override
         public List<PluginInfo> load() throws RemoteException {
-            synchronized (LOCKER) {
+            mLock.writeLock().lock();
+            try {
                 return PluginManagerServer.this.loadLocked();
+            } finally {
+                mLock.writeLock().unlock();
             }
         }
 
         @Override
         public List<PluginInfo> updateAll() throws RemoteException {
-            synchronized (LOCKER) {
+            mLock.writeLock().lock();
+            try {
                 return PluginManagerServer.this.updateAllLocked();
+            } finally {
+                mLock.writeLock().unlock();
             }
         }
 
         @Override
         public void updateUsed(String pluginName, boolean used) throws RemoteException {
-            synchronized (LOCKER) {
+            mLock.readLock().lock();
+            try {
                 PluginManagerServer.this.updateUsedLocked(pluginName, used);
+            } finally {
+                mLock.readLock().unlock();
             }
         }
 
         @Override
         public boolean uninstall(PluginInfo info) throws RemoteException {
-            synchronized (LOCKER) {
+            mLock.readLock().lock();
+            try {
                 return PluginManagerServer.this.uninstallLocked(info);
+            } finally {
+                mLock.readLock().unlock();
             }
         }
 
+        // 以下和“正在运行的插件”有关的方法，不会被安装等耗时操作阻塞
+
         @Override
         public PluginRunningList getRunningPlugins() throws RemoteException {
-            synchronized (LOCKER) {
-                return PluginManagerServer.this.getRunningPluginsLocked();
-            }
+            return PluginManagerServer.this.getRunningPlugins();
         }
 
         @Override
         public boolean isPluginRunning(String pluginName, String process) throws RemoteException {
-            synchronized (LOCKER) {
-                return PluginManagerServer.this.isPluginRunningLocked(pluginName, process);
-            }
+            return PluginManagerServer.this.isPluginRunning(pluginName, process);
         }
 
         @Override
         public void syncRunningPlugins(PluginRunningList list) throws RemoteException {
-            synchronized (LOCKER) {
-                PluginManagerServer.this.syncRunningPluginsLocked(list);
-            }
+            PluginManagerServer.this.syncRunningPlugins(list);
         }
 
         @Override
         public void addToRunningPlugins(String processName, int pid, String pluginName) throws RemoteException {
-            synchronized (LOCKER) {
-                PluginManagerServer.this.addToRunningPluginsLocked(processName, pid, pluginName);
-            }
+            PluginManagerServer.this.addToRunningPlugins(processName, pid, pluginName);
         }
 
         @Override
         public String[] getRunningProcessesByPlugin(String pluginName) throws RemoteException {
-            synchronized (LOCKER) {
-                return PluginManagerServer.this.getRunningProcessesByPluginLocked(pluginName);
-            }
+            return PluginManagerServer.this.getRunningProcessesByPlugin(pluginName);
+        }
+
+        @Override
+        public void recordPluginLaunch(String processName, String pluginName) throws RemoteException {
+            // 统计数据自带锁，无需加锁
+            mUsageStats.record(processName, pluginName);
+        }
+
+        @Override
+        public String[] predictPlugins(String processName, int max) throws RemoteException {
+            return PluginManagerServer.this.predictPlugins(processName, max);
         }
     }
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.packages;
+
+import com.qihoo360.replugin.utils.CloseableUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 生成PluginPatcher所能合成的“增量包”，格式见PluginPatcher <p>
+ * 算法同rsync：以固定大小的块为单位，为旧APK建立“滚动哈希 -> 位置”的索引，再逐字节扫描新APK查找相同的块。 <p>
+ * 找到后向前、向后尽量扩展为OP_COPY；其后若只有少量字节不同（如Zip头中的偏移、CRC），则继续扩展为OP_ADD（同bsdiff）； <p>
+ * 其余的内容作为OP_INSERT <p>
+ * 注意：会将两个文件完整读入内存，供发布插件时（在PC或服务器上）使用，不要在手机上调用。纯Java实现，不依赖Android
+ *
+ * @author RePlugin Team
+ */
+class PluginPatchGenerator {
+
+    /**
+     * 匹配块的大小
+     */
+    private static final int BLOCK_SIZE = 32;
+
+    /**
+     * OP_ADD向后扩展时，最多允许“比目前最好的结果”多出的长度。超过即认为两边已不再相似
+     */
+    private static final int ADD_LOOKAHEAD = 64;
+
+    private static final int HASH_MULTIPLIER = 0x01000193;
+
+    /**
+     * 生成增量包
+     *
+     * @param base   旧APK（手机上已安装的版本）
+     * @param target 新APK
+     * @param out    增量包的输出位置
+     * @throws IOException 读写失败，或文件超过2G时抛出
+     */
+    static void generate(File base, File target, File out) throws IOException {
+        byte[] oldData = readFile(base);
+        byte[] newData = readFile(target);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        byte[] baseMd5 = digest.digest(oldData);
+        byte[] targetMd5 = digest.digest(newData);
+
+        DataOutputStream header = null;
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            header = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+            header.write(PluginPatcher.MAGIC);
+            header.writeLong(oldData.length);
+            header.write(baseMd5);
+            header.writeLong(newData.length);
+            header.write(targetMd5);
+
+            DeflaterOutputStream dos = new DeflaterOutputStream(header, deflater);
+            DataOutputStream ops = new DataOutputStream(new BufferedOutputStream(dos));
+            new Differ(oldData, newData, ops).run();
+            ops.writeByte(PluginPatcher.OP_END);
+            ops.flush();
+            dos.finish();
+            header.flush();
+        } finally {
+            CloseableUtils.closeQuietly(header);
+            deflater.end();
+        }
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + f);
+            }
+            byte[] data = new byte[(int) length];
+            raf.readFully(data);
+            return data;
+        } finally {
+            CloseableUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * 一次比较的状态
+     */
+    private static final class Differ {
+
+        private final byte[] mOld;
+
+        private final byte[] mNew;
+
+        private final DataOutputStream mOps;
+
+        /**
+         * 开放寻址的哈希表：块的哈希 -> 块在旧APK中的位置。位置存为“位置 + 1”，0表示空
+         */
+        private final int[] mHashes;
+
+        private final int[] mOffsets;
+
+        /**
+         * HASH_MULTIPLIER的(BLOCK_SIZE - 1)次方，用于滚动时移出最早的字节
+         */
+        private final int mOutFactor;
+
+        Differ(byte[] oldData, byte[] newData, DataOutputStream ops) {
+            mOld = oldData;
+            mNew = newData;
+            mOps = ops;
+
+            int blocks = oldData.length / BLOCK_SIZE;
+            int capacity = Integer.highestOneBit(Math.max(blocks, 1) * 2 + 1) << 1;
+            mHashes = new int[capacity];
+            mOffsets = new int[capacity];
+
+            int f = 1;
+            for (int i = 1; i < BLOCK_SIZE; i++) {
+                f *= HASH_MULTIPLIER;
+            }
+            mOutFactor = f;
+
+            for (int i = 0; i < blocks; i++) {
+                int offset = i * BLOCK_SIZE;
+                index(hash(oldData, offset), offset);
+            }
+        }
+
+        void run() throws IOException {
+            final int n = mNew.length;
+            int emitted = 0;
+            int i = 0;
+            int h = n >= BLOCK_SIZE ? hash(mNew, 0) : 0;
+            while (i + BLOCK_SIZE <= n) {
+                int offset = lookup(h, i);
+                if (offset < 0) {
+                    if (i + BLOCK_SIZE == n) {
+                        break;
+                    }
+                    h = (h - (mNew[i] & 0xff) * mOutFactor) * HASH_MULTIPLIER + (mNew[i + BLOCK_SIZE] & 0xff);
+                    i++;
+                    continue;
+                }
+
+                // 向前、向后扩展相同的部分
+                int oldStart = offset;
+                int newStart = i;
+                while (oldStart > 0 && newStart > emitted && mOld[oldStart - 1] == mNew[newStart - 1]) {
+                    oldStart--;
+                    newStart--;
+                }
+                int oldEnd = offset + BLOCK_SIZE;
+                int newEnd = i + BLOCK_SIZE;
+                while (oldEnd < mOld.length && newEnd < n && mOld[oldEnd] == mNew[newEnd]) {
+                    oldEnd++;
+                    newEnd++;
+                }
+                int addLength = measureAdd(oldEnd, newEnd);
+
+                writeInsert(emitted, newStart);
+                writeCopy(oldStart, newEnd - newStart);
+                if (addLength > 0) {
+                    writeAdd(oldEnd, newEnd, addLength);
+                }
+                emitted = newEnd + addLength;
+                i = emitted;
+                if (i + BLOCK_SIZE <= n) {
+                    h = hash(mNew, i);
+                }
+            }
+            writeInsert(emitted, n);
+        }
+
+        /**
+         * 从两边的指定位置开始，求“相同的字节数 * 2 - 长度”最大的长度，即值得用OP_ADD表示的长度
+         */
+        private int measureAdd(int oldPos, int newPos) {
+            int max = Math.min(mOld.length - oldPos, mNew.length - newPos);
+            int matches = 0;
+            int bestScore = 0;
+            int bestLength = 0;
+            for (int k = 0; k < max; k++) {
+                if (mOld[oldPos + k] == mNew[newPos + k]) {
+                    matches++;
+                }
+                int score = matches * 2 - (k + 1);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestLength = k + 1;
+                } else if (k + 1 - bestLength > ADD_LOOKAHEAD) {
+                    break;
+                }
+            }
+            return bestLength;
+        }
+
+        private void writeCopy(int oldPos, int length) throws IOException {
+            mOps.writeByte(PluginPatcher.OP_COPY);
+            mOps.writeLong(oldPos);
+            mOps.writeInt(length);
+        }
+
+        private void writeAdd(int oldPos, int newPos, int length) throws IOException {
+            mOps.writeByte(PluginPatcher.OP_ADD);
+            mOps.writeLong(oldPos);
+            mOps.writeInt(length);
+            for (int k = 0; k < length; k++) {
+                mOps.writeByte(mNew[newPos + k] - mOld[oldPos + k]);
+            }
+        }
+
+        private void writeInsert(int from, int to) throws IOException {
+            if (to <= from) {
+                return;
+            }
+            mOps.writeByte(PluginPatcher.OP_INSERT);
+            mOps.writeInt(to - from);
+            mOps.write(mNew, from, to - from);
+        }
+
+        private int hash(byte[] data, int offset) {
+            int h = 0;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                h = h * HASH_MULTIPLIER + (data[offset + i] & 0xff);
+            }
+            return h;
+        }
+
+        private void index(int h, int offset) {
+            int mask = mHashes.length - 1;
+            int slot = mix(h) & mask;
+            while (mOffsets[slot] != 0) {
+                if (mHashes[slot] == h) {
+                    // 哈希相同的块只记录第一个
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            mHashes[slot] = h;
+            mOffsets[slot] = offset + 1;
+        }
+
+        /**
+         * @return 和新APK中newPos处的块内容相同的、旧APK中块的位置；没有则返回-1
+         */
+        private int lookup(int h, int newPos) {
+            int mask = mHashes.length - 1;
+            int slot = mix(h) & mask;
+            while (mOffsets[slot] != 0) {
+                if (mHashes[slot] == h) {
+                    int offset = mOffsets[slot] - 1;
+                    return equals(offset, newPos) ? offset : -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean equals(int oldPos, int newPos) {
+            for (int k = 0; k < BLOCK_SIZE; k++) {
+                if (mOld[oldPos + k] != mNew[newPos + k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            return h;
+        }
+    }
+}
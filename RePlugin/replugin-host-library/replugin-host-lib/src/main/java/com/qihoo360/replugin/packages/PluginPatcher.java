@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.packages;
+
+import com.qihoo360.replugin.utils.CloseableUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 插件的“增量包”（Patch）合成器 <p>
+ * 根据“已安装的旧APK”和“增量包”，以流的方式合成出新APK，全程只需一块固定大小的缓冲区，无需将APK读入内存 <p>
+ * 增量包格式（大端）： <p>
+ * 1、文件头（不压缩）：MAGIC(8) + 旧APK长度(long) + 旧APK的MD5(16) + 新APK长度(long) + 新APK的MD5(16) <p>
+ * 2、指令流（Deflater压缩）：若干条指令，以OP_END结束 <p>
+ * OP_COPY：旧APK偏移(long) + 长度(int)，原样复制旧APK中的内容 <p>
+ * OP_ADD：旧APK偏移(long) + 长度(int) + 差值(长度个字节)，输出“旧内容 + 差值”（同bsdiff，适合只有少量字节变化的块） <p>
+ * OP_INSERT：长度(int) + 内容(长度个字节)，输出新的内容 <p>
+ * 合成前会校验旧APK的MD5，合成时会同时计算新APK的MD5，和文件头中的不一致则视为失败。签名的校验由安装流程负责 <p>
+ * 增量包由PluginPatchGenerator生成
+ *
+ * @author RePlugin Team
+ */
+final class PluginPatcher {
+
+    // 以下常量由PluginPatchGenerator共用
+    static final byte[] MAGIC = {'R', 'P', 'P', 'A', 'T', 'C', 'H', '2'};
+
+    static final int OP_END = 0;
+    static final int OP_COPY = 1;
+    static final int OP_ADD = 2;
+    static final int OP_INSERT = 3;
+
+    static final int MD5_LENGTH = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private PluginPatcher() {
+        // no instance
+    }
+
+    /**
+     * 读取增量包要求的旧APK长度。长度不同的肯定不是增量包所针对的版本，可据此避免计算MD5
+     *
+     * @return 旧APK的长度；若不是合法的增量包，则返回-1
+     */
+    static long readBaseLength(File patch) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(patch));
+            if (!readMagic(in)) {
+                return -1;
+            }
+            return in.readLong();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 读取增量包要求的旧APK的MD5，用来判断增量包是针对哪个版本的
+     *
+     * @return 旧APK的MD5；若不是合法的增量包，则返回null
+     */
+    static byte[] readBaseMd5(File patch) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(patch));
+            if (!readMagic(in)) {
+                return null;
+            }
+            in.readLong();
+            byte[] md5 = new byte[MD5_LENGTH];
+            in.readFully(md5);
+            return md5;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 根据旧APK和增量包，合成新APK
+     *
+     * @param base  旧APK
+     * @param patch 增量包
+     * @param out   新APK的输出位置。若合成失败，调用方负责删除
+     * @return 新APK的SHA-256（合成时顺带算出），供安装时的签名缓存和PluginBlobStore使用，无需再读一遍
+     * @throws IOException 增量包不合法、和旧APK不匹配（长度或MD5不同），或合成结果的MD5不一致时抛出
+     */
+    static byte[] apply(File base, File patch, File out) throws IOException {
+        MessageDigest digest;
+        MessageDigest sha256;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+
+        DataInputStream header = null;
+        DataInputStream ops = null;
+        Inflater inflater = null;
+        RandomAccessFile old = null;
+        FileOutputStream fos = null;
+        try {
+            header = new DataInputStream(new BufferedInputStream(new FileInputStream(patch), BUFFER_SIZE));
+            if (!readMagic(header)) {
+                throw new IOException("bad patch magic");
+            }
+            long baseLength = header.readLong();
+            byte[] baseMd5 = new byte[MD5_LENGTH];
+            header.readFully(baseMd5);
+            long targetLength = header.readLong();
+            byte[] targetMd5 = new byte[MD5_LENGTH];
+            header.readFully(targetMd5);
+
+            old = new RandomAccessFile(base, "r");
+            if (old.length() != baseLength) {
+                throw new IOException("base length mismatch: expected=" + baseLength + "; actual=" + old.length());
+            }
+            // 长度相同但内容不同（如同一版本号的另一个构建）时，合成出的APK必然是错的，须在合成前拒绝
+            byte[] buf = new byte[BUFFER_SIZE];
+            if (!Arrays.equals(baseMd5, md5Of(old, buf))) {
+                throw new IOException("base md5 mismatch: base=" + base);
+            }
+
+            inflater = new Inflater();
+            ops = new DataInputStream(new InflaterInputStream(header, inflater, BUFFER_SIZE));
+            fos = new FileOutputStream(out);
+            BufferedOutputStream os = new BufferedOutputStream(fos, BUFFER_SIZE);
+
+            byte[] delta = new byte[BUFFER_SIZE];
+            long written = 0;
+            int op;
+            while ((op = ops.readUnsignedByte()) != OP_END) {
+                long offset = 0;
+                int length;
+                if (op == OP_COPY || op == OP_ADD) {
+                    offset = ops.readLong();
+                    length = ops.readInt();
+                    if (offset < 0 || length < 0 || offset + length > baseLength) {
+                        throw new IOException("base range out of bounds: offset=" + offset + "; length=" + length);
+                    }
+                    old.seek(offset);
+                } else if (op == OP_INSERT) {
+                    length = ops.readInt();
+                    if (length < 0) {
+                        throw new IOException("bad insert length: " + length);
+                    }
+                } else {
+                    throw new IOException("bad patch op: " + op);
+                }
+                if (written + length > targetLength) {
+                    throw new IOException("target overrun: written=" + written + "; length=" + length);
+                }
+
+                int remaining = length;
+                while (remaining > 0) {
+                    int n = Math.min(remaining, BUFFER_SIZE);
+                    if (op == OP_INSERT) {
+                        ops.readFully(buf, 0, n);
+                    } else {
+                        old.readFully(buf, 0, n);
+                        if (op == OP_ADD) {
+                            ops.readFully(delta, 0, n);
+                            for (int i = 0; i < n; i++) {
+                                buf[i] += delta[i];
+                            }
+                        }
+                    }
+                    digest.update(buf, 0, n);
+                    sha256.update(buf, 0, n);
+                    os.write(buf, 0, n);
+                    remaining -= n;
+                }
+                written += length;
+            }
+
+            if (written != targetLength) {
+                throw new IOException("target length mismatch: expected=" + targetLength + "; actual=" + written);
+            }
+            if (!Arrays.equals(targetMd5, digest.digest())) {
+                throw new IOException("target md5 mismatch");
+            }
+            os.flush();
+            // 合成后的文件会被直接改名为正式APK，须确保已写入磁盘
+            fos.getFD().sync();
+            return sha256.digest();
+        } finally {
+            CloseableUtils.closeQuietly(ops);
+            CloseableUtils.closeQuietly(header);
+            CloseableUtils.closeQuietly(old);
+            CloseableUtils.closeQuietly(fos);
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static byte[] md5Of(RandomAccessFile f, byte[] buf) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        f.seek(0);
+        int n;
+        while ((n = f.read(buf)) > 0) {
+            digest.update(buf, 0, n);
+        }
+        return digest.digest();
+    }
+
+    private static boolean readMagic(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        return Arrays.equals(MAGIC, magic);
+    }
+}
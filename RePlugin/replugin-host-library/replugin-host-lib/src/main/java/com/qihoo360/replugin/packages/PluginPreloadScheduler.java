@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.packages;
+
+import android.text.TextUtils;
+
+import com.qihoo360.replugin.RePlugin;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件的异步预加载调度器 <p>
+ * 1、按“优先级”调度：优先级高的先执行，相同优先级则先进先出 <p>
+ * 2、同一插件的并发请求会被合并为同一个任务（返回同一个PreloadTask） <p>
+ * 3、前台打开某插件的Activity时，可将其排队中的预加载任务“提到最前” <p>
+ * 实际的预加载工作仍由RePlugin.preload完成
+ *
+ * @author RePlugin Team
+ * @see RePlugin#preloadAsync(String, int, PreloadCallback)
+ */
+
+public final class PluginPreloadScheduler {
+
+    private static final String TAG = "PluginPreloadScheduler";
+
+    /**
+     * 后台预加载（默认）
+     */
+    public static final int PRIORITY_BACKGROUND = 0;
+
+    /**
+     * 普通优先级
+     */
+    public static final int PRIORITY_NORMAL = 5;
+
+    /**
+     * 前台（如即将打开插件的Activity）
+     */
+    public static final int PRIORITY_FOREGROUND = 10;
+
+    /**
+     * 同时执行预加载的线程数
+     */
+    private static final int MAX_WORKERS = 2;
+
+    /**
+     * 工作线程空闲多久后退出（毫秒）
+     */
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    private static final byte[] LOCKER = new byte[0];
+
+    /**
+     * 插件名 -> 排队中或执行中的任务
+     */
+    private static final ConcurrentHashMap<String, PreloadTask> TASKS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static ThreadPoolExecutor sExecutor;
+
+    /**
+     * 预加载完成后的回调
+     */
+    public interface PreloadCallback {
+
+        /**
+         * 预加载结束（成功或失败）时回调。注意：运行在调度器的工作线程中 <p>
+         * 若任务被取消，则不会回调
+         *
+         * @param pluginName 插件名
+         * @param success    预加载是否成功
+         */
+        void onPreloadFinished(String pluginName, boolean success);
+    }
+
+    /**
+     * 预加载任务。可通过get等待结果，或通过cancel取消排队中的任务
+     */
+    public static final class PreloadTask extends FutureTask<Boolean> implements Comparable<PreloadTask> {
+
+        private final String mPluginName;
+
+        private final List<PreloadCallback> mCallbacks = new ArrayList<>();
+
+        private volatile int mPriority;
+
+        private volatile long mSequence;
+
+        private volatile boolean mStarted;
+
+        private PreloadTask(final String pluginName, int priority) {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return RePlugin.preload(pluginName);
+                }
+            });
+            mPluginName = pluginName;
+            mPriority = priority;
+            mSequence = SEQUENCE.incrementAndGet();
+        }
+
+        /**
+         * @return 插件名
+         */
+        public String getPluginName() {
+            return mPluginName;
+        }
+
+        /**
+         * @return 当前优先级
+         */
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void run() {
+            mStarted = true;
+            super.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean rc = super.cancel(mayInterruptIfRunning);
+            if (rc) {
+                // 仍在排队中？直接从队列中移除，避免占用工作线程
+                ThreadPoolExecutor executor = sExecutor;
+                if (executor != null) {
+                    executor.remove(this);
+                }
+            }
+            return rc;
+        }
+
+        @Override
+        protected void done() {
+            TASKS.remove(mPluginName, this);
+            if (isCancelled()) {
+                return;
+            }
+            boolean success = false;
+            try {
+                success = get();
+            } catch (Throwable e) {
+                if (LOGR) {
+                    LogRelease.e(PLUGIN_TAG, "pps.d: " + mPluginName, e);
+                }
+            }
+            if (LogDebug.LOG) {
+                LogDebug.d(TAG, "done: pn=" + mPluginName + "; rc=" + success);
+            }
+            List<PreloadCallback> callbacks;
+            synchronized (mCallbacks) {
+                callbacks = new ArrayList<>(mCallbacks);
+                mCallbacks.clear();
+            }
+            for (PreloadCallback cb : callbacks) {
+                try {
+                    cb.onPreloadFinished(mPluginName, success);
+                } catch (Throwable e) {
+                    if (LOGR) {
+                        LogRelease.e(PLUGIN_TAG, "pps.cb: " + mPluginName, e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(PreloadTask another) {
+            // 优先级高的排前面；相同优先级则按提交顺序
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        /**
+         * 添加回调。若任务已结束（如恰好在此期间完成），则返回false
+         */
+        private boolean addCallback(PreloadCallback cb) {
+            if (cb == null) {
+                return true;
+            }
+            synchronized (mCallbacks) {
+                if (isDone()) {
+                    return false;
+                }
+                mCallbacks.add(cb);
+                return true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "PreloadTask{pn=" + mPluginName + ", pri=" + mPriority + ", seq=" + mSequence + ", started=" + mStarted + "}";
+        }
+    }
+
+    private PluginPreloadScheduler() {
+        // no instance
+    }
+
+    /**
+     * 提交一个预加载请求。若该插件已有排队中或执行中的任务，则直接返回该任务，并在需要时提升其优先级
+     *
+     * @param pluginName 插件名
+     * @param priority   优先级，见PRIORITY_XXX
+     * @param cb         回调，可为null
+     * @return 预加载任务，可用来等待结果或取消
+     */
+    public static PreloadTask submit(String pluginName, int priority, PreloadCallback cb) {
+        if (TextUtils.isEmpty(pluginName)) {
+            throw new IllegalArgumentException();
+        }
+        while (true) {
+            PreloadTask task = TASKS.get(pluginName);
+            if (task == null) {
+                PreloadTask nt = new PreloadTask(pluginName, priority);
+                nt.addCallback(cb);
+                task = TASKS.putIfAbsent(pluginName, nt);
+                if (task == null) {
+                    if (LogDebug.LOG) {
+                        LogDebug.d(TAG, "submit: new task. " + nt);
+                    }
+                    getExecutor().execute(nt);
+                    return nt;
+                }
+            }
+            // 已有相同插件的任务，合并之
+            if (task.addCallback(cb)) {
+                if (priority > task.mPriority) {
+                    reschedule(task, priority);
+                }
+                if (LogDebug.LOG) {
+                    LogDebug.d(TAG, "submit: merged into " + task);
+                }
+                return task;
+            }
+            // 任务刚好结束，重新提交一个
+        }
+    }
+
+    /**
+     * 将某插件排队中的预加载任务提到最前（如前台即将打开其Activity时）
+     *
+     * @param pluginName 插件名
+     * @return 是否有排队中的任务被提前
+     */
+    public static boolean promote(String pluginName) {
+        if (TextUtils.isEmpty(pluginName)) {
+            return false;
+        }
+        PreloadTask task = TASKS.get(pluginName);
+        if (task == null || task.mStarted) {
+            return false;
+        }
+        return reschedule(task, PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * 取消某插件排队中的预加载任务。已开始执行的任务不会被打断
+     *
+     * @param pluginName 插件名
+     * @return 是否取消成功
+     */
+    public static boolean cancel(String pluginName) {
+        PreloadTask task = TASKS.get(pluginName);
+        return task != null && !task.mStarted && task.cancel(false);
+    }
+
+    private static boolean reschedule(PreloadTask task, int priority) {
+        ThreadPoolExecutor executor = getExecutor();
+        synchronized (LOCKER) {
+            // 优先级队列不会因字段变化而重排，必须先移出再放回
+            if (!executor.remove(task)) {
+                // 已开始执行或已结束
+                return false;
+            }
+            task.mPriority = priority;
+            task.mSequence = SEQUENCE.incrementAndGet();
+            executor.execute(task);
+        }
+        if (LogDebug.LOG) {
+            LogDebug.d(TAG, "reschedule: " + task);
+        }
+        return true;
+    }
+
+    private static ThreadPoolExecutor getExecutor() {
+        synchronized (LOCKER) {
+            if (sExecutor == null) {
+                sExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                        new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mIndex = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "replugin-preload-" + mIndex.incrementAndGet());
+                    }
+                });
+                sExecutor.allowCoreThreadTimeOut(true);
+            }
+            return sExecutor;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.packages;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.text.TextUtils;
+
+import com.qihoo360.mobilesafe.api.Tasks;
+import com.qihoo360.replugin.RePlugin;
+import com.qihoo360.replugin.RePluginInternal;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件的“预测式预热” <p>
+ * 1、插件在某进程中被启动（LOAD_APP）时，通知常驻进程记录下来（见PluginUsageStats） <p>
+ * 2、进程启动后，待主线程空闲时，向常驻进程获取“接下来可能用到的插件”，并在后台线程中提前加载： <p>
+ * 可能性最高的加载到LOAD_DEX（Resources + ClassLoader），其余只加载到LOAD_RESOURCES <p>
+ * 加载结果会放入插件产物缓存中，真正打开插件时即可直接命中 <p>
+ * 注意：和preload一样，预热后插件即被视为“已运行”，若再次升级，须重启该进程后才生效
+ *
+ * @author RePlugin Team
+ * @see com.qihoo360.replugin.RePluginConfig#setPredictivePrewarm(boolean)
+ */
+public final class PluginPrewarmer {
+
+    private static final String TAG = "PluginPrewarmer";
+
+    /**
+     * 最多预热几个插件
+     */
+    private static final int MAX_PREDICTIONS = 3;
+
+    /**
+     * 可能性最高的前几个插件加载到LOAD_DEX，其余只加载到LOAD_RESOURCES
+     */
+    private static final int DEX_COUNT = 1;
+
+    /**
+     * 进程启动后，至少等待多久（毫秒）再去等待“空闲”，避免和启动过程抢占资源
+     */
+    private static final long START_DELAY = 3000;
+
+    private static final AtomicBoolean sScheduled = new AtomicBoolean();
+
+    /**
+     * 已预热、但尚未被真正使用的插件
+     */
+    private static final HashSet<String> sPrewarmed = new HashSet<>();
+
+    /**
+     * 本进程内已启动过的插件。每个进程只记录一次，相当于一次“会话”
+     */
+    private static final HashSet<String> sLaunched = new HashSet<>();
+
+    private static int sPrewarmCount;
+
+    private static int sHitCount;
+
+    private PluginPrewarmer() {
+        // no instance
+    }
+
+    /**
+     * 在主线程空闲时执行预热。须在主线程中调用（通常在Application.onCreate之后）
+     */
+    public static void scheduleOnIdle() {
+        if (!RePlugin.getConfig().isPredictivePrewarm()) {
+            return;
+        }
+        if (!sScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Tasks.postDelayed2UI(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        startPrewarmThread();
+                        // 只执行一次
+                        return false;
+                    }
+                });
+            }
+        }, START_DELAY);
+    }
+
+    /**
+     * 插件在当前进程中被启动（LOAD_APP）时调用。未开启预热时不做记录
+     *
+     * @param pluginName 插件名
+     */
+    public static void onPluginLaunched(String pluginName) {
+        if (TextUtils.isEmpty(pluginName) || !RePlugin.getConfig().isPredictivePrewarm()) {
+            return;
+        }
+        boolean hit;
+        synchronized (sLaunched) {
+            if (!sLaunched.add(pluginName)) {
+                return;
+            }
+            hit = sPrewarmed.remove(pluginName);
+            if (hit) {
+                sHitCount++;
+            }
+        }
+        PluginManagerProxy.recordPluginLaunchNoThrows(pluginName);
+        if (hit && LOGR) {
+            LogRelease.i(PLUGIN_TAG, "ppw.hit: pn=" + pluginName + "; hit=" + getHitCount() + "/" + getPrewarmCount());
+        }
+    }
+
+    /**
+     * @return 本进程预热过的插件数
+     */
+    public static int getPrewarmCount() {
+        synchronized (sLaunched) {
+            return sPrewarmCount;
+        }
+    }
+
+    /**
+     * @return 预热后被真正使用的插件数。和getPrewarmCount的比值即为“命中率”
+     */
+    public static int getHitCount() {
+        synchronized (sLaunched) {
+            return sHitCount;
+        }
+    }
+
+    private static void startPrewarmThread() {
+        Thread t = new Thread("replugin-prewarm") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                prewarm();
+            }
+        };
+        t.start();
+    }
+
+    private static void prewarm() {
+        if (isLowMemory()) {
+            if (LogDebug.LOG) {
+                LogDebug.d(TAG, "prewarm: low memory, skip");
+            }
+            return;
+        }
+        String[] names = PluginManagerProxy.predictPluginsNoThrows(MAX_PREDICTIONS);
+        if (LogDebug.LOG) {
+            LogDebug.d(TAG, "prewarm: predicted=" + Arrays.toString(names));
+        }
+        for (int i = 0; i < names.length; i++) {
+            String pn = names[i];
+            synchronized (sLaunched) {
+                if (sLaunched.contains(pn)) {
+                    // 在预热之前就已被打开了
+                    continue;
+                }
+            }
+            if (!RePlugin.isPluginInstalled(pn)) {
+                continue;
+            }
+            long begin = System.currentTimeMillis();
+            boolean rc;
+            try {
+                if (i < DEX_COUNT) {
+                    rc = RePlugin.fetchClassLoader(pn) != null;
+                } else {
+                    rc = RePlugin.fetchResources(pn) != null;
+                }
+            } catch (Throwable e) {
+                rc = false;
+                if (LOGR) {
+                    LogRelease.e(PLUGIN_TAG, "ppw.p: pn=" + pn, e);
+                }
+            }
+            if (rc) {
+                synchronized (sLaunched) {
+                    if (!sLaunched.contains(pn)) {
+                        sPrewarmed.add(pn);
+                        sPrewarmCount++;
+                    }
+                }
+            }
+            if (LOGR) {
+                LogRelease.i(PLUGIN_TAG, "ppw.p: pn=" + pn + "; dex=" + (i < DEX_COUNT) + "; rc=" + rc + "; cost=" + (System.currentTimeMillis() - begin));
+            }
+        }
+    }
+
+    private static boolean isLowMemory() {
+        try {
+            ActivityManager am = (ActivityManager) RePluginInternal.getAppContext().getSystemService(Context.ACTIVITY_SERVICE);
+            ActivityManager.MemoryInfo mi = new ActivityManager.MemoryInfo();
+            am.getMemoryInfo(mi);
+            return mi.lowMemory;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
@@ -60,6 +60,12 @@ public class PluginRunningList implements Parcelable, Iterable<String>, Cloneabl
         }
     }
 
+    void remove(String s) {
+        synchronized (this) {
+            mList.remove(s);
+        }
+    }
+
     boolean isRunning(String pluginName) {
         return mList.contains(pluginName);
     }
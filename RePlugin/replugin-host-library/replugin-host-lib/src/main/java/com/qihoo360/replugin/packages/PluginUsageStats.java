@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.packages;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.qihoo360.loader2.Constant;
+import com.qihoo360.mobilesafe.api.Tasks;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.helper.LogRelease;
+import com.qihoo360.replugin.utils.Charsets;
+import com.qihoo360.replugin.utils.FileUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.qihoo360.replugin.helper.LogDebug.PLUGIN_TAG;
+import static com.qihoo360.replugin.helper.LogRelease.LOGR;
+
+/**
+ * 插件的使用统计（运行在常驻进程中），用来预测“各进程接下来可能用到的插件” <p>
+ * 按进程分别记录： <p>
+ * 1、每个插件在一天中各小时被启动的次数 <p>
+ * 2、启动顺序，即“启动了A之后，接着启动了B”的次数 <p>
+ * 数据会延迟写入到文件中，常驻进程重启后仍可使用
+ *
+ * @author RePlugin Team
+ * @see PluginPrewarmer
+ */
+class PluginUsageStats {
+
+    private static final String TAG = "PluginUsageStats";
+
+    private static final int VERSION = 1;
+
+    private static final int HOURS = 24;
+
+    /**
+     * 某进程的启动记录少于此值时，不做预测
+     */
+    private static final int MIN_SAMPLES = 5;
+
+    /**
+     * 预测得分（0~1）低于此值的插件不返回
+     */
+    private static final float MIN_SCORE = 0.15f;
+
+    /**
+     * “时间段”和“启动顺序”在得分中的权重
+     */
+    private static final float HOUR_WEIGHT = 0.6f;
+    private static final float SEQUENCE_WEIGHT = 0.4f;
+
+    /**
+     * 单项计数超过此值时，所有计数减半。既防止溢出，也让近期的使用习惯占更大比重
+     */
+    private static final int MAX_COUNT = 1000;
+
+    /**
+     * 记录后延迟多久写入文件（毫秒），以合并短时间内的多次启动
+     */
+    private static final long SAVE_DELAY = 10 * 1000;
+
+    private final Context mContext;
+
+    /**
+     * 进程名 -> 该进程的统计数据
+     */
+    private final HashMap<String, ProcessStats> mProcesses = new HashMap<>();
+
+    private boolean mLoaded;
+
+    private boolean mSavePending;
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    private static final class ProcessStats {
+
+        /**
+         * 插件名 -> 各小时的启动次数
+         */
+        final HashMap<String, int[]> mHours = new HashMap<>();
+
+        /**
+         * 插件名 -> （下一个启动的插件名 -> 次数）
+         */
+        final HashMap<String, HashMap<String, Integer>> mNext = new HashMap<>();
+
+        /**
+         * 最近一次启动的插件
+         */
+        String mLast;
+
+        int mTotal;
+    }
+
+    PluginUsageStats(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * 记录插件在某进程中被启动了一次
+     *
+     * @param processName 进程名
+     * @param pluginName  插件名
+     */
+    synchronized void record(String processName, String pluginName) {
+        if (TextUtils.isEmpty(processName) || TextUtils.isEmpty(pluginName)) {
+            return;
+        }
+        loadIfNeeded();
+
+        ProcessStats ps = mProcesses.get(processName);
+        if (ps == null) {
+            ps = new ProcessStats();
+            mProcesses.put(processName, ps);
+        }
+
+        int[] hours = ps.mHours.get(pluginName);
+        if (hours == null) {
+            hours = new int[HOURS];
+            ps.mHours.put(pluginName, hours);
+        }
+        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        hours[hour]++;
+        ps.mTotal++;
+
+        if (ps.mLast != null && !TextUtils.equals(ps.mLast, pluginName)) {
+            HashMap<String, Integer> next = ps.mNext.get(ps.mLast);
+            if (next == null) {
+                next = new HashMap<>();
+                ps.mNext.put(ps.mLast, next);
+            }
+            Integer c = next.get(pluginName);
+            next.put(pluginName, c == null ? 1 : c + 1);
+        }
+        ps.mLast = pluginName;
+
+        if (hours[hour] > MAX_COUNT) {
+            halve(ps);
+        }
+
+        if (LogDebug.LOG) {
+            LogDebug.d(TAG, "record: process=" + processName + "; pn=" + pluginName + "; hour=" + hour + "; total=" + ps.mTotal);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * 预测某进程接下来可能用到的插件
+     *
+     * @param processName 进程名
+     * @param exclude     要排除的插件（如已在该进程中运行的），可为null
+     * @param max         最多返回几个
+     * @return 插件名列表，按可能性从高到低排列。一定不会为Null
+     */
+    synchronized List<String> predict(String processName, Collection<String> exclude, int max) {
+        List<String> result = new ArrayList<>();
+        if (TextUtils.isEmpty(processName) || max <= 0) {
+            return result;
+        }
+        loadIfNeeded();
+
+        ProcessStats ps = mProcesses.get(processName);
+        if (ps == null || ps.mTotal < MIN_SAMPLES) {
+            return result;
+        }
+
+        // 1. 时间段得分：当前小时计1，相邻小时各计0.5，再按该时间段内的总数归一化
+        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        final HashMap<String, Float> scores = new HashMap<>();
+        float hourSum = 0;
+        for (Map.Entry<String, int[]> e : ps.mHours.entrySet()) {
+            int[] h = e.getValue();
+            float s = h[hour] + 0.5f * (h[(hour + HOURS - 1) % HOURS] + h[(hour + 1) % HOURS]);
+            if (s > 0) {
+                scores.put(e.getKey(), s);
+                hourSum += s;
+            }
+        }
+        if (hourSum > 0) {
+            for (Map.Entry<String, Float> e : scores.entrySet()) {
+                e.setValue(HOUR_WEIGHT * e.getValue() / hourSum);
+            }
+        }
+
+        // 2. 启动顺序得分：上次启动的插件之后，各插件被接着启动的比例
+        HashMap<String, Integer> next = ps.mLast != null ? ps.mNext.get(ps.mLast) : null;
+        if (next != null) {
+            int nextSum = 0;
+            for (Integer c : next.values()) {
+                nextSum += c;
+            }
+            for (Map.Entry<String, Integer> e : next.entrySet()) {
+                Float s = scores.get(e.getKey());
+                float add = SEQUENCE_WEIGHT * e.getValue() / nextSum;
+                scores.put(e.getKey(), s == null ? add : s + add);
+            }
+        }
+
+        // 3. 过滤、排序
+        for (Map.Entry<String, Float> e : scores.entrySet()) {
+            if (e.getValue() >= MIN_SCORE && (exclude == null || !exclude.contains(e.getKey()))) {
+                result.add(e.getKey());
+            }
+        }
+        Collections.sort(result, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return Float.compare(scores.get(rhs), scores.get(lhs));
+            }
+        });
+        if (result.size() > max) {
+            result = new ArrayList<>(result.subList(0, max));
+        }
+
+        if (LogDebug.LOG) {
+            LogDebug.d(TAG, "predict: process=" + processName + "; hour=" + hour + "; last=" + ps.mLast + "; scores=" + scores + "; result=" + result);
+        }
+        return result;
+    }
+
+    /**
+     * 删除某插件的所有记录（如插件被卸载时）
+     */
+    synchronized void remove(String pluginName) {
+        loadIfNeeded();
+        for (ProcessStats ps : mProcesses.values()) {
+            int[] hours = ps.mHours.remove(pluginName);
+            if (hours != null) {
+                for (int c : hours) {
+                    ps.mTotal -= c;
+                }
+            }
+            ps.mNext.remove(pluginName);
+            for (HashMap<String, Integer> next : ps.mNext.values()) {
+                next.remove(pluginName);
+            }
+            if (TextUtils.equals(ps.mLast, pluginName)) {
+                ps.mLast = null;
+            }
+        }
+        scheduleSave();
+    }
+
+    private void halve(ProcessStats ps) {
+        ps.mTotal = 0;
+        for (int[] hours : ps.mHours.values()) {
+            for (int i = 0; i < HOURS; i++) {
+                hours[i] /= 2;
+                ps.mTotal += hours[i];
+            }
+        }
+        for (HashMap<String, Integer> next : ps.mNext.values()) {
+            Iterator<Map.Entry<String, Integer>> it = next.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Integer> e = it.next();
+                if (e.getValue() <= 1) {
+                    it.remove();
+                } else {
+                    e.setValue(e.getValue() / 2);
+                }
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        if (mSavePending) {
+            return;
+        }
+        mSavePending = true;
+        Tasks.postDelayed2Thread(mSaveRunnable, SAVE_DELAY);
+    }
+
+    private void save() {
+        String json;
+        synchronized (this) {
+            mSavePending = false;
+            try {
+                json = toJson().toString();
+            } catch (JSONException e) {
+                if (LOGR) {
+                    LogRelease.e(PLUGIN_TAG, "pus.s: " + e.getMessage(), e);
+                }
+                return;
+            }
+        }
+        try {
+            FileUtils.writeStringToFile(getFile(), json, Charsets.UTF_8);
+        } catch (Throwable e) {
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pus.w: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File f = getFile();
+        if (!f.exists()) {
+            return;
+        }
+        try {
+            fromJson(new JSONObject(FileUtils.readFileToString(f, Charsets.UTF_8)));
+        } catch (Throwable e) {
+            // 文件损坏，重新统计即可
+            mProcesses.clear();
+            if (LOGR) {
+                LogRelease.e(PLUGIN_TAG, "pus.l: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONObject root = new JSONObject();
+        root.put("ver", VERSION);
+        JSONObject procs = new JSONObject();
+        for (Map.Entry<String, ProcessStats> pe : mProcesses.entrySet()) {
+            ProcessStats ps = pe.getValue();
+            JSONObject jps = new JSONObject();
+            if (ps.mLast != null) {
+                jps.put("last", ps.mLast);
+            }
+            JSONObject hours = new JSONObject();
+            for (Map.Entry<String, int[]> e : ps.mHours.entrySet()) {
+                JSONArray arr = new JSONArray();
+                for (int c : e.getValue()) {
+                    arr.put(c);
+                }
+                hours.put(e.getKey(), arr);
+            }
+            jps.put("hours", hours);
+            JSONObject next = new JSONObject();
+            for (Map.Entry<String, HashMap<String, Integer>> e : ps.mNext.entrySet()) {
+                next.put(e.getKey(), new JSONObject(e.getValue()));
+            }
+            jps.put("next", next);
+            procs.put(pe.getKey(), jps);
+        }
+        root.put("procs", procs);
+        return root;
+    }
+
+    private void fromJson(JSONObject root) throws JSONException {
+        if (root.optInt("ver") != VERSION) {
+            return;
+        }
+        JSONObject procs = root.getJSONObject("procs");
+        Iterator<String> pit = procs.keys();
+        while (pit.hasNext()) {
+            String process = pit.next();
+            JSONObject jps = procs.getJSONObject(process);
+            ProcessStats ps = new ProcessStats();
+            ps.mLast = jps.optString("last", null);
+
+            JSONObject hours = jps.getJSONObject("hours");
+            Iterator<String> hit = hours.keys();
+            while (hit.hasNext()) {
+                String pn = hit.next();
+                JSONArray arr = hours.getJSONArray(pn);
+                int[] h = new int[HOURS];
+                for (int i = 0; i < HOURS && i < arr.length(); i++) {
+                    h[i] = arr.getInt(i);
+                    ps.mTotal += h[i];
+                }
+                ps.mHours.put(pn, h);
+            }
+
+            JSONObject next = jps.getJSONObject("next");
+            Iterator<String> nit = next.keys();
+            while (nit.hasNext()) {
+                String pn = nit.next();
+                JSONObject jn = next.getJSONObject(pn);
+                HashMap<String, Integer> m = new HashMap<>();
+                Iterator<String> it = jn.keys();
+                while (it.hasNext()) {
+                    String to = it.next();
+                    m.put(to, jn.getInt(to));
+                }
+                ps.mNext.put(pn, m);
+            }
+            mProcesses.put(process, ps);
+        }
+    }
+
+    private File getFile() {
+        final File d = mContext.getDir(Constant.LOCAL_PLUGIN_APK_SUB_DIR, 0);
+        return new File(d, "p_usage.json");
+    }
+}
@@ -69,6 +69,11 @@ public class FileUtils {
      */
     private static final long FILE_COPY_BUFFER_SIZE = ONE_MB * 30;
 
+    /**
+     * 覆盖已有文件时所用临时文件的后缀
+     */
+    private static final String REPLACE_TMP_SUFFIX = ".replace.tmp";
+
     //-----------------------------------------------------------------------
     /**
      * Opens a {@link FileInputStream} for the specified file, providing better
@@ -476,9 +481,7 @@ public class FileUtils {
                 throw new IOException("Destination '" + parentFile + "' directory cannot be created");
             }
         }
-        if (destFile.exists() && destFile.canWrite() == false) {
-            throw new IOException("Destination '" + destFile + "' exists but is read-only");
-        }
+        // 目标已存在时会被“整体替换”而非原地改写，故只读的目标也可以覆盖，见doCopyFile
         doCopyFile(srcFile, destFile, preserveFileDate);
     }
 
@@ -498,6 +501,9 @@ public class FileUtils {
      * copy completes
      * @throws IllegalArgumentException "Negative size" if the file is truncated so that the size is less than the
      * position
+     * <p>
+     * 注意：内容先写入同目录下的临时文件，再改名替换destFile，不会原地改写已存在的destFile。 <p>
+     * 插件的APK、SO可能和其它插件共用同一个inode（见PluginBlobStore），也可能正被其它进程映射，原地改写会破坏它们
      */
     private static void doCopyFile(final File srcFile, final File destFile, final boolean preserveFileDate)
             throws IOException {
@@ -505,13 +511,15 @@ public class FileUtils {
             throw new IOException("Destination '" + destFile + "' exists but is a directory");
         }
 
+        final File tmpFile = getReplaceTempFile(destFile);
         FileInputStream fis = null;
         FileOutputStream fos = null;
         FileChannel input = null;
         FileChannel output = null;
+        boolean copied = false;
         try {
             fis = new FileInputStream(srcFile);
-            fos = new FileOutputStream(destFile);
+            fos = new FileOutputStream(tmpFile);
             input = fis.getChannel();
             output = fos.getChannel();
             final long size = input.size(); // TODO See IO-386
@@ -526,18 +534,43 @@ public class FileUtils {
                 }
                 pos += bytesCopied;
             }
+            copied = true;
         } finally {
             CloseableUtils.closeQuietly(output, fos, input, fis);
+            if (!copied) {
+                deleteQuietly(tmpFile);
+            }
         }
 
         final long srcLen = srcFile.length(); // TODO See IO-386
-        final long dstLen = destFile.length(); // TODO See IO-386
+        final long dstLen = tmpFile.length(); // TODO See IO-386
         if (srcLen != dstLen) {
+            deleteQuietly(tmpFile);
             throw new IOException("Failed to copy full contents from '" +
                     srcFile + "' to '" + destFile + "' Expected length: " + srcLen + " Actual: " + dstLen);
         }
         if (preserveFileDate) {
-            destFile.setLastModified(srcFile.lastModified());
+            tmpFile.setLastModified(srcFile.lastModified());
+        }
+        replaceWith(tmpFile, destFile);
+    }
+
+    /**
+     * 获取用于“整体替换”destFile的临时文件（和destFile位于同一目录，这样改名才是原子的）
+     */
+    private static File getReplaceTempFile(final File destFile) {
+        File tmpFile = new File(destFile.getParentFile(), destFile.getName() + REPLACE_TMP_SUFFIX);
+        deleteQuietly(tmpFile);
+        return tmpFile;
+    }
+
+    /**
+     * 将tmpFile改名为destFile。已打开（或映射）旧destFile的进程仍能读到完整的旧内容
+     */
+    private static void replaceWith(final File tmpFile, final File destFile) throws IOException {
+        if (!tmpFile.renameTo(destFile)) {
+            deleteQuietly(tmpFile);
+            throw new IOException("Failed to rename '" + tmpFile + "' to '" + destFile + "'");
         }
     }
 
@@ -600,13 +633,25 @@ public class FileUtils {
      * @throws IOException if an IO error occurs during copying
      */
     public static void copyToFile(final InputStream source, final File destination) throws IOException {
-        final FileOutputStream output = openOutputStream(destination);
+        if (destination.exists() && destination.isDirectory()) {
+            throw new IOException("File '" + destination + "' exists but is a directory");
+        }
+        // 同doCopyFile，不原地改写已存在的destination
+        forceMkdirParent(destination);
+        final File tmpFile = getReplaceTempFile(destination);
+        final FileOutputStream output = openOutputStream(tmpFile);
+        boolean copied = false;
         try {
             IOUtils.copy(source, output);
             output.close(); // don't swallow close Exception if copy completes normally
+            copied = true;
         } finally {
             CloseableUtils.closeQuietly(output);
+            if (!copied) {
+                deleteQuietly(tmpFile);
+            }
         }
+        replaceWith(tmpFile, destination);
     }
 
     /**
@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
@@ -32,6 +33,8 @@ import java.security.NoSuchAlgorithmException;
 
 public class SecurityUtil {
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     /** 计算给定 byte [] 串的 MD5 */
     public static byte[] MD5(byte[] input) {
         MessageDigest md = null;
@@ -146,6 +149,71 @@ public class SecurityUtil {
         return null;
     }
 
+    /** 计算文件 SHA-256，返回 byte []. 如果文件不存在或读取失败，返回 null. */
+    public static byte[] SHA256(File file) {
+        InputStream in = null;
+        try {
+            in = FileUtils.openInputStream(file);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte buffer[] = new byte[COPY_BUFFER_SIZE];
+            int rc;
+            while ((rc = in.read(buffer)) >= 0) {
+                if (rc > 0) {
+                    digest.update(buffer, 0, rc);
+                }
+            }
+            return digest.digest();
+        } catch (Exception e) {
+            //ignore
+        } finally {
+            CloseableUtils.closeQuietly(in);
+        }
+
+        return null;
+    }
+
+    /**
+     * 将src从当前位置起的length个字节写入dest，同时计算这部分内容的MD5。这样只需读一遍，无需写完后再读一遍来校验
+     *
+     * @return 所写内容的MD5；若src中不足length个字节，则立即返回null
+     */
+    public static byte[] copyAndMD5(FileChannel src, FileChannel dest, long length) throws NoSuchAlgorithmException, IOException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        return copyAndDigest(src, dest, length, digest) ? digest.digest() : null;
+    }
+
+    /**
+     * 将src从当前位置起的length个字节写入dest，同时用digests计算这部分内容的摘要（如MD5用于校验、SHA-256用于签名缓存）。这样只需读一遍
+     *
+     * @param digests 要计算的摘要，调用方在返回true后调用其digest()取结果
+     * @return 是否写够了length个字节；若src中不足length个字节，则立即返回false
+     */
+    public static boolean copyAndDigest(FileChannel src, FileChannel dest, long length, MessageDigest... digests) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            int rc = src.read(buffer);
+            if (rc < 0) {
+                return false;
+            }
+            buffer.flip();
+            for (MessageDigest digest : digests) {
+                buffer.rewind();
+                digest.update(buffer);
+            }
+            buffer.rewind();
+            while (buffer.hasRemaining()) {
+                dest.write(buffer);
+            }
+            remaining -= rc;
+        }
+        return true;
+    }
+
     public static final byte[] MD5(InputStream in) throws NoSuchAlgorithmException, IOException {
         MessageDigest digest = MessageDigest.getInstance("MD5");
         byte buffer[] = new byte[4096];
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.utils.pkg;
+
+import com.qihoo360.mobilesafe.api.Tasks;
+import com.qihoo360.replugin.ext.parser.MappedZip;
+import com.qihoo360.replugin.helper.LogDebug;
+import com.qihoo360.replugin.utils.CloseableUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.zip.ZipFile;
+
+import static com.qihoo360.replugin.helper.LogDebug.LOG;
+
+/**
+ * 进程内共享的APK句柄，带引用计数 <p>
+ * 安装和首次加载时，同一个APK会先后被释放SO、释放额外的Dex、生成类名索引、解析Manifest等多处打开， <p>
+ * 每次都新建ZipFile就要重新解析一遍中央目录。这里让它们共用同一个ZipFile和同一份内存映射（MappedZip） <p>
+ * 1、用acquire获取，用完后必须调用release（或close） <p>
+ * 2、最后一个使用者释放后，句柄会再保留一段时间（IDLE_TIMEOUT_MS），以便紧接着的下一步直接复用，之后自动关闭 <p>
+ * 3、APK被替换（大小或修改时间变化）后，acquire会打开新的句柄，旧句柄在其使用者都释放后立即关闭 <p>
+ * ZipFile.getInputStream可在多个线程中同时调用；MappedZip则须通过newMappedZip为每个使用者创建各自的读取器
+ *
+ * @author RePlugin Team
+ */
+public final class ApkHandle implements Closeable {
+
+    private static final String TAG = "ApkHandle";
+
+    private static final long IDLE_TIMEOUT_MS = 10 * 1000;
+
+    private static final byte[] LOCKER = new byte[0];
+
+    /**
+     * APK路径 -> 当前有效的句柄
+     */
+    private static final HashMap<String, ApkHandle> HANDLES = new HashMap<>();
+
+    private final File mFile;
+
+    private final String mKey;
+
+    private final long mLength;
+
+    private final long mLastModified;
+
+    private final Runnable mIdleTask = new Runnable() {
+        @Override
+        public void run() {
+            closeIfIdle();
+        }
+    };
+
+    /**
+     * 以下均受LOCKER保护
+     */
+    private int mRefCount;
+
+    private boolean mDetached;
+
+    private boolean mClosed;
+
+    private ZipFile mZipFile;
+
+    private MappedZip mMappedZip;
+
+    private boolean mMapFailed;
+
+    private ApkHandle(File file) {
+        mFile = file;
+        mKey = file.getAbsolutePath();
+        mLength = file.length();
+        mLastModified = file.lastModified();
+    }
+
+    /**
+     * 获取APK的句柄。文件本身在首次使用时才会打开
+     *
+     * @param apk APK文件
+     * @return 句柄，用完后须调用release
+     */
+    public static ApkHandle acquire(File apk) {
+        String key = apk.getAbsolutePath();
+        synchronized (LOCKER) {
+            ApkHandle h = HANDLES.get(key);
+            if (h != null && (h.mLength != apk.length() || h.mLastModified != apk.lastModified())) {
+                // APK已被替换，旧句柄不再给新的使用者
+                if (LOG) {
+                    LogDebug.d(TAG, "acquire: Stale, detach. apk=" + key);
+                }
+                HANDLES.remove(key);
+                h.mDetached = true;
+                h.closeIfUnusedLocked();
+                h = null;
+            }
+            if (h == null) {
+                h = new ApkHandle(apk);
+                HANDLES.put(key, h);
+            }
+            h.mRefCount++;
+            return h;
+        }
+    }
+
+    /**
+     * @see #acquire(File)
+     */
+    public static ApkHandle acquire(String apkPath) {
+        return acquire(new File(apkPath));
+    }
+
+    /**
+     * @return APK文件
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 获取共享的ZipFile。调用者不可关闭它
+     */
+    public ZipFile getZipFile() throws IOException {
+        synchronized (LOCKER) {
+            checkOpenLocked();
+            if (mZipFile == null) {
+                mZipFile = new ZipFile(mFile);
+            }
+            return mZipFile;
+        }
+    }
+
+    /**
+     * 创建一个基于共享内存映射的读取器（共用已解析好的中央目录），仅供当前线程使用 <p>
+     * 读取器无需关闭：close只会回收其解压缓冲区，映射由句柄管理
+     *
+     * @return 读取器；若APK无法被映射（如Zip64），则返回null，调用者应改用getZipFile
+     */
+    public MappedZip newMappedZip() {
+        synchronized (LOCKER) {
+            checkOpenLocked();
+            if (mMappedZip == null && !mMapFailed) {
+                try {
+                    mMappedZip = MappedZip.open(mFile);
+                } catch (IOException e) {
+                    mMapFailed = true;
+                    if (LOG) {
+                        LogDebug.d(TAG, "newMappedZip: Map failed. apk=" + mKey + "; e=" + e);
+                    }
+                }
+            }
+            return mMappedZip != null ? mMappedZip.newReader() : null;
+        }
+    }
+
+    /**
+     * 释放句柄。每次acquire都须对应一次release
+     */
+    public void release() {
+        synchronized (LOCKER) {
+            if (mRefCount <= 0) {
+                return;
+            }
+            mRefCount--;
+            if (mRefCount > 0) {
+                return;
+            }
+            if (mDetached) {
+                closeIfUnusedLocked();
+                return;
+            }
+        }
+        Tasks.cancelThreadTask(mIdleTask);
+        Tasks.postDelayed2Thread(mIdleTask, IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * 同release
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+    private void closeIfIdle() {
+        synchronized (LOCKER) {
+            if (mRefCount > 0) {
+                return;
+            }
+            if (HANDLES.get(mKey) == this) {
+                HANDLES.remove(mKey);
+            }
+            mDetached = true;
+            closeIfUnusedLocked();
+        }
+    }
+
+    private void closeIfUnusedLocked() {
+        if (mRefCount > 0 || mClosed) {
+            return;
+        }
+        mClosed = true;
+        CloseableUtils.closeQuietly(mZipFile);
+        mZipFile = null;
+        // 映射无法主动解除，随对象被回收
+        mMappedZip = null;
+        if (LOG) {
+            LogDebug.d(TAG, "close: apk=" + mKey);
+        }
+    }
+
+    private void checkOpenLocked() {
+        if (mClosed || mRefCount <= 0) {
+            throw new IllegalStateException("handle released: " + mKey);
+        }
+    }
+}
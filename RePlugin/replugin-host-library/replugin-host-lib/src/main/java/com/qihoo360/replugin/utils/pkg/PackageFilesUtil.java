@@ -25,6 +25,8 @@ import android.util.Log;
 import com.qihoo360.loader2.Constant;
 import com.qihoo360.mobilesafe.core.BuildConfig;
 import com.qihoo360.replugin.RePluginInternal;
+import com.qihoo360.replugin.component.PackageSnapshot;
+import com.qihoo360.replugin.packages.PluginClassIndex;
 import com.qihoo360.replugin.helper.LogRelease;
 import com.qihoo360.replugin.model.PluginInfo;
 import com.qihoo360.replugin.utils.FileUtils;
@@ -292,6 +294,10 @@ public class PackageFilesUtil {
                 }
             }
 
+            // 删除PackageInfo快照和类名索引
+            PackageSnapshot.delete(apkFile);
+            PluginClassIndex.delete(apkFile);
+
             // 删除释放后的odex
             final File dexFile = info.getDexFile();
             if (dexFile.exists()) {
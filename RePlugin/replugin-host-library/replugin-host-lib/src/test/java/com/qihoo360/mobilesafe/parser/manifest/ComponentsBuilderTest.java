@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.mobilesafe.parser.manifest;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import com.qihoo360.mobilesafe.parser.manifest.bean.ComponentBean;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ComponentsBuilder 解析 intent-filter 的 android:priority，以及 IntentResolverIndex 按 priority 排序
+ *
+ * @author RePlugin Team
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ComponentsBuilderTest {
+
+    private static final String ACTION = "com.example.plugin.ACTION_VIEW";
+
+    @Test
+    public void intentFilterPriority() {
+        // 低优先级的先声明，以确认排序依据的是 priority 而不是声明顺序
+        ManifestComponents components = buildActivities(
+                new String[]{".LowActivity", "-5"},
+                new String[]{".DefaultActivity", null},
+                new String[]{".HighActivity", "100"});
+
+        List<ComponentBean> activities = components.getActivities();
+        assertEquals(3, activities.size());
+        assertEquals(-5, firstFilter(activities.get(0)).getPriority());
+        assertEquals(0, firstFilter(activities.get(1)).getPriority());
+        assertEquals(100, firstFilter(activities.get(2)).getPriority());
+
+        IntentResolverIndex index = new IntentResolverIndex();
+        index.put("demo", activities);
+        List<IntentResolverIndex.Match> matches = index.query(RuntimeEnvironment.application, new Intent(ACTION), null);
+        assertEquals(3, matches.size());
+        assertEquals("com.example.plugin.HighActivity", matches.get(0).getComponent());
+        assertEquals("com.example.plugin.DefaultActivity", matches.get(1).getComponent());
+        assertEquals("com.example.plugin.LowActivity", matches.get(2).getComponent());
+    }
+
+    @Test
+    public void parsePriority() {
+        assertEquals(0, ComponentsBuilder.parsePriority(null));
+        assertEquals(0, ComponentsBuilder.parsePriority(""));
+        assertEquals(0, ComponentsBuilder.parsePriority("high"));
+        assertEquals(999, ComponentsBuilder.parsePriority("999"));
+        assertEquals(-1, ComponentsBuilder.parsePriority(" -1 "));
+    }
+
+    /**
+     * @param activities 每项为 {android:name, 其 intent-filter 的 android:priority（null 为不设置）}
+     */
+    private static ManifestComponents buildActivities(String[]... activities) {
+        ComponentsBuilder builder = new ComponentsBuilder();
+        builder.onStartTag("manifest", attrs("package", "com.example.plugin"));
+        for (String[] activity : activities) {
+            builder.onStartTag("activity", androidAttrs("name", activity[0]));
+            builder.onStartTag("intent-filter", androidAttrs("priority", activity[1]));
+            builder.onStartTag("action", androidAttrs("name", ACTION));
+            builder.onEndTag("action");
+            builder.onStartTag("category", androidAttrs("name", Intent.CATEGORY_DEFAULT));
+            builder.onEndTag("category");
+            builder.onEndTag("intent-filter");
+            builder.onEndTag("activity");
+        }
+        builder.onEndTag("manifest");
+        return builder.build();
+    }
+
+    private static IntentFilter firstFilter(ComponentBean cb) {
+        return cb.intentFilters.get(0);
+    }
+
+    private static ComponentsBuilder.AttributeSource attrs(String name, String value) {
+        return new MapAttributeSource(name, value, false);
+    }
+
+    private static ComponentsBuilder.AttributeSource androidAttrs(String name, String value) {
+        return new MapAttributeSource(name, value, true);
+    }
+
+    private static final class MapAttributeSource implements ComponentsBuilder.AttributeSource {
+
+        private final Map<String, String> mValues = new HashMap<>();
+
+        private final Map<String, String> mAndroidValues = new HashMap<>();
+
+        MapAttributeSource(String name, String value, boolean android) {
+            (android ? mAndroidValues : mValues).put(name, value);
+        }
+
+        @Override
+        public String getValue(String name) {
+            return mValues.get(name);
+        }
+
+        @Override
+        public String getAndroidValue(String name) {
+            return mAndroidValues.get(name);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2005-2017 Qihoo 360 Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed To in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.qihoo360.replugin.packages;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * PluginPatchGenerator生成、PluginPatcher合成的往返测试，以及合成时的各种错误
+ *
+ * @author RePlugin Team
+ */
+public class PluginPatcherTest {
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private final Random mRandom = new Random(20171017);
+
+    @Test
+    public void roundTrip_editedFile() throws Exception {
+        byte[] base = randomBytes(256 * 1024);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        // 前段不变，中间插入新内容，删掉一段，再把开头的一块挪到末尾
+        target.write(base, 0, 100000);
+        target.write(randomBytes(3000));
+        target.write(base, 120000, 100000);
+        target.write(base, 0, 20000);
+        byte[] patch = assertRoundTrip(base, target.toByteArray());
+        assertTrue("patch too large: " + patch.length, patch.length < 8 * 1024);
+    }
+
+    @Test
+    public void roundTrip_sparseChanges() throws Exception {
+        byte[] base = randomBytes(128 * 1024);
+        byte[] target = base.clone();
+        // 类似Zip头中偏移、CRC的零星变化，应以OP_ADD表示
+        for (int i = 500; i < target.length; i += 4096) {
+            target[i] ^= 0x5a;
+            target[i + 7]++;
+        }
+        byte[] patch = assertRoundTrip(base, target);
+        assertTrue("patch too large: " + patch.length, patch.length < 4 * 1024);
+    }
+
+    @Test
+    public void roundTrip_edgeCases() throws Exception {
+        byte[] base = randomBytes(10000);
+        assertRoundTrip(base, base);
+        assertRoundTrip(base, new byte[0]);
+        assertRoundTrip(new byte[0], base);
+        assertRoundTrip(base, randomBytes(20000));
+        assertRoundTrip(new byte[]{1, 2, 3}, new byte[]{1, 2, 3, 4});
+    }
+
+    @Test
+    public void readBaseLength() throws Exception {
+        byte[] base = randomBytes(5000);
+        File patch = generate(base, randomBytes(100));
+        assertEquals(base.length, PluginPatcher.readBaseLength(patch));
+
+        File notPatch = writeFile("not.patch", randomBytes(100));
+        assertEquals(-1, PluginPatcher.readBaseLength(notPatch));
+    }
+
+    @Test
+    public void apply_badMagic() throws Exception {
+        File base = writeFile("base.apk", randomBytes(100));
+        assertApplyFails(base, writeFile("bad.patch", randomBytes(100)), "bad patch magic");
+    }
+
+    @Test
+    public void apply_baseLengthMismatch() throws Exception {
+        byte[] base = randomBytes(5000);
+        File patch = generate(base, base);
+        File otherBase = writeFile("other.apk", randomBytes(5001));
+        assertApplyFails(otherBase, patch, "base length mismatch");
+    }
+
+    @Test
+    public void readBaseMd5() throws Exception {
+        byte[] base = randomBytes(5000);
+        File patch = generate(base, randomBytes(100));
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(base), PluginPatcher.readBaseMd5(patch));
+
+        File notPatch = writeFile("not.patch", randomBytes(100));
+        assertNull(PluginPatcher.readBaseMd5(notPatch));
+    }
+
+    @Test
+    public void apply_baseMd5Mismatch() throws Exception {
+        byte[] base = randomBytes(5000);
+        File patch = generate(base, randomBytes(5000));
+        // 长度相同、内容不同的旧APK（如同一版本号的另一个构建）
+        byte[] otherBase = base.clone();
+        otherBase[1234]++;
+        assertApplyFails(writeFile("other.apk", otherBase), patch, "base md5 mismatch");
+    }
+
+    @Test
+    public void apply_baseRangeOutOfBounds() throws Exception {
+        byte[] base = randomBytes(1000);
+        byte[] target = Arrays.copyOfRange(base, 900, 1000);
+        ByteArrayOutputStream ops = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(ops);
+        dos.writeByte(PluginPatcher.OP_COPY);
+        dos.writeLong(950);
+        dos.writeInt(100);
+        dos.writeByte(PluginPatcher.OP_END);
+        File patch = writePatch(base, target, ops.toByteArray());
+        assertApplyFails(writeFile("base.apk", base), patch, "base range out of bounds");
+    }
+
+    @Test
+    public void apply_targetOverrun() throws Exception {
+        byte[] base = randomBytes(1000);
+        byte[] target = Arrays.copyOfRange(base, 0, 10);
+        ByteArrayOutputStream ops = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(ops);
+        dos.writeByte(PluginPatcher.OP_COPY);
+        dos.writeLong(0);
+        dos.writeInt(11);
+        dos.writeByte(PluginPatcher.OP_END);
+        File patch = writePatch(base, target, ops.toByteArray());
+        assertApplyFails(writeFile("base.apk", base), patch, "target overrun");
+    }
+
+    @Test
+    public void apply_targetLengthMismatch() throws Exception {
+        byte[] base = randomBytes(1000);
+        byte[] target = Arrays.copyOfRange(base, 0, 10);
+        ByteArrayOutputStream ops = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(ops);
+        dos.writeByte(PluginPatcher.OP_COPY);
+        dos.writeLong(0);
+        dos.writeInt(9);
+        dos.writeByte(PluginPatcher.OP_END);
+        File patch = writePatch(base, target, ops.toByteArray());
+        assertApplyFails(writeFile("base.apk", base), patch, "target length mismatch");
+    }
+
+    @Test
+    public void apply_md5Mismatch() throws Exception {
+        byte[] base = randomBytes(5000);
+        byte[] target = randomBytes(5000);
+        File patch = generate(base, target);
+        // 改掉文件头中新APK的MD5的第一个字节：MAGIC + 旧APK长度 + 旧APK的MD5 + 新APK长度之后
+        RandomAccessFile raf = new RandomAccessFile(patch, "rw");
+        try {
+            int pos = PluginPatcher.MAGIC.length + 8 + PluginPatcher.MD5_LENGTH + 8;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertApplyFails(writeFile("base.apk", base), patch, "target md5 mismatch");
+    }
+
+    @Test
+    public void apply_badOp() throws Exception {
+        byte[] base = randomBytes(100);
+        File patch = writePatch(base, new byte[0], new byte[]{42});
+        assertApplyFails(writeFile("base.apk", base), patch, "bad patch op");
+    }
+
+    private byte[] assertRoundTrip(byte[] base, byte[] target) throws Exception {
+        File baseFile = writeFile("base.apk", base);
+        File patch = generate(base, target);
+        File out = mTmp.newFile();
+        byte[] sha256 = PluginPatcher.apply(baseFile, patch, out);
+        assertArrayEquals(target, readFile(out));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(target), sha256);
+        return readFile(patch);
+    }
+
+    private void assertApplyFails(File base, File patch, String message) throws Exception {
+        File out = mTmp.newFile();
+        try {
+            PluginPatcher.apply(base, patch, out);
+            fail("apply should fail: " + message);
+        } catch (IOException e) {
+            assertTrue("unexpected: " + e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    private File generate(byte[] base, byte[] target) throws IOException {
+        File patch = mTmp.newFile();
+        PluginPatchGenerator.generate(writeFile("gen-base.apk", base), writeFile("gen-target.apk", target), patch);
+        return patch;
+    }
+
+    /**
+     * 手工构造增量包，用于测试生成器不会产生的非法指令
+     */
+    private File writePatch(byte[] base, byte[] target, byte[] ops) throws Exception {
+        File patch = mTmp.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(patch));
+        try {
+            out.write(PluginPatcher.MAGIC);
+            out.writeLong(base.length);
+            out.write(MessageDigest.getInstance("MD5").digest(base));
+            out.writeLong(target.length);
+            out.write(MessageDigest.getInstance("MD5").digest(target));
+            DeflaterOutputStream dos = new DeflaterOutputStream(out);
+            dos.write(ops);
+            dos.finish();
+        } finally {
+            out.close();
+        }
+        return patch;
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        File f = new File(mTmp.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        mRandom.nextBytes(data);
+        return data;
+    }
+}